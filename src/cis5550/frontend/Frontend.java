@@ -4,7 +4,6 @@ package cis5550.frontend;
 
 import static cis5550.webserver.Server.*;
 
-import java.io.File;
 import java.net.URLEncoder;
 import java.util.*;
 
@@ -18,20 +17,9 @@ public class Frontend {
         String queryServerIP = args[1];
         // port(Integer.parseInt(args[0]));
         securePort(Integer.parseInt(args[0]));
-        // First use fixed page
-
-        get("/", (req, res)->{
-            File mainPageHtml = new File("integrated/page/index.html");
-            String mainPageHtmlBuilder = "";
-            try{
-                mainPageHtmlBuilder = new String(java.nio.file.Files.readAllBytes(mainPageHtml.toPath()));
-            }
-            catch (Exception e){
-                e.printStackTrace();
-            }
-            res.type("text/html");
-            return mainPageHtmlBuilder;
-        });
+        // First use fixed page; "/" is served as integrated/page/index.html, which the webserver
+        // keeps cached and revalidates with ETag/Last-Modified
+        staticFiles.location("integrated/page");
 
         get("/search", (req, res)->{
             String query = req.queryParams("query");
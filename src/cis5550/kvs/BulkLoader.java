@@ -0,0 +1,190 @@
+package cis5550.kvs;
+
+import cis5550.tools.HTTP;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Loads rows into a new persistent table without sending them through put-rows. The rows are
+// read from files in the format that scans and put-rows use (rows one after the other, with
+// or without a newline between them), split by the worker that owns each key, and written
+// straight into one table file per worker, together with its index. Each worker then attaches
+// its file with PUT /restore, which moves it into place as a whole, so a table either does
+// not exist on a worker or has all of the rows that worker owns.
+//
+// The files are staged as backups (see TableBackup), and the workers are told where they
+// are. That works when the staging directory is visible to the workers and in their bulk load
+// directory (-Dcis5550.kvs.bulkLoadDirectory, "bulkload" in their working directory by default),
+// e.g. when loading on the machine they run on or onto shared storage; otherwise, with
+// --no-attach, the directory of each worker can be copied to that worker's backups directory
+// and restored by its ID. Without --staging, the files go to the bulk load directory.
+//
+// Usage: BulkLoader <coordinator> <table> [--policy <query>] [--staging <dir>] [--no-attach] <file>...
+// where - reads from standard input, and the policy has the form of the query parameters of
+// PUT /persist/:T, e.g. storage=persistent&compression=deflate.
+public class BulkLoader {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte[] ROW_SEPARATOR = "\n".getBytes(StandardCharsets.UTF_8);
+
+    // The table file for one worker. Rows are appended in the order they arrive; a key that
+    // appears again is merged with its earlier row, as put-rows would do.
+    private static class Partition {
+        final Path file;
+        final OutputStream out;
+        final Map<String, Long> index = new HashMap<>();
+        final boolean compress;
+        long position;
+        long deadRecords;
+        private RandomAccessFile reader;
+
+        Partition(Path file, boolean compress) throws IOException {
+            this.file = file;
+            this.out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE);
+            this.compress = compress;
+        }
+
+        void add(Row row) throws Exception {
+            Long earlier = index.get(row.key());
+            if (earlier != null) {
+                Row merged = readRow(earlier).clone();
+                for (String column : row.columns()) {
+                    merged.put(column, row.getBytes(column));
+                }
+                row = merged;
+                deadRecords++;
+            }
+            byte[] record = PersistentTable.encodeRecord(row, compress);
+            out.write(record);
+            out.write(ROW_SEPARATOR);
+            index.put(row.key(), position);
+            position += record.length + ROW_SEPARATOR.length;
+        }
+
+        private Row readRow(long rowPosition) throws Exception {
+            out.flush();
+            if (reader == null) {
+                reader = new RandomAccessFile(file.toFile(), "r");
+            }
+            reader.seek(rowPosition);
+            return PersistentTable.decode(ImmutableRow.readFrom(reader));
+        }
+
+        void close() throws IOException {
+            out.close();
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Syntax: BulkLoader <coordinator> <table> [--policy <query>] [--staging <dir>] [--no-attach] <file>...");
+            System.exit(1);
+        }
+        String coordinator = args[0];
+        String tableName = args[1];
+        String policyQuery = null;
+        Path staging = null;
+        boolean attach = true;
+        List<String> inputs = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--policy") && (i + 1 < args.length)) {
+                policyQuery = args[++i];
+            } else if (args[i].equals("--staging") && (i + 1 < args.length)) {
+                staging = Path.of(args[++i]);
+            } else if (args[i].equals("--no-attach")) {
+                attach = false;
+            } else {
+                inputs.add(args[i]);
+            }
+        }
+
+        Map<String, String> params = new HashMap<>();
+        if (policyQuery != null) {
+            for (String param : policyQuery.split("&")) {
+                String[] pieces = param.split("=", 2);
+                params.put(pieces[0], (pieces.length > 1) ? pieces[1] : "");
+            }
+        }
+        TablePolicy policy = TablePolicy.fromQueryParams(tableName, params::get);
+        if (!policy.isPersistent()) {
+            System.err.println("Bulk loading needs persistent storage; use a pt- table or storage=persistent");
+            System.exit(1);
+        }
+        boolean compress = (policy.compression() == TablePolicy.Compression.DEFLATE);
+
+        KVSClient kvs = new KVSClient(coordinator);
+        int numWorkers = kvs.numWorkers();
+        if (staging == null) {
+            staging = Path.of(TableHandler.BULK_LOAD_DIRECTORY, SecondaryIndex.encode(tableName) + "-" + System.currentTimeMillis());
+        }
+        staging = staging.toAbsolutePath();
+        Files.createDirectories(staging);
+
+        Partition[] partitions = new Partition[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            partitions[i] = new Partition(staging.resolve(kvs.getWorkerID(i) + ".table"), compress);
+        }
+
+        long start = System.currentTimeMillis();
+        long rows = 0;
+        for (String input : inputs) {
+            try (InputStream in = new BufferedInputStream(input.equals("-") ? System.in : Files.newInputStream(Path.of(input)), BUFFER_SIZE)) {
+                while (true) {
+                    // Row.readFrom() also returns null for the newline between two rows
+                    in.mark(1);
+                    if (in.read() < 0) {
+                        break;
+                    }
+                    in.reset();
+                    Row row = Row.readFrom(in);
+                    if (row != null) {
+                        partitions[kvs.workerIndexForKey(row.key())].add(row);
+                        rows++;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < numWorkers; i++) {
+            Partition partition = partitions[i];
+            partition.close();
+            TableBackup.createForTable(staging.resolve(kvs.getWorkerID(i)), tableName, partition.file, partition.index, partition.deadRecords,
+                    policy.equals(TablePolicy.defaultFor(tableName)) ? null : policy);
+        }
+        System.out.println("Built " + rows + " rows for " + numWorkers + " workers in " + staging + " (" + (System.currentTimeMillis() - start) + " ms)");
+
+        if (!attach) {
+            return;
+        }
+        int failed = 0;
+        for (int i = 0; i < numWorkers; i++) {
+            Path backupDir = staging.resolve(kvs.getWorkerID(i));
+            HTTP.Response response = HTTP.doRequest("PUT", "http://" + kvs.getWorkerAddress(i) + "/restore/bulkload?dir="
+                    + URLEncoder.encode(backupDir.toString(), StandardCharsets.UTF_8), null);
+            String body = new String(response.body(), StandardCharsets.UTF_8);
+            if ((response.statusCode() != 200) || !body.contains("\"restored\":[\"")) {
+                System.err.println("Worker " + kvs.getWorkerID(i) + " did not attach " + backupDir + ": " + response.statusCode() + " " + body);
+                failed++;
+            } else {
+                System.out.println("Worker " + kvs.getWorkerID(i) + " attached " + partitions[i].index.size() + " rows");
+            }
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
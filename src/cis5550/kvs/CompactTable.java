@@ -0,0 +1,619 @@
+package cis5550.kvs;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// An in-memory table for large numbers of small rows. A ConcurrentHashMap of Rows costs a map
+// node, a key String, a Row, a HashMap and one entry per column for every row; here a row is a
+// single record in a large shared byte array (a slab), and the hash table is a long[] of record
+// positions. Column names are stored once per table in a dictionary and referenced by number.
+//
+// Record layout: key length, key bytes (UTF-8), column count, then column id, value length and
+// value bytes for each column; all numbers are 4-byte ints. Records are never modified once
+// written: an update appends a new record, and the space of the old one is reclaimed when the
+// shard is compacted.
+//
+// Writes lock one of the shards. Reads take no lock: slots are published with release
+// semantics after the record they point to has been written, so a reader that sees a slot
+// also sees the record.
+public class CompactTable extends AbstractMap<String, Row> {
+    private static final int NUM_SHARDS = 16;
+    private static final int INITIAL_SLOTS = 16;
+    private static final int MIN_SLAB_SIZE = 4 * 1024;
+    private static final int MAX_SLAB_SIZE = 1024 * 1024;
+    // Shards are compacted once garbage exceeds the live data and this many bytes
+    private static final long MIN_GARBAGE_FOR_COMPACTION = 64 * 1024;
+
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final long RETRY = -2;
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final ColumnDictionary columnDictionary;
+    private final Shard[] shards = new Shard[NUM_SHARDS];
+
+    public CompactTable() {
+        this.columnDictionary = new ColumnDictionary();
+        for (int i = 0; i < NUM_SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    private CompactTable(CompactTable original) {
+        this.columnDictionary = original.columnDictionary;
+        for (int i = 0; i < NUM_SHARDS; i++) {
+            shards[i] = original.shards[i].copy();
+        }
+    }
+
+    // A copy that shares all record data with this table; only the slot arrays are duplicated.
+    // Used for snapshots and for copying tables.
+    public CompactTable copy() {
+        return new CompactTable(this);
+    }
+
+    @Override
+    public Row get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        byte[] keyBytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        return shardFor(hash).get((String) key, keyBytes, hash);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        byte[] keyBytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        return shardFor(hash).contains(keyBytes, hash);
+    }
+
+    @Override
+    public Row put(String key, Row row) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        return shardFor(hash).put(key, keyBytes, hash, row, true);
+    }
+
+    // Like put(), but does not decode the row that is replaced
+    public void set(String key, Row row) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        shardFor(hash).put(key, keyBytes, hash, row, false);
+    }
+
+    @Override
+    public Row remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        byte[] keyBytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        return shardFor(hash).remove((String) key, keyBytes, hash);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    // Bytes held by slabs and slot arrays, including garbage that has not been compacted yet
+    public long memoryBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            bytes += shard.memoryBytes();
+        }
+        return bytes;
+    }
+
+    // Iterates over the keys without decoding the rows
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<>() {
+            public Iterator<String> iterator() {
+                Iterator<Map.Entry<String, Row>> entries = new EntryIterator(false);
+                return new Iterator<>() {
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    public String next() {
+                        return entries.next().getKey();
+                    }
+                };
+            }
+
+            public int size() {
+                return CompactTable.this.size();
+            }
+
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<String, Row>> entrySet() {
+        return new AbstractSet<>() {
+            public Iterator<Map.Entry<String, Row>> iterator() {
+                return new EntryIterator(true);
+            }
+
+            public int size() {
+                return CompactTable.this.size();
+            }
+        };
+    }
+
+    private Shard shardFor(int hash) {
+        return shards[(hash >>> 28) & (NUM_SHARDS - 1)];
+    }
+
+    // FNV-1a over the UTF-8 bytes, so that slots can be rehashed without decoding keys
+    private static int hash(byte[] bytes) {
+        int h = 0x811c9dc5;
+        for (byte b : bytes) {
+            h = (h ^ b) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] slab, int offset, int length) {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ slab[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int readInt(byte[] slab, int offset) {
+        return (int) INT.get(slab, offset);
+    }
+
+    private static void writeInt(byte[] slab, int offset, int value) {
+        INT.set(slab, offset, value);
+    }
+
+    private static int recordLength(byte[] slab, int offset) {
+        int pos = offset + 4 + readInt(slab, offset);
+        int numColumns = readInt(slab, pos);
+        pos += 4;
+        for (int i = 0; i < numColumns; i++) {
+            pos += 8 + readInt(slab, pos + 4);
+        }
+        return pos - offset;
+    }
+
+    private Row decode(byte[] slab, int offset, String keyOrNull) {
+        int keyLength = readInt(slab, offset);
+        String key = (keyOrNull != null) ? keyOrNull : new String(slab, offset + 4, keyLength, StandardCharsets.UTF_8);
+        ImmutableRow.Builder row = ImmutableRow.builder(key);
+        int pos = offset + 4 + keyLength;
+        int numColumns = readInt(slab, pos);
+        pos += 4;
+        for (int i = 0; i < numColumns; i++) {
+            String column = columnDictionary.name(readInt(slab, pos));
+            int valueLength = readInt(slab, pos + 4);
+            row.put(column, Arrays.copyOfRange(slab, pos + 8, pos + 8 + valueLength));
+            pos += 8 + valueLength;
+        }
+        return row.build();
+    }
+
+    // A slot holds (slab index << 32 | offset) + 1, so that 0 can mean an empty slot
+    private static long slotValue(int slabIndex, int offset) {
+        return (((long) slabIndex << 32) | offset) + 1;
+    }
+
+    private static int slabIndex(long slot) {
+        return (int) ((slot - 1) >>> 32);
+    }
+
+    private static int slabOffset(long slot) {
+        return (int) (slot - 1);
+    }
+
+    // The slot array and the slabs it points into. Both are replaced together when a shard is
+    // compacted, so a reader that holds a State always sees matching positions. Growing the
+    // slab list also publishes a new State (with the same slot array).
+    private static final class State {
+        final long[] slots;
+        final byte[][] slabs;
+
+        State(long[] slots, byte[][] slabs) {
+            this.slots = slots;
+            this.slabs = slabs;
+        }
+    }
+
+    private final class Shard {
+        private volatile State state = new State(new long[INITIAL_SLOTS], new byte[0][]);
+        private volatile int size;
+        // The remaining fields are only used by writers, under the shard lock
+        private int usedSlots;
+        private int slabPosition;
+        private boolean ownsLastSlab = true;
+        private long liveBytes;
+        private long garbageBytes;
+
+        Shard copy() {
+            Shard copy = new Shard();
+            synchronized (this) {
+                State s = state;
+                copy.state = new State(s.slots.clone(), s.slabs);
+                copy.size = size;
+                copy.usedSlots = usedSlots;
+                copy.liveBytes = liveBytes;
+                copy.garbageBytes = garbageBytes;
+                // The original keeps appending to its last slab, so the copy starts a new one
+                copy.ownsLastSlab = false;
+            }
+            return copy;
+        }
+
+        Row get(String key, byte[] keyBytes, int hash) {
+            while (true) {
+                State s = state;
+                long slot = find(s, keyBytes, hash);
+                if (slot == RETRY) {
+                    continue;
+                }
+                return (slot == EMPTY) ? null : decode(s.slabs[slabIndex(slot)], slabOffset(slot), key);
+            }
+        }
+
+        boolean contains(byte[] keyBytes, int hash) {
+            while (true) {
+                long slot = find(state, keyBytes, hash);
+                if (slot != RETRY) {
+                    return slot != EMPTY;
+                }
+            }
+        }
+
+        // Returns the slot of the key, EMPTY if it is not in the table, or RETRY if the slot
+        // points into a slab that was added after s was read
+        private long find(State s, byte[] keyBytes, int hash) {
+            long[] slots = s.slots;
+            int mask = slots.length - 1;
+            for (int i = hash & mask, probes = 0; probes < slots.length; i = (i + 1) & mask, probes++) {
+                long slot = (long) SLOTS.getAcquire(slots, i);
+                if (slot == EMPTY) {
+                    return EMPTY;
+                }
+                if (slot == DELETED) {
+                    continue;
+                }
+                int slabIndex = slabIndex(slot);
+                if (slabIndex >= s.slabs.length) {
+                    return RETRY;
+                }
+                if (keyEquals(s.slabs[slabIndex], slabOffset(slot), keyBytes)) {
+                    return slot;
+                }
+            }
+            return EMPTY;
+        }
+
+        private boolean keyEquals(byte[] slab, int offset, byte[] keyBytes) {
+            int keyLength = readInt(slab, offset);
+            return (keyLength == keyBytes.length) && Arrays.equals(slab, offset + 4, offset + 4 + keyLength, keyBytes, 0, keyLength);
+        }
+
+        // Writer-side lookup: the index of the key's slot, or -(index to insert at) - 1
+        private int indexOf(State s, byte[] keyBytes, int hash) {
+            long[] slots = s.slots;
+            int mask = slots.length - 1;
+            int firstDeleted = -1;
+            for (int i = hash & mask, probes = 0; probes < slots.length; i = (i + 1) & mask, probes++) {
+                long slot = slots[i];
+                if (slot == EMPTY) {
+                    return -((firstDeleted >= 0) ? firstDeleted : i) - 1;
+                }
+                if (slot == DELETED) {
+                    if (firstDeleted < 0) {
+                        firstDeleted = i;
+                    }
+                } else if (keyEquals(s.slabs[slabIndex(slot)], slabOffset(slot), keyBytes)) {
+                    return i;
+                }
+            }
+            return -firstDeleted - 1;
+        }
+
+        synchronized Row put(String key, byte[] keyBytes, int hash, Row row, boolean returnPrevious) {
+            if (usedSlots + 1 > state.slots.length * 3 / 4) {
+                rehash(Math.max(INITIAL_SLOTS, Integer.highestOneBit(Math.max(1, size + 1) * 4)));
+            }
+
+            Set<String> columns = row.columns();
+            int[] columnIds = new int[columns.size()];
+            byte[][] values = new byte[columns.size()][];
+            int length = 8 + keyBytes.length;
+            int n = 0;
+            for (String column : columns) {
+                columnIds[n] = columnDictionary.id(column);
+                values[n] = row.getBytes(column);
+                length += 8 + values[n].length;
+                n++;
+            }
+
+            long position = allocate(length);
+            State s = state;
+            byte[] slab = s.slabs[slabIndex(position)];
+            int pos = slabOffset(position);
+            writeInt(slab, pos, keyBytes.length);
+            System.arraycopy(keyBytes, 0, slab, pos + 4, keyBytes.length);
+            pos += 4 + keyBytes.length;
+            writeInt(slab, pos, n);
+            pos += 4;
+            for (int i = 0; i < n; i++) {
+                writeInt(slab, pos, columnIds[i]);
+                writeInt(slab, pos + 4, values[i].length);
+                System.arraycopy(values[i], 0, slab, pos + 8, values[i].length);
+                pos += 8 + values[i].length;
+            }
+
+            Row previous = null;
+            int index = indexOf(s, keyBytes, hash);
+            if (index >= 0) {
+                long oldSlot = s.slots[index];
+                byte[] oldSlab = s.slabs[slabIndex(oldSlot)];
+                if (returnPrevious) {
+                    previous = decode(oldSlab, slabOffset(oldSlot), key);
+                }
+                int oldLength = recordLength(oldSlab, slabOffset(oldSlot));
+                liveBytes -= oldLength;
+                garbageBytes += oldLength;
+            } else {
+                index = -index - 1;
+                if (s.slots[index] == EMPTY) {
+                    usedSlots++;
+                }
+                size++;
+            }
+            liveBytes += length;
+            SLOTS.setRelease(s.slots, index, position);
+
+            if ((garbageBytes > liveBytes) && (garbageBytes > MIN_GARBAGE_FOR_COMPACTION)) {
+                compact();
+            }
+            return previous;
+        }
+
+        synchronized Row remove(String key, byte[] keyBytes, int hash) {
+            State s = state;
+            int index = indexOf(s, keyBytes, hash);
+            if (index < 0) {
+                return null;
+            }
+            long oldSlot = s.slots[index];
+            byte[] oldSlab = s.slabs[slabIndex(oldSlot)];
+            Row previous = decode(oldSlab, slabOffset(oldSlot), key);
+            int oldLength = recordLength(oldSlab, slabOffset(oldSlot));
+            liveBytes -= oldLength;
+            garbageBytes += oldLength;
+            size--;
+            SLOTS.setRelease(s.slots, index, DELETED);
+
+            if ((garbageBytes > liveBytes) && (garbageBytes > MIN_GARBAGE_FOR_COMPACTION)) {
+                compact();
+            }
+            return previous;
+        }
+
+        synchronized void clear() {
+            state = new State(new long[INITIAL_SLOTS], new byte[0][]);
+            size = 0;
+            usedSlots = 0;
+            slabPosition = 0;
+            ownsLastSlab = true;
+            liveBytes = 0;
+            garbageBytes = 0;
+        }
+
+        synchronized long memoryBytes() {
+            State s = state;
+            long bytes = 8L * s.slots.length;
+            for (byte[] slab : s.slabs) {
+                bytes += slab.length;
+            }
+            return bytes;
+        }
+
+        // Returns the position of length free bytes, adding a slab if the last one is full.
+        // Slabs start small, so that the many small tables Flame creates stay cheap, and
+        // double in size up to MAX_SLAB_SIZE; a larger record gets a slab of its own.
+        private long allocate(int length) {
+            State s = state;
+            int last = s.slabs.length - 1;
+            if (ownsLastSlab && (last >= 0) && (slabPosition + length <= s.slabs[last].length)) {
+                long position = slotValue(last, slabPosition);
+                slabPosition += length;
+                return position;
+            }
+            int previousSize = (last >= 0) ? s.slabs[last].length : 0;
+            int slabSize = Math.max(length, Math.min(MAX_SLAB_SIZE, Math.max(MIN_SLAB_SIZE, previousSize * 2)));
+            byte[][] slabs = Arrays.copyOf(s.slabs, s.slabs.length + 1);
+            slabs[last + 1] = new byte[slabSize];
+            state = new State(s.slots, slabs);
+            ownsLastSlab = true;
+            slabPosition = length;
+            return slotValue(last + 1, 0);
+        }
+
+        private void rehash(int capacity) {
+            State s = state;
+            long[] slots = new long[capacity];
+            int mask = capacity - 1;
+            for (long slot : s.slots) {
+                if ((slot != EMPTY) && (slot != DELETED)) {
+                    byte[] slab = s.slabs[slabIndex(slot)];
+                    int offset = slabOffset(slot);
+                    int i = hash(slab, offset + 4, readInt(slab, offset)) & mask;
+                    while (slots[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    slots[i] = slot;
+                }
+            }
+            usedSlots = size;
+            state = new State(slots, s.slabs);
+        }
+
+        // Copies the live records into new slabs and publishes them together with a new slot
+        // array; readers that still hold the old State keep reading the old slabs
+        private void compact() {
+            State s = state;
+            long[] slots = new long[s.slots.length];
+            int mask = slots.length - 1;
+            byte[][] slabs = new byte[0][];
+            int slabPos = 0;
+            for (long slot : s.slots) {
+                if ((slot == EMPTY) || (slot == DELETED)) {
+                    continue;
+                }
+                byte[] slab = s.slabs[slabIndex(slot)];
+                int offset = slabOffset(slot);
+                int length = recordLength(slab, offset);
+                int last = slabs.length - 1;
+                if ((last < 0) || (slabPos + length > slabs[last].length)) {
+                    slabs = Arrays.copyOf(slabs, slabs.length + 1);
+                    slabs[++last] = new byte[(int) Math.max(length, Math.min(MAX_SLAB_SIZE, Math.max(MIN_SLAB_SIZE, liveBytes)))];
+                    slabPos = 0;
+                }
+                System.arraycopy(slab, offset, slabs[last], slabPos, length);
+                int i = hash(slab, offset + 4, readInt(slab, offset)) & mask;
+                while (slots[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = slotValue(last, slabPos);
+                slabPos += length;
+            }
+            state = new State(slots, slabs);
+            usedSlots = size;
+            slabPosition = slabPos;
+            ownsLastSlab = true;
+            garbageBytes = 0;
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, Row>> {
+        private final boolean decodeRows;
+        private int shardIndex = -1;
+        private State state;
+        private int slotIndex;
+        private Map.Entry<String, Row> next;
+
+        EntryIterator(boolean decodeRows) {
+            this.decodeRows = decodeRows;
+            advance();
+        }
+
+        // Iteration is weakly consistent, like that of ConcurrentHashMap: each shard is read as
+        // of the moment the iterator reaches it
+        private void advance() {
+            next = null;
+            while (next == null) {
+                if ((state == null) || (slotIndex >= state.slots.length)) {
+                    if (++shardIndex >= NUM_SHARDS) {
+                        return;
+                    }
+                    state = shards[shardIndex].state;
+                    slotIndex = 0;
+                    continue;
+                }
+                long slot = (long) SLOTS.getAcquire(state.slots, slotIndex++);
+                if ((slot == EMPTY) || (slot == DELETED)) {
+                    continue;
+                }
+                byte[][] slabs = state.slabs;
+                if (slabIndex(slot) >= slabs.length) {
+                    // Written after we started on this shard; only usable if the slot array is unchanged
+                    State current = shards[shardIndex].state;
+                    if (current.slots != state.slots) {
+                        continue;
+                    }
+                    slabs = current.slabs;
+                }
+                byte[] slab = slabs[slabIndex(slot)];
+                int offset = slabOffset(slot);
+                String key = new String(slab, offset + 4, readInt(slab, offset), StandardCharsets.UTF_8);
+                next = new SimpleImmutableEntry<>(key, decodeRows ? decode(slab, offset, key) : null);
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<String, Row> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Row> result = next;
+            advance();
+            return result;
+        }
+    }
+
+    // Column names are stored once per table; records refer to them by number. Lookups by
+    // number are lock-free, and numbers are never reused, so a record always decodes the same.
+    private static final class ColumnDictionary {
+        private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[16];
+        private int nextId;
+
+        int id(String name) {
+            Integer id = ids.get(name);
+            return (id != null) ? id : assign(name);
+        }
+
+        private synchronized int assign(String name) {
+            Integer id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            String[] current = names;
+            if (nextId == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[nextId] = name;
+            names = current;
+            ids.put(name, nextId);
+            return nextId++;
+        }
+
+        String name(int id) {
+            return names[id];
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package cis5550.kvs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// A read-only Row for scan results and storage reads. The columns live in two parallel arrays
+// instead of a HashMap, nothing is locked (the row never changes after construction),
+// and each value is decoded to a String at most once. put() is not supported; clone() returns
+// an ordinary, mutable Row, and new rows can be assembled with a Builder.
+public final class ImmutableRow extends Row {
+  private static final long serialVersionUID = 1L;
+
+  // Rows with more columns than this also get a hash index for get()
+  private static final int MAX_LINEAR_LOOKUP = 8;
+
+  private final String[] columnNames;
+  private final byte[][] columnValues;
+  // Filled in on first use; racing threads at worst decode the same value twice
+  private final String[] decoded;
+  private transient Set<String> columnSet;
+  private transient Map<String,Integer> columnIndex;
+
+  private ImmutableRow(String keyArg, String[] columnNamesArg, byte[][] columnValuesArg) {
+    super(keyArg, null);
+    columnNames = columnNamesArg;
+    columnValues = columnValuesArg;
+    decoded = new String[columnNamesArg.length];
+  }
+
+  public static Builder builder(String key) {
+    return new Builder(key);
+  }
+
+  public static ImmutableRow copyOf(Row row) {
+    if (row instanceof ImmutableRow)
+      return (ImmutableRow) row;
+    Builder builder = new Builder(row.key());
+    for (String column : row.columns())
+      builder.put(column, row.getBytes(column));
+    return builder.build();
+  }
+
+  public String key() {
+    return key;
+  }
+
+  public Row clone() {
+    Row theClone = new Row(key);
+    for (int i=0; i<columnNames.length; i++)
+      theClone.values.put(columnNames[i], columnValues[i]);
+    return theClone;
+  }
+
+  public Set<String> columns() {
+    Set<String> set = columnSet;
+    if (set == null) {
+      set = Collections.unmodifiableSet(new AbstractSet<String>() {
+        public Iterator<String> iterator() {
+          return Arrays.asList(columnNames).iterator();
+        }
+        public int size() {
+          return columnNames.length;
+        }
+        public boolean contains(Object o) {
+          return (o instanceof String) && (indexOf((String) o) >= 0);
+        }
+      });
+      columnSet = set;
+    }
+    return set;
+  }
+
+  public void put(String key, String value) {
+    throw new UnsupportedOperationException("ImmutableRow cannot be modified; use clone() or ImmutableRow.builder()");
+  }
+
+  public void put(String key, byte[] value) {
+    throw new UnsupportedOperationException("ImmutableRow cannot be modified; use clone() or ImmutableRow.builder()");
+  }
+
+  public String get(String column) {
+    int i = indexOf(column);
+    if (i < 0)
+      return null;
+    String s = decoded[i];
+    if (s == null) {
+      s = new String(columnValues[i], StandardCharsets.UTF_8);
+      decoded[i] = s;
+    }
+    return s;
+  }
+
+  public byte[] getBytes(String column) {
+    int i = indexOf(column);
+    return (i < 0) ? null : columnValues[i];
+  }
+
+  private int indexOf(String column) {
+    if (columnNames.length <= MAX_LINEAR_LOOKUP) {
+      for (int i=0; i<columnNames.length; i++)
+        if (columnNames[i].equals(column))
+          return i;
+      return -1;
+    }
+    Map<String,Integer> index = columnIndex;
+    if (index == null) {
+      index = new HashMap<String,Integer>();
+      for (int i=0; i<columnNames.length; i++)
+        index.put(columnNames[i], i);
+      columnIndex = Collections.unmodifiableMap(index);
+    }
+    Integer i = index.get(column);
+    return (i == null) ? -1 : i;
+  }
+
+  public String toString() {
+    StringBuilder s = new StringBuilder(key).append(" {");
+    for (int i=0; i<columnNames.length; i++)
+      s.append((i == 0) ? " " : ", ").append(columnNames[i]).append(": ").append(get(columnNames[i]));
+    return s.append(" }").toString();
+  }
+
+  public int byteSize() {
+    int size = key.getBytes().length + 1;
+    for (int i=0; i<columnNames.length; i++) {
+      int len = columnValues[i].length;
+      size += columnNames[i].getBytes().length + 1 + String.valueOf(len).length() + 1 + len + 1;
+    }
+    return size;
+  }
+
+  // Writes straight into an array of the exact size, instead of growing a stream
+  public byte[] toByteArray() {
+    byte[] out = new byte[byteSize()];
+    int pos = append(out, 0, key.getBytes());
+    out[pos++] = ' ';
+    for (int i=0; i<columnNames.length; i++) {
+      pos = append(out, pos, columnNames[i].getBytes());
+      out[pos++] = ' ';
+      pos = append(out, pos, String.valueOf(columnValues[i].length).getBytes());
+      out[pos++] = ' ';
+      pos = append(out, pos, columnValues[i]);
+      out[pos++] = ' ';
+    }
+    return out;
+  }
+
+  private static int append(byte[] out, int pos, byte[] bytes) {
+    System.arraycopy(bytes, 0, out, pos, bytes.length);
+    return pos + bytes.length;
+  }
+
+  public static ImmutableRow readFrom(InputStream in) throws Exception {
+    String theKey = readStringSpace(in);
+    if (theKey == null)
+      return null;
+
+    Builder builder = new Builder(theKey);
+    while (true) {
+      String keyOrMarker = readStringSpace(in);
+      if (keyOrMarker == null)
+        return builder.build();
+
+      int len = Integer.parseInt(readStringSpace(in));
+      byte[] theValue = new byte[len];
+      int bytesRead = 0;
+      while (bytesRead < len) {
+        int n = in.read(theValue, bytesRead, len - bytesRead);
+        if (n < 0)
+          throw new Exception("Premature end of stream while reading value for key '"+keyOrMarker+"' (read "+bytesRead+" bytes, expecting "+len+")");
+        bytesRead += n;
+      }
+
+      byte b = (byte)in.read();
+      if (b != ' ')
+        throw new Exception("Expecting a space separator after value for key '"+keyOrMarker+"'");
+
+      builder.put(keyOrMarker, theValue);
+    }
+  }
+
+  public static ImmutableRow readFrom(RandomAccessFile in) throws Exception {
+    String theKey = readStringSpace(in);
+    if (theKey == null)
+      return null;
+
+    Builder builder = new Builder(theKey);
+    while (true) {
+      String keyOrMarker = readStringSpace(in);
+      if (keyOrMarker == null)
+        return builder.build();
+
+      int len = Integer.parseInt(readStringSpace(in));
+      byte[] theValue = new byte[len];
+      in.readFully(theValue);
+
+      byte b = (byte)in.read();
+      if (b != ' ')
+        throw new Exception("Expecting a space separator after value for key '"+keyOrMarker+"'");
+
+      builder.put(keyOrMarker, theValue);
+    }
+  }
+
+  // Collects columns for a new ImmutableRow; putting a column twice keeps the later value,
+  // like Row.put(). A builder should not be used after build().
+  public static final class Builder {
+    private final String key;
+    private String[] names = new String[4];
+    private byte[][] values = new byte[4][];
+    private int size;
+    private HashMap<String,Integer> positions;
+
+    private Builder(String keyArg) {
+      key = keyArg;
+    }
+
+    public Builder put(String column, String value) {
+      return put(column, value.getBytes());
+    }
+
+    public Builder put(String column, byte[] value) {
+      int i = positionOf(column);
+      if (i >= 0) {
+        values[i] = value;
+        return this;
+      }
+      if (size == names.length) {
+        names = Arrays.copyOf(names, 2*size);
+        values = Arrays.copyOf(values, 2*size);
+      }
+      names[size] = column;
+      values[size] = value;
+      if (positions != null)
+        positions.put(column, size);
+      size++;
+      return this;
+    }
+
+    private int positionOf(String column) {
+      if ((positions == null) && (size > MAX_LINEAR_LOOKUP)) {
+        positions = new HashMap<String,Integer>();
+        for (int i=0; i<size; i++)
+          positions.put(names[i], i);
+      }
+      if (positions != null) {
+        Integer i = positions.get(column);
+        return (i == null) ? -1 : i;
+      }
+      for (int i=0; i<size; i++)
+        if (names[i].equals(column))
+          return i;
+      return -1;
+    }
+
+    public ImmutableRow build() {
+      return new ImmutableRow(key, Arrays.copyOf(names, size), Arrays.copyOf(values, size));
+    }
+  }
+}
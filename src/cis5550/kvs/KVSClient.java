@@ -3,11 +3,26 @@ package cis5550.kvs;
 import java.util.*;
 import java.net.*;
 import java.io.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
 
 import cis5550.tools.HTTP;
 import cis5550.tools.Logger;
@@ -17,6 +32,8 @@ public class KVSClient implements KVS {
   private static final Logger logger = Logger.getLogger(KVSClient.class);
 
   private final Object tableLock = new Object();
+  // Held while the worker list is fetched from the coordinator
+  private final ReentrantLock workersLock = new ReentrantLock();
 
   String coordinator;
 
@@ -64,6 +81,8 @@ public class KVSClient implements KVS {
   }
 
   class KVSIterator implements Iterator<Row> {
+    // Held while the next row is read from a worker; a monitor would pin a virtual thread's carrier
+    private final ReentrantLock lock = new ReentrantLock();
     InputStream in;
     boolean atEnd;
     Row nextRow;
@@ -71,9 +90,15 @@ public class KVSClient implements KVS {
     String endRowExclusive;
     String startRow;
     String tableName;
+    String snapshotID;
     Vector<String> ranges;
 
     KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg) throws IOException {
+      this(tableNameArg, startRowArg, endRowExclusiveArg, null);
+    }
+
+    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, String snapshotIDArg) throws IOException {
+      snapshotID = snapshotIDArg;
       in = null;
       currentRangeIndex = 0;
       atEnd = false;
@@ -105,6 +130,8 @@ public class KVSClient implements KVS {
         params = "startRow="+startRowArg;
       if (endRowExclusiveArg != null)
         params = (params.equals("") ? "" : (params+"&"))+"endRowExclusive="+endRowExclusiveArg;
+      if (snapshotID != null)
+        params = (params.equals("") ? "" : (params+"&"))+"snapshot="+snapshotID;
       return "http://"+getWorkerAddress(workerIndexArg)+"/data/"+tableNameArg+(params.equals("") ? "" : "?"+params);
     }
 
@@ -128,8 +155,11 @@ public class KVSClient implements KVS {
             URL url = new URI(ranges.elementAt(currentRangeIndex)).toURL();
             HttpURLConnection con = (HttpURLConnection)url.openConnection();
             con.setRequestMethod("GET");
+            con.setRequestProperty("Accept-Encoding", "gzip");
             con.connect();
             in = con.getInputStream();
+            if ("gzip".equalsIgnoreCase(con.getContentEncoding()))
+              in = new GZIPInputStream(in, 65536);
             Row r = fill();
             if (r != null) {
               nextRow = r;
@@ -150,49 +180,66 @@ public class KVSClient implements KVS {
       }
     }
 
-    synchronized Row fill() {
+    Row fill() {
+      lock.lock();
       try {
-        Row r = Row.readFrom(in);
-        return r;
+        return ImmutableRow.readFrom(in);
       } catch (Exception e) {
         return null;
+      } finally {
+        lock.unlock();
       }
     }
 
-    public synchronized Row next() {
-      if (atEnd)
-        return null;
-      Row r = nextRow;
-      nextRow = fill();
-      while ((nextRow == null) && !atEnd) {
-        currentRangeIndex ++;
-        openConnectionAndFill();
-      }
+    public Row next() {
+      lock.lock();
+      try {
+        if (atEnd)
+          return null;
+        Row r = nextRow;
+        nextRow = fill();
+        while ((nextRow == null) && !atEnd) {
+          currentRangeIndex ++;
+          openConnectionAndFill();
+        }
 
-      return r;
+        return r;
+      } finally {
+        lock.unlock();
+      }
     }
 
-    public synchronized boolean hasNext() {
-      return !atEnd;
+    public boolean hasNext() {
+      lock.lock();
+      try {
+        return !atEnd;
+      } finally {
+        lock.unlock();
+      }
     }
   }
 
-  synchronized void downloadWorkers() throws IOException {
-    String result = new String(HTTP.doRequest("GET", "http://"+coordinator+"/workers", null).body());
-    String[] pieces = result.split("\n");
-    int numWorkers = Integer.parseInt(pieces[0]);
-    if (numWorkers < 1)
-      throw new IOException("No active KVS workers");
-    if (pieces.length != (numWorkers+1))
-      throw new RuntimeException("Received truncated response when asking KVS coordinator for list of workers");
-    workers.clear();
-    for (int i=0; i<numWorkers; i++) {
-      String[] pcs = pieces[1+i].split(",");
-      workers.add(new WorkerEntry(pcs[1], pcs[0]));
-    }
-    Collections.sort(workers);
+  void downloadWorkers() throws IOException {
+    workersLock.lock();
+    try {
+      String result = new String(HTTP.doRequest("GET", "http://"+coordinator+"/workers", null).body());
+      String[] pieces = result.split("\n");
+      int numWorkers = Integer.parseInt(pieces[0]);
+      if (numWorkers < 1)
+        throw new IOException("No active KVS workers");
+      if (pieces.length != (numWorkers+1))
+        throw new RuntimeException("Received truncated response when asking KVS coordinator for list of workers");
+      workers.clear();
+      for (int i=0; i<numWorkers; i++) {
+        String[] pcs = pieces[1+i].split(",");
+        workers.add(new WorkerEntry(pcs[1], pcs[0]));
+      }
+      Collections.sort(workers);
 
-    haveWorkers = true;
+      haveWorkers = true;
+    } finally {
+      workersLock.unlock();
+    }
   }
 
   int workerIndexForKey(String key) {
@@ -223,20 +270,59 @@ public class KVSClient implements KVS {
     final String rowName;
     final String columnName;
     final byte[] value;
+    final int size;
 
     private RowEntry(String tableName, String rowName, String columnName, byte[] value) {
       this.tableName = tableName;
       this.rowName = rowName;
       this.columnName = columnName;
       this.value = value;
+      this.size = rowName.length() + columnName.length() + value.length + 16;
+    }
+  }
+
+  // Buffered entries are queued per destination worker. Each worker also remembers how large
+  // its batches may be: the batch size grows while the worker answers quickly and shrinks when
+  // it slows down or fails.
+  private static class WorkerBuffer {
+    final String address;
+    final ConcurrentLinkedQueue<RowEntry> queue = new ConcurrentLinkedQueue<>();
+    // Entries whose batch could not be delivered; they are resent before anything newer
+    final List<RowEntry> backlog = new ArrayList<>();
+    volatile int batchBytes = INITIAL_BATCH_BYTES;
+
+    WorkerBuffer(String address) {
+      this.address = address;
+    }
+
+    void recordBatch(int bytes, long latencyMillis) {
+      if (latencyMillis > TARGET_BATCH_LATENCY_MS)
+        batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes / 2);
+      else if ((latencyMillis < TARGET_BATCH_LATENCY_MS / 2) && (bytes >= batchBytes / 2))
+        batchBytes = Math.min(MAX_BATCH_BYTES, batchBytes * 2);
+    }
+
+    void recordFailure() {
+      batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes / 2);
     }
   }
 
-  private final ConcurrentLinkedQueue<RowEntry> putBuffer;
+  private final ConcurrentHashMap<String, WorkerBuffer> workerBuffers = new ConcurrentHashMap<>();
+  private final AtomicInteger bufferedEntries = new AtomicInteger();
+  private final AtomicLong bufferedBytes = new AtomicLong();
   private volatile int bufferSize;
+  private volatile long maxBufferBytes;
   private final Runnable flushTask;
+  private final ScheduledFuture<?> flushSchedule;
   private static final int DEFAULT_BUFFER_SIZE = 1000;
+  private static final long DEFAULT_BUFFER_BYTES = 16 * 1024 * 1024;
   private static final int DEFAULT_FLUSH_INTERVAL = 60;
+  private static final int INITIAL_BATCH_BYTES = 512 * 1024;
+  private static final int MIN_BATCH_BYTES = 32 * 1024;
+  private static final int MAX_BATCH_BYTES = 8 * 1024 * 1024;
+  private static final long TARGET_BATCH_LATENCY_MS = 250;
+  private static final int MAX_BATCH_RETRIES = 3;
+  private static final long RETRY_BACKOFF_MS = 100;
   private final ReentrantLock bufferLock = new ReentrantLock();
   /* configuration of the buffer */
   /////////////////////////////////
@@ -253,11 +339,11 @@ public class KVSClient implements KVS {
     haveWorkers = false;
 
     this.bufferSize = bufferSize;
-    this.putBuffer = new ConcurrentLinkedQueue<>();
+    this.maxBufferBytes = DEFAULT_BUFFER_BYTES;
 
     this.flushTask = () -> {
       try {
-        if (!putBuffer.isEmpty()) {
+        if (bufferedEntries.get() > 0) {
           flushPutBuffer();
         }
       } catch (Exception e) {
@@ -266,7 +352,7 @@ public class KVSClient implements KVS {
     };
 
     // 使用共享调度器
-    sharedScheduler.scheduleAtFixedRate(
+    this.flushSchedule = sharedScheduler.scheduleAtFixedRate(
             this.flushTask,
             flushIntervalSeconds,
             flushIntervalSeconds,
@@ -279,96 +365,174 @@ public class KVSClient implements KVS {
     bufferedPut(tableName, row, column, value.getBytes());
   }
 
+  // The buffer is bounded both by entry count and by bytes. The thread that crosses either bound
+  // flushes synchronously, and other producers that cross it meanwhile wait for the flush lock,
+  // so a slow or failing worker pushes back on producers instead of growing the buffer. Entries
+  // that a worker did not take stay in the buffer and count against both bounds; while they fill
+  // it, a put first retries them, and if they still cannot be delivered the new entry is refused
+  // with an IOException, so a worker that stays down cannot make the backlog grow without bound.
   public void bufferedPut(String tableName, String row, String column, byte[] value) throws IOException {
     if (!haveWorkers) {
       downloadWorkers();
     }
-    putBuffer.offer(new RowEntry(tableName, row, column, value));
-    if (putBuffer.size() >= bufferSize) {
+    RowEntry entry = new RowEntry(tableName, row, column, value);
+    if (bufferFull()) {
+      try {
+        flushPutBuffer();
+      } catch (IOException e) {
+        if (bufferFull()) {
+          throw new IOException("Put buffer is full of entries that could not be delivered; not buffering "+row+"/"+column, e);
+        }
+      }
+    }
+    workerBuffers.computeIfAbsent(workers.elementAt(workerIndexForKey(row)).address, WorkerBuffer::new)
+            .queue.offer(entry);
+    int entries = bufferedEntries.incrementAndGet();
+    long bytes = bufferedBytes.addAndGet(entry.size);
+    if ((entries >= bufferSize) || (bytes >= maxBufferBytes)) {
       flushPutBuffer();
     }
   }
 
-  // Flush buffer to workers
+  private boolean bufferFull() {
+    return (bufferedEntries.get() >= bufferSize) || (bufferedBytes.get() >= maxBufferBytes);
+  }
+
+  // Flush buffer to workers. All workers are flushed in parallel; if a batch still fails after
+  // retrying, its entries are kept for the next flush and the failure is reported to the caller.
   public void flushPutBuffer() throws IOException {
     bufferLock.lock();
-      try {
-          if (putBuffer.isEmpty()) {
-            return;
-          }
-
-          if (!haveWorkers) {
-            downloadWorkers();
-          }
+    try {
+      if (bufferedEntries.get() == 0) {
+        return;
+      }
 
-          final int BATCH_SIZE = 100;
-          List<RowEntry> currentBatch = new ArrayList<>(BATCH_SIZE);
-          Map<String, Map<String, List<Row>>> workerTableRows = new HashMap<>();
+      if (!haveWorkers) {
+        downloadWorkers();
+      }
 
-          while (!putBuffer.isEmpty()) {
-            RowEntry entry = putBuffer.poll();
-            if (entry != null) {
-              currentBatch.add(entry);
+      List<CompletableFuture<Void>> flushes = new ArrayList<>();
+      for (WorkerBuffer worker : workerBuffers.values()) {
+        List<RowEntry> entries = drain(worker);
+        if (!entries.isEmpty()) {
+          flushes.add(CompletableFuture.runAsync(() -> sendToWorker(worker, entries), asyncExecutor));
+        }
+      }
 
-              if (currentBatch.size() >= BATCH_SIZE) {
-                processBatch(currentBatch, workerTableRows);
-                currentBatch.clear();
-              }
-            }
+      IOException failure = null;
+      for (CompletableFuture<Void> flush : flushes) {
+        try {
+          flush.join();
+        } catch (CompletionException e) {
+          if (failure == null) {
+            failure = (e.getCause() instanceof UncheckedIOException) ? ((UncheckedIOException) e.getCause()).getCause() : new IOException(e.getCause());
           }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      bufferLock.unlock();
+    }
+  }
 
-          if (!currentBatch.isEmpty()) {
-            processBatch(currentBatch, workerTableRows);
-          }
+  private List<RowEntry> drain(WorkerBuffer worker) {
+    List<RowEntry> entries = new ArrayList<>(worker.backlog);
+    worker.backlog.clear();
+    RowEntry entry;
+    while ((entry = worker.queue.poll()) != null) {
+      entries.add(entry);
+    }
+    for (RowEntry e : entries) {
+      bufferedEntries.decrementAndGet();
+      bufferedBytes.addAndGet(-e.size);
+    }
+    return entries;
+  }
 
-          for (Map.Entry<String, Map<String, List<Row>>> workerEntry : workerTableRows.entrySet()) {
-            String workerAddress = workerEntry.getKey();
-            Map<String, List<Row>> tableRows = workerEntry.getValue();
+  private void sendToWorker(WorkerBuffer worker, List<RowEntry> entries) {
+    Map<String, List<RowEntry>> tableEntries = new LinkedHashMap<>();
+    for (RowEntry entry : entries) {
+      tableEntries.computeIfAbsent(entry.tableName, k -> new ArrayList<>()).add(entry);
+    }
 
-            for (Map.Entry<String, List<Row>> tableEntry : tableRows.entrySet()) {
-              String tableName = tableEntry.getKey();
-              List<Row> rows = tableEntry.getValue();
-              sendBatchToWorker(workerAddress, tableName, rows);
-            }
-          }
-      } catch (IOException e) {
-          throw new RuntimeException(e);
-      } finally {
-        bufferLock.unlock();
+    List<RowEntry> undelivered = null;
+    for (List<RowEntry> tableList : tableEntries.values()) {
+      if (undelivered != null) {
+        undelivered.addAll(tableList);
+        continue;
       }
-  }
-
-  // Send batched rows to a worker
-  private void sendBatchToWorker(String workerAddress, String tableName, List<Row> rows) {
-    try {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      for (Row row : rows) {
-        baos.write(row.toByteArray());
-        baos.write('\n');
+      int start = 0;
+      while (start < tableList.size()) {
+        int end = start, bytes = 0;
+        int limit = worker.batchBytes;
+        while ((end < tableList.size()) && ((end == start) || (bytes + tableList.get(end).size <= limit))) {
+          bytes += tableList.get(end).size;
+          end++;
+        }
+        if (!sendBatchToWorker(worker, tableList.get(start).tableName, tableList.subList(start, end), bytes)) {
+          undelivered = new ArrayList<>(tableList.subList(start, tableList.size()));
+          break;
+        }
+        start = end;
       }
+    }
 
-      String target = String.format("http://%s/data/put-rows/%s", workerAddress, tableName);
-      HTTP.Response response = HTTP.doRequest("PUT", target, baos.toByteArray());
+    if (undelivered != null) {
+      // Only this flush's thread touches the backlog of this worker, under bufferLock
+      worker.backlog.addAll(undelivered);
+      for (RowEntry e : undelivered) {
+        bufferedEntries.incrementAndGet();
+        bufferedBytes.addAndGet(e.size);
+      }
+      throw new UncheckedIOException(new IOException("Failed to send "+undelivered.size()+" buffered entries to worker "+worker.address));
+    }
+  }
 
-      if (response.statusCode() != 200) {
-        logger.error("Failed to send batch to worker: " + target);
+  // Send batched rows to a worker, retrying with exponential backoff
+  private boolean sendBatchToWorker(WorkerBuffer worker, String tableName, List<RowEntry> batch, int batchBytes) {
+    byte[] body = encodeBatch(batch);
+    String target = String.format("http://%s/data/put-rows/%s", worker.address, tableName);
+    for (int attempt = 0; attempt <= MAX_BATCH_RETRIES; attempt++) {
+      if (attempt > 0) {
+        try {
+          Thread.sleep(RETRY_BACKOFF_MS << (attempt - 1));
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
       }
-    } catch (Exception e) {
-      logger.error("Error sending batch to worker: " + workerAddress, e);
+      try {
+        long startTime = System.currentTimeMillis();
+        HTTP.Response response = HTTP.doRequest("PUT", target, body);
+        if ((response != null) && (response.statusCode() == 200) && "OK".equals(new String(response.body()))) {
+          worker.recordBatch(batchBytes, System.currentTimeMillis() - startTime);
+          return true;
+        }
+        logger.error("Failed to send batch to worker: " + target + " (attempt " + (attempt + 1) + ")");
+      } catch (Exception e) {
+        logger.error("Error sending batch to worker: " + worker.address + " (attempt " + (attempt + 1) + ")", e);
+      }
+      worker.recordFailure();
     }
+    return false;
   }
 
-  private void processBatch(List<RowEntry> batch, Map<String, Map<String, List<Row>>> workerTableRows) {
+  // Entries for the same row are merged into a single multi-column Row, so that the worker
+  // does one merge per row rather than one per column. Later entries win for the same column.
+  private byte[] encodeBatch(List<RowEntry> batch) {
+    Map<String, Row> rows = new LinkedHashMap<>();
     for (RowEntry entry : batch) {
-      String workerAddress = workers.elementAt(workerIndexForKey(entry.rowName)).address;
-      Row row = new Row(entry.rowName);
-      row.put(entry.columnName, entry.value);
+      rows.computeIfAbsent(entry.rowName, Row::new).put(entry.columnName, entry.value);
+    }
 
-      workerTableRows
-              .computeIfAbsent(workerAddress, k -> new HashMap<>())
-              .computeIfAbsent(entry.tableName, k -> new ArrayList<>())
-              .add(row);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    for (Row row : rows.values()) {
+      baos.writeBytes(row.toByteArray());
+      baos.write('\n');
     }
+    return baos.toByteArray();
   }
 
   // Adjust buffer size
@@ -378,8 +542,15 @@ public class KVSClient implements KVS {
     }
   }
 
+  public void setMaxBufferBytes(long newMaxBytes) {
+    if (newMaxBytes > 0) {
+      this.maxBufferBytes = newMaxBytes;
+    }
+  }
+
   // Shutdown scheduler
   public void closeBuffer() {
+    flushSchedule.cancel(false);
     try {
       flushPutBuffer();
     } catch (IOException e) {
@@ -402,6 +573,154 @@ public class KVSClient implements KVS {
   /* Class builder with the buffer */
   ///////////////////////////////////
 
+  //////////////////////////
+  /* Asynchronous KVS API */
+
+  // The async calls go through a shared java.net.http.HttpClient, which keeps a pool of
+  // keep-alive connections per worker. The webserver dedicates a handler thread to each open
+  // connection, so we cap the number of in-flight requests per worker; anything beyond the
+  // cap waits in a queue instead of opening yet another connection.
+  private static final int MAX_IN_FLIGHT_PER_WORKER = 32;
+  private static final int ASYNC_TIMEOUT_SECONDS = 60;
+
+  private static final ExecutorService asyncExecutor = Executors.newCachedThreadPool(
+          r -> {
+            Thread t = new Thread(r, "KVS-Async");
+            t.setDaemon(true);
+            return t;
+          }
+  );
+
+  private static final HttpClient httpClient = HttpClient.newBuilder()
+          .version(HttpClient.Version.HTTP_1_1)
+          .connectTimeout(Duration.ofSeconds(10))
+          .executor(asyncExecutor)
+          .build();
+
+  private static class WorkerChannel {
+    private final Semaphore permits = new Semaphore(MAX_IN_FLIGHT_PER_WORKER);
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> call) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      waiting.offer(() -> {
+        CompletableFuture<T> started;
+        try {
+          started = call.get();
+        } catch (RuntimeException e) {
+          result.completeExceptionally(e);
+          throw e;
+        }
+        started.whenComplete((value, error) -> {
+          permits.release();
+          drain();
+          if (error != null)
+            result.completeExceptionally(error);
+          else
+            result.complete(value);
+        });
+      });
+      drain();
+      return result;
+    }
+
+    private void drain() {
+      while (!waiting.isEmpty() && permits.tryAcquire()) {
+        Runnable next = waiting.poll();
+        if (next == null) {
+          permits.release();
+          return;
+        }
+        try {
+          next.run();
+        } catch (Exception e) {
+          permits.release();
+          logger.error("Error starting asynchronous KVS request", e);
+        }
+      }
+    }
+  }
+
+  private final ConcurrentHashMap<String, WorkerChannel> workerChannels = new ConcurrentHashMap<>();
+
+  private CompletableFuture<HttpResponse<byte[]>> sendAsync(String workerAddress, String method, String target, byte[] body) {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(target))
+            .timeout(Duration.ofSeconds(ASYNC_TIMEOUT_SECONDS))
+            .method(method, (body == null) ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body))
+            .build();
+    return workerChannels.computeIfAbsent(workerAddress, k -> new WorkerChannel())
+            .submit(() -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()));
+  }
+
+  private CompletableFuture<Void> ensureWorkersAsync() {
+    if (haveWorkers)
+      return CompletableFuture.completedFuture(null);
+    return CompletableFuture.runAsync(() -> {
+      try {
+        downloadWorkers();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, asyncExecutor);
+  }
+
+  private String rowURL(String tableName, String row) {
+    return "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+URLEncoder.encode(row, StandardCharsets.UTF_8);
+  }
+
+  public CompletableFuture<Void> putAsync(String tableName, String row, String column, String value) {
+    return putAsync(tableName, row, column, value.getBytes());
+  }
+
+  public CompletableFuture<Void> putAsync(String tableName, String row, String column, byte[] value) {
+    return ensureWorkersAsync().thenCompose(v -> {
+      String address = workers.elementAt(workerIndexForKey(row)).address;
+      String target = rowURL(tableName, row) + "/" + URLEncoder.encode(column, StandardCharsets.UTF_8);
+      return sendAsync(address, "PUT", target, value);
+    }).thenApply(resp -> {
+      String result = new String(resp.body());
+      if (!result.equals("OK"))
+        throw new RuntimeException("PUT returned something other than OK: " + result);
+      return null;
+    });
+  }
+
+  public CompletableFuture<Row> getRowAsync(String tableName, String row) {
+    return ensureWorkersAsync().thenCompose(v ->
+            sendAsync(workers.elementAt(workerIndexForKey(row)).address, "GET", rowURL(tableName, row), null)
+    ).thenApply(resp -> {
+      if (resp.statusCode() == 404)
+        return null;
+      try {
+        return Row.readFrom(new ByteArrayInputStream(resp.body()));
+      } catch (Exception e) {
+        throw new RuntimeException("Decoding error while reading Row from getRowAsync() URL", e);
+      }
+    });
+  }
+
+  public CompletableFuture<Boolean> existsRowAsync(String tableName, String row) {
+    return ensureWorkersAsync().thenCompose(v ->
+            sendAsync(workers.elementAt(workerIndexForKey(row)).address, "GET", rowURL(tableName, row) + "?exists", null)
+    ).thenApply(resp -> resp.statusCode() == 200);
+  }
+
+  // Fetches all the given rows concurrently; rows that do not exist are left out of the result.
+  public CompletableFuture<Map<String, Row>> multiGetAsync(String tableName, Collection<String> rows) {
+    Map<String, Row> results = new ConcurrentHashMap<>();
+    List<CompletableFuture<Void>> pending = new ArrayList<>(rows.size());
+    for (String row : new HashSet<>(rows)) {
+      pending.add(getRowAsync(tableName, row).thenAccept(r -> {
+        if (r != null)
+          results.put(row, r);
+      }));
+    }
+    return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(v -> results);
+  }
+
+  /* Asynchronous KVS API */
+  //////////////////////////
+
   public boolean rename(String oldTableName, String newTableName) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
@@ -418,6 +737,24 @@ public class KVSClient implements KVS {
     return result;
   }
 
+  // Copies the table on every worker, without moving any rows over the network. Workers that
+  // do not have the table have nothing to copy; returns false if any worker refused the copy.
+  public boolean copyTable(String tableName, String newTableName) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+    for (WorkerEntry w : workers)
+      responses.add(sendAsync(w.address, "PUT", "http://"+w.address+"/copy/"+URLEncoder.encode(tableName, "UTF-8"), newTableName.getBytes()));
+
+    boolean result = true;
+    for (CompletableFuture<HttpResponse<byte[]>> f : responses) {
+      HttpResponse<byte[]> r = awaitResponse(f);
+      result &= (r.statusCode() == 200) || (r.statusCode() == 404);
+    }
+    return result;
+  }
+
   public void delete(String oldTableName) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
@@ -430,26 +767,69 @@ public class KVSClient implements KVS {
     }
   }
 
-  public synchronized void put(String tableName, String row, String column, byte[] value) throws IOException {
+  public boolean deleteRow(String tableName, String row) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    HTTP.Response r = HTTP.doRequest("PUT", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/delete-row/"+tableName+"/"+URLEncoder.encode(row, "UTF-8"), null);
+    return (r != null) && (r.statusCode() == 200);
+  }
+
+  // Deletes the rows with startRow <= key < endRowExclusive on all workers in parallel; either
+  // bound may be null. Returns the number of rows that were deleted.
+  public int deleteRange(String tableName, String startRow, String endRowExclusive) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    synchronized (this) {
-      String target = "http://"+workers.elementAt(workerIndexForKey(row)).address
-              + "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8")
-              + "/" + URLEncoder.encode(column, "UTF-8");
+    String params = "";
+    if (startRow != null)
+      params = "startRow="+URLEncoder.encode(startRow, "UTF-8");
+    if (endRowExclusive != null)
+      params = (params.equals("") ? "" : (params+"&"))+"endRowExclusive="+URLEncoder.encode(endRowExclusive, "UTF-8");
 
-//      logger.info("Thread-" + Thread.currentThread().threadId() + " Putting to KVS: Table=" + tableName +
-//              ", Row=" + row + ", Column=" + column + ", Value=" + new String(value));
-      try {
-        byte[] response = HTTP.doRequest("PUT", target, value).body();
-        String result = new String(response);
-        if (!result.equals("OK")) {
-          throw new RuntimeException("PUT returned something other than OK: " + result);
-        }
-      } catch (UnsupportedEncodingException uee) {
-        throw new RuntimeException("UTF-8 encoding not supported?!?");
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+    for (WorkerEntry w : workers)
+      responses.add(sendAsync(w.address, "PUT", "http://"+w.address+"/delete-range/"+tableName+(params.equals("") ? "" : "?"+params), null));
+
+    int total = 0;
+    for (CompletableFuture<HttpResponse<byte[]>> f : responses) {
+      HttpResponse<byte[]> r = awaitResponse(f);
+      if (r.statusCode() == 200)
+        total += Integer.parseInt(new String(r.body()));
+    }
+    return total;
+  }
+
+  // Removes all rows but keeps the (now empty) table
+  public void truncate(String tableName) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+    for (WorkerEntry w : workers)
+      responses.add(sendAsync(w.address, "PUT", "http://"+w.address+"/truncate/"+tableName, null));
+    for (CompletableFuture<HttpResponse<byte[]>> f : responses)
+      awaitResponse(f);
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    String target = "http://"+workers.elementAt(workerIndexForKey(row)).address
+            + "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8")
+            + "/" + URLEncoder.encode(column, "UTF-8");
+
+//    logger.info("Thread-" + Thread.currentThread().threadId() + " Putting to KVS: Table=" + tableName +
+//            ", Row=" + row + ", Column=" + column + ", Value=" + new String(value));
+    try {
+      byte[] response = HTTP.doRequest("PUT", target, value).body();
+      String result = new String(response);
+      if (!result.equals("OK")) {
+        throw new RuntimeException("PUT returned something other than OK: " + result);
       }
+    } catch (UnsupportedEncodingException uee) {
+      throw new RuntimeException("UTF-8 encoding not supported?!?");
     }
   }
 
@@ -499,21 +879,140 @@ public class KVSClient implements KVS {
     return r.statusCode() == 200;
   }
 
+  // Asks all workers at once and adds up their row counts
   public int count(String tableName) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+    for (WorkerEntry w : workers)
+      responses.add(sendAsync(w.address, "GET", "http://"+w.address+"/count/"+tableName, null));
+
     int total = 0;
-    for (WorkerEntry w : workers) {
-      HTTP.Response r = HTTP.doRequest("GET", "http://"+w.address+"/count/"+tableName, null);
-      if ((r != null) && (r.statusCode() == 200)) {
-        String result = new String(r.body());
-        total += Integer.valueOf(result).intValue();
+    for (CompletableFuture<HttpResponse<byte[]>> f : responses) {
+      HttpResponse<byte[]> r = awaitResponse(f);
+      if (r.statusCode() == 200)
+        total += Integer.valueOf(new String(r.body())).intValue();
+    }
+    return total;
+  }
+
+  // Fetches the statistics that each worker maintains for its part of the table, in parallel,
+  // and combines them; returns null if no worker has the table
+  public TableStats stats(String tableName) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+    for (WorkerEntry w : workers)
+      responses.add(sendAsync(w.address, "GET", "http://"+w.address+"/stats/"+tableName, null));
+
+    TableStats total = null;
+    for (CompletableFuture<HttpResponse<byte[]>> f : responses) {
+      HttpResponse<byte[]> r = awaitResponse(f);
+      if (r.statusCode() == 200) {
+        try {
+          TableStats workerStats = TableStats.fromBytes(r.body());
+          if (total == null)
+            total = workerStats;
+          else
+            total.merge(workerStats);
+        } catch (Exception e) {
+          throw new IOException("Decoding error while reading table statistics", e);
+        }
       }
     }
     return total;
   }
 
+  private static HttpResponse<byte[]> awaitResponse(CompletableFuture<HttpResponse<byte[]>> f) throws IOException {
+    try {
+      return f.join();
+    } catch (CompletionException e) {
+      throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+  }
+
+  // Declares a secondary index on the column; each worker fills it from the rows it already has
+  // and keeps it up to date on every write from then on
+  public void createIndex(String tableName, String column) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+    for (WorkerEntry w : workers)
+      responses.add(sendAsync(w.address, "PUT", "http://"+w.address+"/index/"+tableName, column.getBytes()));
+    for (CompletableFuture<HttpResponse<byte[]>> f : responses) {
+      HttpResponse<byte[]> r = awaitResponse(f);
+      if (r.statusCode() != 200)
+        throw new IOException("Creating index on "+tableName+"."+column+" failed: "+new String(r.body()));
+    }
+  }
+
+  public void dropIndex(String tableName, String column) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+    for (WorkerEntry w : workers)
+      responses.add(sendAsync(w.address, "PUT", "http://"+w.address+"/drop-index/"+tableName, column.getBytes()));
+    for (CompletableFuture<HttpResponse<byte[]>> f : responses)
+      awaitResponse(f);
+  }
+
+  // Keys of all rows whose column holds exactly the value, in sorted order. The column must
+  // have been indexed with createIndex().
+  public List<String> lookupKeys(String tableName, String column, String value) throws IOException {
+    List<String> keys = new ArrayList<>();
+    for (byte[] body : lookup(tableName, column, value, false))
+      for (String key : new String(body, StandardCharsets.UTF_8).split("\n"))
+        if (!key.isEmpty())
+          keys.add(key);
+    Collections.sort(keys);
+    return keys;
+  }
+
+  // Like lookupKeys(), but returns the rows themselves, still with one request per worker
+  public List<Row> lookupRows(String tableName, String column, String value) throws IOException {
+    List<Row> rows = new ArrayList<>();
+    for (byte[] body : lookup(tableName, column, value, true)) {
+      InputStream in = new ByteArrayInputStream(body);
+      try {
+        Row row;
+        while ((row = ImmutableRow.readFrom(in)) != null)
+          rows.add(row);
+      } catch (Exception e) {
+        throw new IOException("Decoding error while reading rows from index lookup", e);
+      }
+    }
+    rows.sort(Comparator.comparing(Row::key));
+    return rows;
+  }
+
+  // Each worker indexes only its own rows, so all workers are asked in parallel
+  private List<byte[]> lookup(String tableName, String column, String value, boolean rows) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    String params = "column="+URLEncoder.encode(column, "UTF-8")+"&value="+URLEncoder.encode(value, "UTF-8")+(rows ? "&rows=true" : "");
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+    for (WorkerEntry w : workers)
+      responses.add(sendAsync(w.address, "GET", "http://"+w.address+"/lookup/"+tableName+"?"+params, null));
+
+    List<byte[]> bodies = new ArrayList<>();
+    boolean indexed = false;
+    for (CompletableFuture<HttpResponse<byte[]>> f : responses) {
+      HttpResponse<byte[]> r = awaitResponse(f);
+      if (r.statusCode() == 200) {
+        indexed = true;
+        bodies.add(r.body());
+      }
+    }
+    if (!indexed)
+      throw new IOException("Column "+column+" of table "+tableName+" is not indexed");
+    return bodies;
+  }
+
   public void persist(String tableName) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
@@ -522,6 +1021,50 @@ public class KVSClient implements KVS {
       HTTP.doRequest("PUT", "http://"+w.address+"/persist/"+tableName, null);
   }
 
+  // Creates an in-memory table that uses the compact storage layout on every worker, which
+  // needs much less heap for tables with many small rows
+  public void createCompactTable(String tableName) throws IOException {
+    createTable(tableName, TablePolicy.builder().storage(TablePolicy.Storage.COMPACT).build());
+  }
+
+  // Creates the table on every worker with the given storage policy, e.g. fast in-memory
+  // storage for intermediate results or fsync'ed, compressed files for final output
+  public void createTable(String tableName, TablePolicy policy) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    for (WorkerEntry w : workers) {
+      HTTP.Response r = HTTP.doRequest("PUT", "http://"+w.address+"/persist/"+tableName+"?"+policy.toQueryString(), null);
+      if (r.statusCode() == 400)
+        throw new IOException("Worker "+w.id+" rejected the policy for table "+tableName+": "+new String(r.body()));
+    }
+  }
+
+  // Backs up the persistent tables of every worker to backups/<backupID> in its storage
+  // directory, incrementally on top of each worker's newest backup unless full is set
+  public void backup(String backupID, boolean full) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    for (WorkerEntry w : workers) {
+      HTTP.Response r = HTTP.doRequest("PUT", "http://"+w.address+"/backup/"+backupID+(full ? "?full=true" : ""), null);
+      if (r.statusCode() != 200)
+        throw new IOException("Backup "+backupID+" failed on worker "+w.id+": "+new String(r.body()));
+    }
+  }
+
+  // Restores, on every worker, the tables of backups/<backupID> that the worker does not have
+  public void restore(String backupID) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    for (WorkerEntry w : workers) {
+      HTTP.Response r = HTTP.doRequest("PUT", "http://"+w.address+"/restore/"+backupID, null);
+      if (r.statusCode() != 200)
+        throw new IOException("Restore of "+backupID+" failed on worker "+w.id+": "+new String(r.body()));
+    }
+  }
+
   public Iterator<Row> scan(String tableName) throws FileNotFoundException, IOException {
     return scan(tableName, null, null);
   }
@@ -533,12 +1076,63 @@ public class KVSClient implements KVS {
     return new KVSIterator(tableName, startRow, endRowExclusive);
   }
 
+  // A consistent view of a table for scanning while other clients keep writing to it. Each
+  // worker freezes its part of the table when the snapshot is opened; the parts are opened in
+  // parallel but not at one global instant. Close the snapshot when done with it.
+  public class Snapshot implements AutoCloseable {
+    private final String tableName;
+    private final String id;
+
+    private Snapshot(String tableName, String id) {
+      this.tableName = tableName;
+      this.id = id;
+    }
+
+    public String getTableName() {
+      return tableName;
+    }
+
+    public String getID() {
+      return id;
+    }
+
+    public Iterator<Row> scan() throws IOException {
+      return scan(null, null);
+    }
+
+    public Iterator<Row> scan(String startRow, String endRowExclusive) throws IOException {
+      return new KVSIterator(tableName, startRow, endRowExclusive, id);
+    }
+
+    public void close() throws IOException {
+      List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+      for (WorkerEntry w : workers)
+        responses.add(sendAsync(w.address, "PUT", "http://"+w.address+"/release-snapshot/"+tableName+"/"+id, null));
+      for (CompletableFuture<HttpResponse<byte[]>> f : responses)
+        awaitResponse(f);
+    }
+  }
+
+  public Snapshot snapshot(String tableName) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    Snapshot snapshot = new Snapshot(tableName, UUID.randomUUID().toString().replace("-", ""));
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+    for (WorkerEntry w : workers)
+      responses.add(sendAsync(w.address, "PUT", "http://"+w.address+"/snapshot/"+tableName+"/"+snapshot.getID(), null));
+    for (CompletableFuture<HttpResponse<byte[]>> f : responses)
+      awaitResponse(f);
+    return snapshot;
+  }
+
   public static void main(String args[]) throws Exception {
   	if (args.length < 2) {
       System.err.println("Syntax: client <coordinator> get <tableName> <row> <column>");
   		System.err.println("Syntax: client <coordinator> put <tableName> <row> <column> <value>");
       System.err.println("Syntax: client <coordinator> scan <tableName>");
       System.err.println("Syntax: client <coordinator> delete <tableName>");
+      System.err.println("Syntax: client <coordinator> truncate <tableName>");
       System.err.println("Syntax: client <coordinator> rename <oldTableName> <newTableName>");
   		System.exit(1);
   	}
@@ -581,6 +1175,14 @@ public class KVSClient implements KVS {
 
       client.delete(args[2]);
       System.err.println("Table '"+args[2]+"' deleted");
+    } else if (args[1].equals("truncate")) {
+      if (args.length != 3) {
+        System.err.println("Syntax: client <coordinator> truncate <tableName>");
+        System.exit(1);
+      }
+
+      client.truncate(args[2]);
+      System.err.println("Table '"+args[2]+"' truncated");
     } else if (args[1].equals("rename")) {
       if (args.length != 4) {
         System.err.println("Syntax: client <coordinator> rename <oldTableName> <newTableName>");
@@ -3,25 +3,71 @@ package cis5550.kvs;
 import cis5550.tools.Logger;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 public class PersistentTable {
     private String name;
-    private Path tablePath;
+    private volatile Path tablePath;
     private RandomAccessFile tableFile;
-    private long newRowStartPosition;
-    private ConcurrentHashMap<String, Long> rowIndexMap;
-    private BufferedOutputStream bops;
-    private final PersistentTablePool tablePool;
+    private volatile long newRowStartPosition;
+    private volatile ConcurrentHashMap<String, Long> rowIndexMap;
+    private volatile PersistentTablePool tablePool;
+    // Records in the file that are no longer reachable: overwritten rows, deleted rows and tombstones
+    private volatile long deadRecords;
+    // Total length of the keys in the index, for estimating its memory use
+    private volatile long indexedKeyChars;
+    private boolean deleted;
+    // While snapshots are open, every position that is overwritten or deleted is remembered
+    // here, so that a snapshot can still find the version of a row that it is supposed to see.
+    // Each entry is pairs of positions: the old version, and the write or tombstone that
+    // superseded it.
+    private volatile int openSnapshots;
+    private final ConcurrentHashMap<String, long[]> supersededPositions = new ConcurrentHashMap<>();
+    // The table lock, which the public methods take. Reads and writes block on the disk while
+    // holding it, so it is not the object's monitor: a virtual thread that blocks in a monitor
+    // keeps its carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
     private final ReentrantLock fileLock = new ReentrantLock();
+    // Set from the table's policy
+    private volatile boolean compressRows;
+    private volatile boolean syncWrites;
+    // Recently read rows, for tables with CACHED storage; guarded by the table lock
+    private LinkedHashMap<String, Row> rowCache;
+    private volatile long rowCacheHits;
+    private volatile long rowCacheMisses;
 
     private final byte[] ROW_SEPARATOR = "\n".getBytes(StandardCharsets.UTF_8);
+    // A deleted row is recorded by appending a tombstone: a row whose only column is this one
+    static final String TOMBSTONE_COLUMN = "__deleted";
+    // A compressed row is stored as a row whose only column is this one, holding the deflated
+    // record of the original row. Readers recognize it by the column, so a file may mix
+    // compressed and plain records, e.g. after the policy of a table was changed.
+    static final String DEFLATED_COLUMN = "__deflated";
+    private static final long MIN_DEAD_RECORDS_FOR_COMPACTION = 1000;
+    // Approximate heap cost of one index entry apart from the key's characters: the map node,
+    // its share of the bucket array, the Long position and the String and array headers
+    private static final int INDEX_ENTRY_BYTES = 100;
     private final Logger logger = Logger.getLogger(PersistentTable.class);
 
     public PersistentTable(String path) throws FileNotFoundException {
@@ -29,53 +75,198 @@ public class PersistentTable {
         this.tableFile = new RandomAccessFile(path, "rw");
         this.newRowStartPosition = 0;
         this.rowIndexMap = new ConcurrentHashMap<>();
-        this.bops = new BufferedOutputStream(new FileOutputStream(path));
         this.tablePool = new PersistentTablePool(path, 1000);
     }
 
-    public synchronized void putRow(String key, Row row) throws IOException {
-        RandomAccessFile raf = null;
-        fileLock.lock();
+    public void applyPolicy(TablePolicy policy) {
+        lock.lock();
         try {
-            raf = tablePool.acquireForWrite(tablePath.getFileName().toString());
-            long rowPosition = newRowStartPosition;
-            raf.seek(newRowStartPosition);
-            byte[] rowData = row.toByteArray();
-            raf.write(rowData);
-            raf.write(ROW_SEPARATOR);
-            newRowStartPosition = raf.getFilePointer();
-            rowIndexMap.put(key, rowPosition);
-        } finally {
-            if (raf != null) {
-                tablePool.release(tablePath.getFileName().toString(), raf, false);
+            compressRows = (policy.compression() == TablePolicy.Compression.DEFLATE);
+            syncWrites = (policy.fsync() == TablePolicy.Fsync.ALWAYS);
+            if ((policy.storage() == TablePolicy.Storage.CACHED) && (policy.cacheRows() > 0)) {
+                int capacity = policy.cacheRows();
+                rowCache = new LinkedHashMap<>(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(Map.Entry<String, Row> eldest) {
+                        return size() > capacity;
+                    }
+                };
+            } else {
+                rowCache = null;
             }
-            fileLock.unlock();
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void putRows(List<Row> rowList) throws IOException {
-        fileLock.lock();
-        RandomAccessFile raf = null;
+    // Opens a table file that was assembled from a backup or built offline. The index comes
+    // with it, so unlike recoverTable() this does not have to read the file.
+    static PersistentTable attach(String path, Map<String, Long> index, long deadRecords) throws IOException {
+        PersistentTable table = new PersistentTable(path);
+        table.rowIndexMap = new ConcurrentHashMap<>(index);
+        table.newRowStartPosition = table.tableFile.length();
+        table.deadRecords = deadRecords;
+        for (String key : index.keySet()) {
+            table.indexedKeyChars += key.length();
+        }
+        return table;
+    }
+
+    public void putRow(String key, Row row) throws IOException {
+        lock.lock();
         try {
-            raf = tablePool.acquireForWrite(tablePath.getFileName().toString());
-            for (Row row : rowList) {
+            RandomAccessFile raf = null;
+            fileLock.lock();
+            try {
+                raf = tablePool.acquireForWrite(tablePath.getFileName().toString());
                 long rowPosition = newRowStartPosition;
-                byte[] rowData = row.toByteArray();
                 raf.seek(newRowStartPosition);
+                byte[] rowData = encode(row);
                 raf.write(rowData);
                 raf.write(ROW_SEPARATOR);
                 newRowStartPosition = raf.getFilePointer();
-                rowIndexMap.put(row.key(), rowPosition);
+                indexRow(key, rowPosition);
+                sync(raf);
+            } finally {
+                if (raf != null) {
+                    tablePool.release(tablePath.getFileName().toString(), raf, false);
+                }
+                fileLock.unlock();
             }
         } finally {
-            if (raf != null) {
-                tablePool.release(tablePath.getFileName().toString(), raf, false);
+            lock.unlock();
+        }
+    }
+
+    public void putRows(List<Row> rowList) throws IOException {
+        lock.lock();
+        try {
+            fileLock.lock();
+            RandomAccessFile raf = null;
+            try {
+                raf = tablePool.acquireForWrite(tablePath.getFileName().toString());
+                for (Row row : rowList) {
+                    long rowPosition = newRowStartPosition;
+                    byte[] rowData = encode(row);
+                    raf.seek(newRowStartPosition);
+                    raf.write(rowData);
+                    raf.write(ROW_SEPARATOR);
+                    newRowStartPosition = raf.getFilePointer();
+                    indexRow(row.key(), rowPosition);
+                }
+                sync(raf);
+            } finally {
+                if (raf != null) {
+                    tablePool.release(tablePath.getFileName().toString(), raf, false);
+                }
+                fileLock.unlock();
             }
-            fileLock.unlock();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sync(RandomAccessFile raf) throws IOException {
+        if (syncWrites) {
+            raf.getChannel().force(false);
+        }
+    }
+
+    private byte[] encode(Row row) throws IOException {
+        return encodeRecord(row, compressRows);
+    }
+
+    // The bytes to append for the row: its record, or a smaller compressed one
+    static byte[] encodeRecord(Row row, boolean compress) throws IOException {
+        byte[] rowData = row.toByteArray();
+        if (!compress) {
+            return rowData;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(rowData.length / 2);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+            out.write(rowData);
+        } finally {
+            deflater.end();
         }
+        Row compressed = new Row(row.key());
+        compressed.put(DEFLATED_COLUMN, bytes.toByteArray());
+        byte[] compressedData = compressed.toByteArray();
+        // Short rows can grow when compressed
+        return (compressedData.length < rowData.length) ? compressedData : rowData;
     }
 
-    public synchronized Row getRow(String key) throws IOException {
+    static Row decode(Row row) throws Exception {
+        byte[] deflated;
+        if ((row == null) || (row.columns().size() != 1) || ((deflated = row.getBytes(DEFLATED_COLUMN)) == null)) {
+            return row;
+        }
+        try (InputStream in = new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(deflated)), 512)) {
+            return ImmutableRow.readFrom(in);
+        }
+    }
+
+    private void indexRow(String key, long position) {
+        if (rowCache != null) {
+            rowCache.remove(key);
+        }
+        // Remembered before the index changes, since snapshots read both without the table lock
+        Long oldPosition = rowIndexMap.get(key);
+        if (oldPosition != null) {
+            rememberForSnapshots(key, oldPosition, position);
+            deadRecords++;
+        } else {
+            indexedKeyChars += key.length();
+        }
+        rowIndexMap.put(key, position);
+    }
+
+    private void unindexRow(String key, long tombstonePosition) {
+        if (rowCache != null) {
+            rowCache.remove(key);
+        }
+        Long oldPosition = rowIndexMap.get(key);
+        if (oldPosition != null) {
+            rememberForSnapshots(key, oldPosition, tombstonePosition);
+            rowIndexMap.remove(key);
+            deadRecords += 2;
+            indexedKeyChars -= key.length();
+        }
+    }
+
+    private void rememberForSnapshots(String key, long oldPosition, long supersededAt) {
+        if (openSnapshots > 0) {
+            supersededPositions.merge(key, new long[] { oldPosition, supersededAt }, (a, b) -> {
+                long[] c = Arrays.copyOf(a, a.length + 2);
+                c[a.length] = b[0];
+                c[a.length + 1] = b[1];
+                return c;
+            });
+        }
+    }
+
+    public Row getRow(String key) throws IOException {
+        lock.lock();
+        try {
+            if (rowCache == null) {
+                return readRow(key);
+            }
+            Row row = rowCache.get(key);
+            if (row != null) {
+                rowCacheHits++;
+                return row;
+            }
+            rowCacheMisses++;
+            row = readRow(key);
+            if (row != null) {
+                rowCache.put(key, row);
+            }
+            return row;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Row readRow(String key) throws IOException {
         Long position = rowIndexMap.get(key);
         if (position == null) {
             return null;
@@ -84,7 +275,7 @@ public class PersistentTable {
         try {
             raf = tablePool.acquireForRead(tablePath.getFileName().toString());
             raf.seek(position);
-            return Row.readFrom(raf);
+            return decode(ImmutableRow.readFrom(raf));
         } catch (Exception e) {
             logger.error("Error reading row", e);
             throw new IOException("Error reading row", e);
@@ -95,30 +286,410 @@ public class PersistentTable {
         }
     }
 
-    public synchronized void recoverTable() throws Exception {
-        while (this.tableFile.getFilePointer() < this.tableFile.length()) {
-            long index = this.tableFile.getFilePointer();
-            Row row = Row.readFrom(this.tableFile);
-            assert row != null;
-            this.rowIndexMap.put(row.key(), index);
+    public void recoverTable() throws Exception {
+        lock.lock();
+        try {
+            while (this.tableFile.getFilePointer() < this.tableFile.length()) {
+                long index = this.tableFile.getFilePointer();
+                Row row = Row.readFrom(this.tableFile);
+                if (row == null) {
+                    continue;
+                }
+                if (isTombstone(row)) {
+                    if (this.rowIndexMap.remove(row.key()) != null) {
+                        deadRecords += 2;
+                        indexedKeyChars -= row.key().length();
+                    } else {
+                        deadRecords++;
+                    }
+                } else if (this.rowIndexMap.put(row.key(), index) != null) {
+                    deadRecords++;
+                } else {
+                    indexedKeyChars += row.key().length();
+                }
+            }
+            newRowStartPosition = this.tableFile.getFilePointer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static boolean isTombstone(Row row) {
+        return (row.columns().size() == 1) && (row.getBytes(TOMBSTONE_COLUMN) != null);
+    }
+
+    // Appends a tombstone for every key that exists and drops it from the index. Returns the
+    // number of rows that were deleted; the space is reclaimed by the next compact().
+    public int deleteRows(Collection<String> keys) throws IOException {
+        lock.lock();
+        try {
+            List<Row> tombstones = new ArrayList<>();
+            for (String key : keys) {
+                if (rowIndexMap.containsKey(key)) {
+                    Row tombstone = new Row(key);
+                    tombstone.put(TOMBSTONE_COLUMN, new byte[0]);
+                    tombstones.add(tombstone);
+                }
+            }
+            if (tombstones.isEmpty()) {
+                return 0;
+            }
+
+            fileLock.lock();
+            RandomAccessFile raf = null;
+            try {
+                raf = tablePool.acquireForWrite(tablePath.getFileName().toString());
+                raf.seek(newRowStartPosition);
+                for (Row tombstone : tombstones) {
+                    long tombstonePosition = raf.getFilePointer();
+                    raf.write(tombstone.toByteArray());
+                    raf.write(ROW_SEPARATOR);
+                    unindexRow(tombstone.key(), tombstonePosition);
+                }
+                newRowStartPosition = raf.getFilePointer();
+                sync(raf);
+            } finally {
+                if (raf != null) {
+                    tablePool.release(tablePath.getFileName().toString(), raf, false);
+                }
+                fileLock.unlock();
+            }
+            return tombstones.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Removes all rows. No tombstones are needed; the file is simply cut back to zero length.
+    // Open snapshots still need the old rows, though, so in that case every row is deleted.
+    public void truncate() throws IOException {
+        lock.lock();
+        try {
+            if (openSnapshots > 0) {
+                deleteRows(new ArrayList<>(rowIndexMap.keySet()));
+                return;
+            }
+            fileLock.lock();
+            try {
+                tableFile.setLength(0);
+                rowIndexMap.clear();
+                if (rowCache != null) {
+                    rowCache.clear();
+                }
+                newRowStartPosition = 0;
+                deadRecords = 0;
+                indexedKeyChars = 0;
+            } finally {
+                fileLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean needsCompaction() {
+        lock.lock();
+        try {
+            return !deleted && (openSnapshots == 0) && (deadRecords >= MIN_DEAD_RECORDS_FOR_COMPACTION) && (deadRecords > rowIndexMap.size());
+        } finally {
+            lock.unlock();
         }
     }
 
+    // Rewrites the file with only the live rows and atomically replaces the old one
+    public void compact() throws IOException {
+        lock.lock();
+        try {
+            // Snapshots refer to positions in the current file, so it stays until they are released
+            if (deleted || (deadRecords == 0) || (openSnapshots > 0)) {
+                return;
+            }
+            fileLock.lock();
+            try {
+                Path compactPath = Path.of(tablePath.toString() + ".compact");
+                ConcurrentHashMap<String, Long> newIndex = new ConcurrentHashMap<>();
+                long position = 0;
+                try (BufferedOutputStream out = new BufferedOutputStream(Files.newOutputStream(compactPath))) {
+                    for (Enumeration<String> e = rowIndexMap.keys(); e.hasMoreElements(); ) {
+                        String key = e.nextElement();
+                        Row row = readRow(key);
+                        if (row == null) {
+                            continue;
+                        }
+                        byte[] rowData = encode(row);
+                        out.write(rowData);
+                        out.write(ROW_SEPARATOR);
+                        newIndex.put(key, position);
+                        position += rowData.length + ROW_SEPARATOR.length;
+                    }
+                }
+
+                tablePool.removeTable(tablePath.getFileName().toString());
+                tableFile.close();
+                Files.move(compactPath, tablePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                tableFile = new RandomAccessFile(tablePath.toFile(), "rw");
+                rowIndexMap = newIndex;
+                newRowStartPosition = position;
+                deadRecords = 0;
+            } finally {
+                fileLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Snapshot openSnapshot() throws IOException {
+        lock.lock();
+        try {
+            Snapshot snapshot = new Snapshot(newRowStartPosition, new RandomAccessFile(tablePath.toFile(), "r"));
+            openSnapshots++;
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // What a backup needs: the length of the file, and the index and dead record count as of
+    // that length. The capture holds a snapshot, which keeps compaction and truncation from
+    // changing the bytes before that length until it is released, and whose own file handle
+    // can still read them if the table is renamed or deleted meanwhile.
+    Capture capture() throws IOException {
+        lock.lock();
+        try {
+            Object fileKey = Files.readAttributes(tablePath, BasicFileAttributes.class).fileKey();
+            return new Capture(openSnapshot(), new HashMap<>(rowIndexMap), deadRecords, fileKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static class Capture {
+        final Snapshot snapshot;
+        final Map<String, Long> index;
+        final long deadRecords;
+        // Identifies the file on disk, or null if the file system has no such notion; a
+        // compaction writes a new file, so this changes when earlier bytes might have
+        final Object fileKey;
+
+        private Capture(Snapshot snapshot, Map<String, Long> index, long deadRecords, Object fileKey) {
+            this.snapshot = snapshot;
+            this.index = index;
+            this.deadRecords = deadRecords;
+            this.fileKey = fileKey;
+        }
+
+        long length() {
+            return snapshot.watermark;
+        }
+
+        FileChannel channel() {
+            return snapshot.file.getChannel();
+        }
+
+        void release() {
+            snapshot.release();
+        }
+    }
+
+    // Whether the key's current version was written before the snapshot was taken, so that the
+    // snapshot's version of the row is still the current one. Positions are not reused while a
+    // snapshot is open, since compaction waits and truncation writes tombstones.
+    boolean unchangedSince(Snapshot snapshot, String key) {
+        Long position = rowIndexMap.get(key);
+        return (position != null) && (position < snapshot.watermark);
+    }
+
+    private void releaseSnapshot() {
+        lock.lock();
+        try {
+            openSnapshots--;
+            if (openSnapshots == 0) {
+                supersededPositions.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A snapshot is just a file offset: it sees, for each key, the newest version written
+    // before that offset. It reads through its own file handle and takes no table lock, so
+    // writers are never blocked by it.
+    public class Snapshot extends TableSnapshot {
+        private final long watermark;
+        private final RandomAccessFile file;
+        // Guards the file's position; taken around disk reads, like the table lock
+        private final ReentrantLock readLock = new ReentrantLock();
+        private boolean released;
+
+        private Snapshot(long watermark, RandomAccessFile file) {
+            super(tablePath.getFileName().toString());
+            this.watermark = watermark;
+            this.file = file;
+        }
+
+        private Long visiblePosition(String key) {
+            Long best = null;
+            Long current = rowIndexMap.get(key);
+            if ((current != null) && (current < watermark)) {
+                best = current;
+            }
+            // An old version is only visible if what superseded it was written after the snapshot
+            long[] older = supersededPositions.get(key);
+            if (older != null) {
+                for (int i = 0; i < older.length; i += 2) {
+                    long position = older[i];
+                    if ((position < watermark) && (older[i + 1] >= watermark) && ((best == null) || (position > best))) {
+                        best = position;
+                    }
+                }
+            }
+            return best;
+        }
+
+        // The index is read before the remembered positions. Writers remember a position before
+        // they change the index, so a key that is deleted while the index is being enumerated
+        // is found among the remembered positions
+        List<String> keys(String startRow, String endRowExclusive) {
+            List<String> keys = new ArrayList<>();
+            for (String key : rowIndexMap.keySet()) {
+                if (inRange(key, startRow, endRowExclusive)) {
+                    keys.add(key);
+                }
+            }
+            for (String key : supersededPositions.keySet()) {
+                if (inRange(key, startRow, endRowExclusive)) {
+                    keys.add(key);
+                }
+            }
+            Collections.sort(keys);
+
+            List<String> visible = new ArrayList<>(keys.size());
+            String previous = null;
+            for (String key : keys) {
+                if (!key.equals(previous) && (visiblePosition(key) != null)) {
+                    visible.add(key);
+                }
+                previous = key;
+            }
+            return visible;
+        }
+
+        Row getRow(String key) throws IOException {
+            Long position = visiblePosition(key);
+            if (position == null) {
+                return null;
+            }
+            readLock.lock();
+            try {
+                file.seek(position);
+                Row row = decode(ImmutableRow.readFrom(file));
+                return ((row == null) || isTombstone(row)) ? null : row;
+            } catch (Exception e) {
+                throw new IOException("Error reading row from snapshot", e);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        void release() {
+            readLock.lock();
+            try {
+                if (released) {
+                    return;
+                }
+                released = true;
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    logger.error("Error closing snapshot file", e);
+                }
+            } finally {
+                readLock.unlock();
+            }
+            releaseSnapshot();
+        }
+    }
+
+    // Monitoring counters. They are read without the table lock, so a long compaction does not
+    // hold up whoever polls them; each value may be one write behind.
+    public long fileSize() {return newRowStartPosition;}
+    public long deadRecords() {return deadRecords;}
+    public int openSnapshots() {return openSnapshots;}
+    public long indexMemoryBytes() {return (long) rowIndexMap.size() * INDEX_ENTRY_BYTES + indexedKeyChars;}
+    public int openHandles() {return tablePool.getOpenHandles(tablePath.getFileName().toString());}
+    public int activeReadHandles() {return tablePool.getActiveReadHandles(tablePath.getFileName().toString());}
+    public int activeWriteHandles() {return tablePool.getActiveWriteHandles(tablePath.getFileName().toString());}
+    public long handleHits() {return tablePool.getHandleHits(tablePath.getFileName().toString());}
+    public long handleMisses() {return tablePool.getHandleMisses(tablePath.getFileName().toString());}
+    public long rowCacheHits() {return rowCacheHits;}
+    public long rowCacheMisses() {return rowCacheMisses;}
+
     public int size() {return this.rowIndexMap.size();}
     public Enumeration<String> getKeys() {return this.rowIndexMap.keys();}
     public boolean containsKey(String key) {return this.rowIndexMap.containsKey(key);}
 
-    public synchronized void rename(String oldName, String newName) throws IOException {
-        tableFile.close();
-        String newFilePath = tablePath.toFile().getAbsolutePath().replace(oldName, newName);
-        Path newPath = Path.of(newFilePath);
-        Files.move(this.tablePath, newPath);
-        this.tablePath = newPath;
-        tableFile = new RandomAccessFile(this.tablePath.toFile(), "rw");
+    // Renaming only moves the file; the index keeps its positions. The pooled handles are
+    // reopened under the new name.
+    public void rename(String oldName, String newName) throws IOException {
+        lock.lock();
+        try {
+            fileLock.lock();
+            try {
+                Path newPath = tablePath.resolveSibling(newName);
+                Files.move(this.tablePath, newPath, StandardCopyOption.ATOMIC_MOVE);
+                tableFile.close();
+                tablePool.closeAll();
+                this.tablePath = newPath;
+                this.tablePool = new PersistentTablePool(newPath.toString(), 1000);
+                tableFile = new RandomAccessFile(this.tablePath.toFile(), "rw");
+            } finally {
+                fileLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Copies the file at the OS level and gives the copy a clone of the index; since the
+    // bytes are identical, all positions remain valid
+    public PersistentTable copyTo(String newName) throws IOException {
+        lock.lock();
+        try {
+            Path newPath = tablePath.resolveSibling(newName);
+            if (Files.exists(newPath)) {
+                throw new FileAlreadyExistsException(newPath.toString());
+            }
+            fileLock.lock();
+            try (FileChannel source = FileChannel.open(tablePath, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(newPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long copied = 0;
+                while (copied < newRowStartPosition) {
+                    copied += source.transferTo(copied, newRowStartPosition - copied, target);
+                }
+            } finally {
+                fileLock.unlock();
+            }
+
+            PersistentTable copy = new PersistentTable(newPath.toString());
+            copy.rowIndexMap = new ConcurrentHashMap<>(rowIndexMap);
+            copy.newRowStartPosition = newRowStartPosition;
+            copy.deadRecords = deadRecords;
+            copy.indexedKeyChars = indexedKeyChars;
+            return copy;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void delete() throws IOException {
-        tableFile.close();
-        Files.delete(tablePath);
+    public void delete() throws IOException {
+        lock.lock();
+        try {
+            deleted = true;
+            tableFile.close();
+            Files.delete(tablePath);
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -6,6 +6,8 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import cis5550.tools.Logger;
 
@@ -20,6 +22,12 @@ public class PersistentTablePool {
         private final ReentrantLock writeLock = new ReentrantLock();
         private final String filePath;
         private final int maxPoolSize;
+        // Counters for the admin endpoints; a hit is an acquire served from the pool
+        private final AtomicInteger openHandles = new AtomicInteger();
+        private final AtomicInteger activeReads = new AtomicInteger();
+        private final AtomicInteger activeWrites = new AtomicInteger();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
 
         public TableFilePool(String filePath, int maxPoolSize) {
             this.filePath = filePath;
@@ -34,10 +42,12 @@ public class PersistentTablePool {
                 // Initialize read pool
                 for (int i = 0; i < maxPoolSize; i++) {
                     readPool.add(new RandomAccessFile(filePath, "r"));
+                    openHandles.incrementAndGet();
                 }
                 // Initialize write pool
                 for (int i = 0; i < maxPoolSize/2; i++) {
                     writePool.add(new RandomAccessFile(filePath, "rw"));
+                    openHandles.incrementAndGet();
                 }
             } catch (IOException e) {
                 logger.error("Error initializing file pools for: " + filePath, e);
@@ -48,9 +58,15 @@ public class PersistentTablePool {
             readLock.lock();
             try {
                 if (!readPool.isEmpty()) {
+                    hits.incrementAndGet();
+                    activeReads.incrementAndGet();
                     return readPool.remove(readPool.size() - 1);
                 }
-                return new RandomAccessFile(filePath, "r");
+                misses.incrementAndGet();
+                RandomAccessFile raf = new RandomAccessFile(filePath, "r");
+                openHandles.incrementAndGet();
+                activeReads.incrementAndGet();
+                return raf;
             } catch (IOException e) {
                 logger.error("Error acquiring read file handle for: " + filePath, e);
                 return null;
@@ -63,9 +79,15 @@ public class PersistentTablePool {
             writeLock.lock();
             try {
                 if (!writePool.isEmpty()) {
+                    hits.incrementAndGet();
+                    activeWrites.incrementAndGet();
                     return writePool.remove(writePool.size() - 1);
                 }
-                return new RandomAccessFile(filePath, "rw");
+                misses.incrementAndGet();
+                RandomAccessFile raf = new RandomAccessFile(filePath, "rw");
+                openHandles.incrementAndGet();
+                activeWrites.incrementAndGet();
+                return raf;
             } catch (IOException e) {
                 logger.error("Error acquiring write file handle for: " + filePath, e);
                 return null;
@@ -76,12 +98,14 @@ public class PersistentTablePool {
 
         public void releaseRead(RandomAccessFile raf) {
             if (raf == null) return;
+            activeReads.decrementAndGet();
             readLock.lock();
             try {
                 if (readPool.size() < maxPoolSize) {
                     readPool.add(raf);
                 } else {
                     try {
+                        openHandles.decrementAndGet();
                         raf.close();
                     } catch (IOException e) {
                         logger.error("Error closing read file handle", e);
@@ -94,12 +118,14 @@ public class PersistentTablePool {
 
         public void releaseWrite(RandomAccessFile raf) {
             if (raf == null) return;
+            activeWrites.decrementAndGet();
             writeLock.lock();
             try {
                 if (writePool.size() < maxPoolSize/2) {
                     writePool.add(raf);
                 } else {
                     try {
+                        openHandles.decrementAndGet();
                         raf.close();
                     } catch (IOException e) {
                         logger.error("Error closing write file handle", e);
@@ -117,6 +143,7 @@ public class PersistentTablePool {
                 // Close all read handles
                 for (RandomAccessFile raf : readPool) {
                     try {
+                        openHandles.decrementAndGet();
                         raf.close();
                     } catch (IOException e) {
                         logger.error("Error closing read file handle", e);
@@ -127,6 +154,7 @@ public class PersistentTablePool {
                 // Close all write handles
                 for (RandomAccessFile raf : writePool) {
                     try {
+                        openHandles.decrementAndGet();
                         raf.close();
                     } catch (IOException e) {
                         logger.error("Error closing write file handle", e);
@@ -190,14 +218,31 @@ public class PersistentTablePool {
         tablePools.clear();
     }
 
-    // Optional: Add metrics methods
+    // Metrics, read from counters that are maintained on every acquire and release, so they
+    // can be polled without taking the pool locks
     public int getActiveReadHandles(String tableName) {
         TableFilePool pool = tablePools.get(tableName);
-        return pool != null ? pool.maxPoolSize - pool.readPool.size() : 0;
+        return pool != null ? pool.activeReads.get() : 0;
     }
 
     public int getActiveWriteHandles(String tableName) {
         TableFilePool pool = tablePools.get(tableName);
-        return pool != null ? pool.maxPoolSize/2 - pool.writePool.size() : 0;
+        return pool != null ? pool.activeWrites.get() : 0;
+    }
+
+    // Handles that are open, whether they are in use or waiting in the pool
+    public int getOpenHandles(String tableName) {
+        TableFilePool pool = tablePools.get(tableName);
+        return pool != null ? pool.openHandles.get() : 0;
+    }
+
+    public long getHandleHits(String tableName) {
+        TableFilePool pool = tablePools.get(tableName);
+        return pool != null ? pool.hits.get() : 0;
+    }
+
+    public long getHandleMisses(String tableName) {
+        TableFilePool pool = tablePools.get(tableName);
+        return pool != null ? pool.misses.get() : 0;
     }
 }
\ No newline at end of file
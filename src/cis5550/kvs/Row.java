@@ -2,55 +2,107 @@ package cis5550.kvs;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.*;
 
 public class Row implements Serializable {
 
+  // Keys, column names and lengths are at most this long; the buffer for them starts small
+  // and grows as needed, since most of them are short
+  private static final int MAX_STRING_LENGTH = 16384;
+
   protected String key;
   protected HashMap<String,byte[]> values;
+  // A lock rather than synchronized methods, so that a virtual thread never pins its carrier
+  // while it waits for a row
+  private final ReentrantLock lock;
 
   public Row(String keyArg) {
     key = keyArg;
     values = new HashMap<String,byte[]>();
+    lock = new ReentrantLock();
   }
 
-  public synchronized String key() {
+  // For subclasses that keep their columns elsewhere and override every accessor
+  Row(String keyArg, HashMap<String,byte[]> valuesArg) {
+    key = keyArg;
+    values = valuesArg;
+    lock = null;
+  }
+
+  // The key never changes, so it needs no lock
+  public String key() {
     return key;
   }
 
-  public synchronized Row clone() {
-    Row theClone = new Row(key);
-    for (String s : values.keySet())
-      theClone.values.put(s, values.get(s));
-    return theClone;
+  public Row clone() {
+    lock.lock();
+    try {
+      Row theClone = new Row(key);
+      for (String s : values.keySet())
+        theClone.values.put(s, values.get(s));
+      return theClone;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized Set<String> columns() {
-    return values.keySet();
+  public Set<String> columns() {
+    lock.lock();
+    try {
+      return values.keySet();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized void put(String key, String value) {
-    values.put(key, value.getBytes());
+  public void put(String key, String value) {
+    lock.lock();
+    try {
+      values.put(key, value.getBytes());
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized void put(String key, byte[] value) { values.put(key, value);}
+  public void put(String key, byte[] value) {
+    lock.lock();
+    try {
+      values.put(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
 
-  public synchronized String get(String key) {
-    if (values.get(key) == null)
-      return null;
-    return new String(values.get(key));
+  public String get(String key) {
+    lock.lock();
+    try {
+      if (values.get(key) == null)
+        return null;
+      return new String(values.get(key));
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized byte[] getBytes(String key) {
-    return values.get(key);
+  public byte[] getBytes(String key) {
+    lock.lock();
+    try {
+      return values.get(key);
+    } finally {
+      lock.unlock();
+    }
   }
 
   static String readStringSpace(InputStream in) throws Exception {
-    byte buffer[] = new byte[16384];
+    byte buffer[] = new byte[64];
     int numRead = 0;
     while (true) {
-      if (numRead == buffer.length)
-        throw new Exception("Format error: Expecting string+space");
+      if (numRead == buffer.length) {
+        if (numRead == MAX_STRING_LENGTH)
+          throw new Exception("Format error: Expecting string+space");
+        buffer = Arrays.copyOf(buffer, Math.min(MAX_STRING_LENGTH, 4*buffer.length));
+      }
 
       int b = in.read();
       if ((b < 0) || (b == 10))
@@ -62,11 +114,14 @@ public class Row implements Serializable {
   }
 
   static String readStringSpace(RandomAccessFile in) throws Exception {
-    byte buffer[] = new byte[16384];
+    byte buffer[] = new byte[64];
     int numRead = 0;
     while (true) {
-      if (numRead == buffer.length)
-        throw new Exception("Format error: Expecting string+space");
+      if (numRead == buffer.length) {
+        if (numRead == MAX_STRING_LENGTH)
+          throw new Exception("Format error: Expecting string+space");
+        buffer = Arrays.copyOf(buffer, Math.min(MAX_STRING_LENGTH, 4*buffer.length));
+      }
 
       int b = in.read();
       if ((b < 0) || (b == 10))
@@ -135,36 +190,61 @@ public class Row implements Serializable {
     }
   }
 
-  public synchronized String toString() {
-    String s = key+" {";
-    boolean isFirst = true;
-    for (String k : values.keySet()) {
-      s = s + (isFirst ? " " : ", ")+k+": "+new String(values.get(k));
-      isFirst = false;
+  public String toString() {
+    lock.lock();
+    try {
+      String s = key+" {";
+      boolean isFirst = true;
+      for (String k : values.keySet()) {
+        s = s + (isFirst ? " " : ", ")+k+": "+new String(values.get(k));
+        isFirst = false;
+      }
+      return s + " }";
+    } finally {
+      lock.unlock();
     }
-    return s + " }";
   }
 
-  public synchronized byte[] toByteArray()  {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+  // Length of toByteArray(), computed without serializing the values
+  public int byteSize() {
+    lock.lock();
+    try {
+      int size = key.getBytes().length + 1;
+      for (String s : values.keySet()) {
+        int len = values.get(s).length;
+        size += s.getBytes().length + 1 + String.valueOf(len).length() + 1 + len + 1;
+      }
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
 
+  public byte[] toByteArray()  {
+    lock.lock();
     try {
-      baos.write(key.getBytes());
-      baos.write(' ');
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-      for (String s : values.keySet()) {
-        baos.write(s.getBytes());
+      try {
+        baos.write(key.getBytes());
         baos.write(' ');
-        baos.write((""+values.get(s).length).getBytes());
-        baos.write(' ');
-        baos.write(values.get(s));
-        baos.write(' ');
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-      throw new RuntimeException("This should not happen!");
-    };
 
-    return baos.toByteArray();
+        for (String s : values.keySet()) {
+          baos.write(s.getBytes());
+          baos.write(' ');
+          baos.write((""+values.get(s).length).getBytes());
+          baos.write(' ');
+          baos.write(values.get(s));
+          baos.write(' ');
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+        throw new RuntimeException("This should not happen!");
+      };
+
+      return baos.toByteArray();
+    } finally {
+      lock.unlock();
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+package cis5550.kvs;
+
+import cis5550.tools.Hasher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// A secondary index on one column of a table. The index is stored in a hidden table next to
+// the indexed one, with one small row per (value, row key) pair, so that changing the value of
+// one row only appends or deletes a single entry. Entry keys are the encoded value, a '.', and
+// the row key; rows with the same value are therefore adjacent, and a lookup is a range over a
+// sorted copy of the entry keys instead of a scan of the table.
+class SecondaryIndex {
+    static final String INDEX_MARKER = ".idx.";
+    static final String ROW_COLUMN = "row";
+    // Longer values are indexed by their hash; lookups then check the value in the row itself
+    private static final int MAX_ENCODED_VALUE_LENGTH = 256;
+    private static final String HASHED_VALUE_PREFIX = "~";
+
+    final String tableName;
+    final String column;
+    final String indexTableName;
+    final NavigableSet<String> entries;
+
+    SecondaryIndex(String tableName, String column) {
+        this(tableName, column, new ConcurrentSkipListSet<>());
+    }
+
+    SecondaryIndex(String tableName, String column, NavigableSet<String> entries) {
+        this.tableName = tableName;
+        this.column = column;
+        this.indexTableName = indexTableName(tableName, column);
+        this.entries = entries;
+    }
+
+    // Index tables are persistent exactly when the indexed table is, since the name keeps its prefix
+    static String indexTableName(String tableName, String column) {
+        return tableName + INDEX_MARKER + encode(column);
+    }
+
+    static boolean isIndexTable(String tableName) {
+        return tableName.contains(INDEX_MARKER);
+    }
+
+    static String indexedTableOf(String indexTableName) {
+        return indexTableName.substring(0, indexTableName.lastIndexOf(INDEX_MARKER));
+    }
+
+    static String indexedColumnOf(String indexTableName) {
+        return decode(indexTableName.substring(indexTableName.lastIndexOf(INDEX_MARKER) + INDEX_MARKER.length()));
+    }
+
+    // Adds the entry changes needed to go from oldRowOrNull to newRowOrNull (either may be null)
+    // to changes, where true means add and false means remove. Later changes to the same entry
+    // replace earlier ones, so a whole batch can be collected before anything is written.
+    void collectChanges(Row oldRowOrNull, Row newRowOrNull, Map<String, Boolean> changes) {
+        String oldValue = (oldRowOrNull == null) ? null : oldRowOrNull.get(column);
+        String newValue = (newRowOrNull == null) ? null : newRowOrNull.get(column);
+        if ((oldValue != null) && oldValue.equals(newValue)) {
+            return;
+        }
+        if (oldValue != null) {
+            changes.put(entryKey(oldValue, oldRowOrNull.key()), false);
+        }
+        if (newValue != null) {
+            changes.put(entryKey(newValue, newRowOrNull.key()), true);
+        }
+    }
+
+    static Row entryRow(String entryKey) {
+        Row row = new Row(entryKey);
+        row.put(ROW_COLUMN, rowKeyOf(entryKey));
+        return row;
+    }
+
+    // Row keys whose indexed column may hold the value; if needsCheck(value) is true, some of them
+    // may hold a different value with the same hash
+    List<String> candidates(String value) {
+        String encoded = encodeValue(value);
+        List<String> rowKeys = new ArrayList<>();
+        // '/' is the character after '.', so this range holds exactly the entries for the value
+        for (String entry : entries.subSet(encoded + ".", encoded + "/")) {
+            rowKeys.add(rowKeyOf(entry));
+        }
+        return rowKeys;
+    }
+
+    static boolean needsCheck(String value) {
+        return encodeValue(value).startsWith(HASHED_VALUE_PREFIX);
+    }
+
+    private static String entryKey(String value, String rowKey) {
+        return encodeValue(value) + "." + rowKey;
+    }
+
+    private static String rowKeyOf(String entryKey) {
+        return entryKey.substring(entryKey.indexOf('.') + 1);
+    }
+
+    private static String encodeValue(String value) {
+        String encoded = encode(value);
+        return (encoded.length() <= MAX_ENCODED_VALUE_LENGTH) ? encoded : HASHED_VALUE_PREFIX + Hasher.hash(value);
+    }
+
+    // Letters, digits and '-' stay as they are and every other UTF-8 byte becomes '_' and two hex
+    // digits, so encoded strings never contain the '.' that separates value and row key
+    static String encode(String s) {
+        StringBuilder out = new StringBuilder();
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            if (((b >= 'a') && (b <= 'z')) || ((b >= 'A') && (b <= 'Z')) || ((b >= '0') && (b <= '9')) || (b == '-')) {
+                out.append((char) b);
+            } else {
+                out.append('_').append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+        }
+        return out.toString();
+    }
+
+    static String decode(String s) {
+        byte[] bytes = new byte[s.length()];
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '_') {
+                bytes[n++] = (byte) Integer.parseInt(s.substring(i + 1, i + 3), 16);
+                i += 2;
+            } else {
+                bytes[n++] = (byte) s.charAt(i);
+            }
+        }
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+}
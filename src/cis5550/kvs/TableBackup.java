@@ -0,0 +1,313 @@
+package cis5550.kvs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// Backups of a worker's persistent tables. A backup is a directory with a MANIFEST and one
+// subdirectory per table, holding the table file cut into segments, a checkpoint of its index
+// and its policy. Table files are append-only, so the bytes that an earlier backup holds do
+// not change for as long as the file exists: an incremental backup hard-links the earlier
+// backup's segments and copies only what was appended since, as one more segment. Every
+// backup is complete on its own, so old ones can be deleted in any order.
+class TableBackup {
+    static final String MANIFEST = "MANIFEST";
+    private static final String INDEX_FILE = "index";
+    private static final String POLICY_FILE = "policy";
+    private static final String SEGMENT_PREFIX = "segment-";
+    // An incremental backup checks that the file still ends, at the old length, with the bytes
+    // the earlier backup saw; together with the file key this catches files that were
+    // truncated or replaced and then grew again
+    private static final int TAIL_CHECK_BYTES = 4096;
+
+    // A table file assembled from a backup, ready to be attached to the worker
+    static class RestoredTable {
+        final String tableName;
+        final Path file;
+        final Map<String, Long> index;
+        final long deadRecords;
+        final TablePolicy policy;
+
+        private RestoredTable(String tableName, Path file, Map<String, Long> index, long deadRecords, TablePolicy policy) {
+            this.tableName = tableName;
+            this.file = file;
+            this.index = index;
+            this.deadRecords = deadRecords;
+            this.policy = policy;
+        }
+    }
+
+    // Writes a backup of the captured tables to backupDir, incrementally on top of baseDirOrNull.
+    // The backup is assembled under a temporary name, so a directory with the final name is
+    // always complete. Returns a summary for the caller to report.
+    static Map<String, Object> create(Path backupDir, Path baseDirOrNull, Map<String, PersistentTable.Capture> captures, Map<String, TablePolicy> policies) throws IOException {
+        if (Files.exists(backupDir)) {
+            throw new FileAlreadyExistsException(backupDir.toString());
+        }
+        Properties base = (baseDirOrNull == null) ? new Properties() : readManifest(baseDirOrNull);
+        Path tempDir = backupDir.resolveSibling(backupDir.getFileName() + ".tmp");
+        deleteRecursively(tempDir);
+        Files.createDirectories(tempDir);
+
+        Properties manifest = new Properties();
+        manifest.setProperty("created", String.valueOf(System.currentTimeMillis()));
+        if (baseDirOrNull != null) {
+            manifest.setProperty("base", baseDirOrNull.getFileName().toString());
+        }
+        List<String> tables = new ArrayList<>();
+        long bytesCopied = 0;
+        long bytesLinked = 0;
+        for (Map.Entry<String, PersistentTable.Capture> entry : captures.entrySet()) {
+            String encodedName = SecondaryIndex.encode(entry.getKey());
+            PersistentTable.Capture capture = entry.getValue();
+            Path tableDir = tempDir.resolve(encodedName);
+            Files.createDirectories(tableDir);
+            long length = capture.length();
+            String fileKey = String.valueOf(capture.fileKey);
+
+            // Reuse the earlier backup's segments if the file is the same one and has only grown
+            List<Long> segments = new ArrayList<>();
+            long copyFrom = 0;
+            String baseLength = base.getProperty(encodedName + ".length");
+            if ((baseLength != null) && (capture.fileKey != null) && fileKey.equals(base.getProperty(encodedName + ".fileKey"))
+                    && (Long.parseLong(baseLength) <= length)
+                    && base.getProperty(encodedName + ".tailCrc").equals(String.valueOf(tailCrc(capture.channel(), Long.parseLong(baseLength))))) {
+                for (String start : base.getProperty(encodedName + ".segments").split(",")) {
+                    if (!start.isEmpty()) {
+                        Path segment = baseDirOrNull.resolve(encodedName).resolve(SEGMENT_PREFIX + start);
+                        bytesLinked += linkOrCopy(segment, tableDir.resolve(SEGMENT_PREFIX + start));
+                        segments.add(Long.parseLong(start));
+                    }
+                }
+                copyFrom = Long.parseLong(baseLength);
+            }
+            if (copyFrom < length) {
+                try (FileChannel out = FileChannel.open(tableDir.resolve(SEGMENT_PREFIX + copyFrom), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    transfer(capture.channel(), copyFrom, length, out);
+                }
+                segments.add(copyFrom);
+                bytesCopied += length - copyFrom;
+            }
+
+            writeIndex(tableDir.resolve(INDEX_FILE), capture.index, capture.deadRecords);
+            TablePolicy policy = policies.get(entry.getKey());
+            if (policy != null) {
+                policy.store(tableDir.resolve(POLICY_FILE));
+            }
+
+            StringBuilder segmentList = new StringBuilder();
+            for (long start : segments) {
+                segmentList.append((segmentList.length() == 0) ? "" : ",").append(start);
+            }
+            manifest.setProperty(encodedName + ".length", String.valueOf(length));
+            manifest.setProperty(encodedName + ".fileKey", fileKey);
+            manifest.setProperty(encodedName + ".tailCrc", String.valueOf(tailCrc(capture.channel(), length)));
+            manifest.setProperty(encodedName + ".segments", segmentList.toString());
+            manifest.setProperty(encodedName + ".rows", String.valueOf(capture.index.size()));
+            tables.add(encodedName);
+        }
+        manifest.setProperty("tables", String.join(",", tables));
+        try (OutputStream out = Files.newOutputStream(tempDir.resolve(MANIFEST))) {
+            manifest.store(out, null);
+        }
+        Files.move(tempDir, backupDir);
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("id", backupDir.getFileName().toString());
+        summary.put("base", (baseDirOrNull == null) ? null : baseDirOrNull.getFileName().toString());
+        summary.put("tables", tables.size());
+        summary.put("bytesCopied", bytesCopied);
+        summary.put("bytesLinked", bytesLinked);
+        return summary;
+    }
+
+    // Lays out a backup that holds a single table whose file was built elsewhere, e.g. by
+    // BulkLoader, so that a worker can attach it like any other backup. The file is moved
+    // into the backup as its only segment.
+    static void createForTable(Path backupDir, String tableName, Path tableFile, Map<String, Long> index, long deadRecords, TablePolicy policyOrNull) throws IOException {
+        String encodedName = SecondaryIndex.encode(tableName);
+        Path tableDir = backupDir.resolve(encodedName);
+        Files.createDirectories(tableDir);
+        long length = Files.size(tableFile);
+        Files.move(tableFile, tableDir.resolve(SEGMENT_PREFIX + 0));
+        writeIndex(tableDir.resolve(INDEX_FILE), index, deadRecords);
+        if (policyOrNull != null) {
+            policyOrNull.store(tableDir.resolve(POLICY_FILE));
+        }
+
+        Properties manifest = new Properties();
+        manifest.setProperty("created", String.valueOf(System.currentTimeMillis()));
+        manifest.setProperty("tables", encodedName);
+        manifest.setProperty(encodedName + ".length", String.valueOf(length));
+        manifest.setProperty(encodedName + ".segments", "0");
+        manifest.setProperty(encodedName + ".rows", String.valueOf(index.size()));
+        try (OutputStream out = Files.newOutputStream(backupDir.resolve(MANIFEST))) {
+            manifest.store(out, null);
+        }
+    }
+
+    // The backup in backupsRoot that was created last, other than exclude, or null if there is none
+    static Path newest(Path backupsRoot, String exclude) throws IOException {
+        File[] dirs = backupsRoot.toFile().listFiles();
+        Path newest = null;
+        long newestCreated = Long.MIN_VALUE;
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (!dir.isDirectory() || dir.getName().equals(exclude) || !new File(dir, MANIFEST).isFile()) {
+                    continue;
+                }
+                long created = Long.parseLong(readManifest(dir.toPath()).getProperty("created", "0"));
+                if (created > newestCreated) {
+                    newest = dir.toPath();
+                    newestCreated = created;
+                }
+            }
+        }
+        return newest;
+    }
+
+    // Assembles the file of every table in the backup that shouldRestore accepts, next to where
+    // it will live in storageDirectory, under a temporary name. The index is read from the
+    // checkpoint, so the file itself is only copied, never parsed.
+    static List<RestoredTable> restore(Path backupDir, String storageDirectory, Predicate<String> shouldRestore) throws IOException {
+        Properties manifest = readManifest(backupDir);
+        List<RestoredTable> restored = new ArrayList<>();
+        for (String encodedName : manifest.getProperty("tables", "").split(",")) {
+            if (encodedName.isEmpty()) {
+                continue;
+            }
+            String tableName = SecondaryIndex.decode(encodedName);
+            if (!shouldRestore.test(tableName)) {
+                continue;
+            }
+            Path tableDir = backupDir.resolve(encodedName);
+            long length = Long.parseLong(manifest.getProperty(encodedName + ".length"));
+            Path file = Path.of(storageDirectory, tableName + ".restore");
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (String start : manifest.getProperty(encodedName + ".segments").split(",")) {
+                    if (start.isEmpty()) {
+                        continue;
+                    }
+                    try (FileChannel in = FileChannel.open(tableDir.resolve(SEGMENT_PREFIX + start), StandardOpenOption.READ)) {
+                        if (out.size() != Long.parseLong(start)) {
+                            throw new IOException("Segment " + start + " of table " + tableName + " does not follow the previous one");
+                        }
+                        transfer(in, 0, in.size(), out);
+                    }
+                }
+                if (out.size() != length) {
+                    throw new IOException("Table " + tableName + " has " + out.size() + " bytes in the backup, expected " + length);
+                }
+            }
+
+            long[] deadRecords = new long[1];
+            Map<String, Long> index = readIndex(tableDir.resolve(INDEX_FILE), deadRecords);
+            Path policyFile = tableDir.resolve(POLICY_FILE);
+            TablePolicy policy = Files.exists(policyFile) ? TablePolicy.load(tableName, policyFile) : TablePolicy.defaultFor(tableName);
+            restored.add(new RestoredTable(tableName, file, index, deadRecords[0], policy));
+        }
+        return restored;
+    }
+
+    // Index checkpoint: dead record count, number of keys, then each key as UTF-8 with its
+    // length, followed by the position of its row
+    static void writeIndex(Path path, Map<String, Long> index, long deadRecords) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            out.writeLong(deadRecords);
+            out.writeInt(index.size());
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(entry.getValue());
+            }
+        }
+    }
+
+    static Map<String, Long> readIndex(Path path, long[] deadRecordsOut) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            deadRecordsOut[0] = in.readLong();
+            int size = in.readInt();
+            Map<String, Long> index = new HashMap<>(size * 4 / 3 + 1);
+            for (int i = 0; i < size; i++) {
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                index.put(new String(key, StandardCharsets.UTF_8), in.readLong());
+            }
+            return index;
+        }
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        File[] children = path.toFile().listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child.toPath());
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private static Properties readManifest(Path backupDir) throws IOException {
+        Properties manifest = new Properties();
+        try (InputStream in = Files.newInputStream(backupDir.resolve(MANIFEST))) {
+            manifest.load(in);
+        }
+        return manifest;
+    }
+
+    // Segments never change once written, so a hard link is as good as a copy; file systems
+    // without hard links get a copy. Returns the number of bytes linked.
+    private static long linkOrCopy(Path existing, Path link) throws IOException {
+        try {
+            Files.createLink(link, existing);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(existing, link);
+        }
+        return Files.size(link);
+    }
+
+    private static void transfer(FileChannel in, long from, long to, FileChannel out) throws IOException {
+        long position = from;
+        while (position < to) {
+            long n = in.transferTo(position, to - position, out);
+            if (n <= 0) {
+                throw new IOException("Table file ended at " + position + ", expected " + to + " bytes");
+            }
+            position += n;
+        }
+    }
+
+    private static long tailCrc(FileChannel channel, long length) throws IOException {
+        long start = Math.max(0, length - TAIL_CHECK_BYTES);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (length - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                return -1;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.flip());
+        return crc.getValue();
+    }
+}
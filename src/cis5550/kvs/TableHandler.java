@@ -1,18 +1,69 @@
 package cis5550.kvs;
 
 import cis5550.tools.KeyEncoder;
+import cis5550.tools.Logger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
-public class TableHandler {
+public final class TableHandler {
+    private static final Logger logger = Logger.getLogger(TableHandler.class);
+
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "KVS-Compaction");
+        t.setDaemon(true);
+        return t;
+    });
     private ConcurrentHashMap<String, PersistentTable> persistentTableMap;
-    private static ConcurrentHashMap<String, ConcurrentHashMap<String, Row>> inMemoryTableMap = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, Map<String, Row>> inMemoryTableMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TableStats> tableStats = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TableSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> pendingWrites = new ConcurrentHashMap<>();
+    // Indexed table -> column -> index
+    private final ConcurrentHashMap<String, Map<String, SecondaryIndex>> indexes = new ConcurrentHashMap<>();
+    // Policies that differ from the default for the table's name; those of persistent tables
+    // are also saved in the policies directory, so that they survive a restart
+    private final ConcurrentHashMap<String, TablePolicy> policies = new ConcurrentHashMap<>();
+    // Tables with a TTL -> row key -> time (ms) at which the row expires
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> expiryTimes = new ConcurrentHashMap<>();
+    private static final String POLICY_DIRECTORY = "policies";
+    private static final String BACKUP_DIRECTORY = "backups";
+    // Where BulkLoader stages tables for the workers to attach; relative to the working directory
+    static final String BULK_LOAD_DIRECTORY = System.getProperty("cis5550.kvs.bulkLoadDirectory", "bulkload");
+    // Suffixes of files that are written next to a table file and then moved over it
+    private static final List<String> TEMPORARY_SUFFIXES = List.of(".compact", ".restore");
+    // Snapshots whose client went away without releasing them are dropped after this long
+    private static final long SNAPSHOT_IDLE_TIMEOUT_MS = 10 * 60 * 1000;
     private final String storageDirectory;
+    // The handler lock: guards the table maps and everything that changes together with them.
+    // It is held across disk writes, so it is a ReentrantLock rather than a monitor, which
+    // would pin the carrier thread of a virtual thread that blocks while holding it.
+    private final ReentrantLock lock = new ReentrantLock();
 
     public TableHandler(String storageDirectory) throws Exception {
         this.storageDirectory = storageDirectory;
@@ -20,140 +71,1200 @@ public class TableHandler {
         this.inMemoryTableMap = new ConcurrentHashMap<>();
 
         recoverTablesFromFiles(storageDirectory);
+
+        ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "KVS-Expirer");
+            t.setDaemon(true);
+            return t;
+        });
+        expirer.scheduleAtFixedRate(this::expireSnapshots, 1, 1, TimeUnit.MINUTES);
+        expirer.scheduleWithFixedDelay(this::expireRows, 1, 1, TimeUnit.SECONDS);
     }
 
     private void recoverTablesFromFiles(String storageDirectory) throws Exception {
+        File[] policyFiles = new File(storageDirectory, POLICY_DIRECTORY).listFiles();
+        if (policyFiles != null) {
+            for (File file : policyFiles) {
+                if (file.isFile() && !file.getName().endsWith(".tmp")) {
+                    policies.put(file.getName(), TablePolicy.load(file.getName(), file.toPath()));
+                }
+            }
+        }
+
         File storageDir = new File(storageDirectory);
         File[] files = storageDir.listFiles();
         if (files != null) {
             for (File file : files) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                String suffix = TEMPORARY_SUFFIXES.stream().filter(file.getName()::endsWith).findFirst().orElse(null);
+                if (suffix != null) {
+                    // Left behind by a compaction or restore that did not finish; the table file, if
+                    // any, is intact
+                    String tableName = file.getName().substring(0, file.getName().length() - suffix.length());
+                    if (policyOf(tableName).isPersistent()) {
+                        file.delete();
+                    }
+                    continue;
+                }
+                if (!policyOf(file.getName()).isPersistent()) {
+                    continue;
+                }
                 PersistentTable table = new PersistentTable(file.getAbsolutePath());
                 table.recoverTable();
                 String tableName = file.getName();
+                TablePolicy policy = policyOf(tableName);
+                table.applyPolicy(policy);
                 this.persistentTableMap.put(tableName, table);
+                trackExpiryOfAllRows(tableName, policy);
             }
         }
+        // Left over from a delete that was interrupted after the table file was removed
+        for (String tableName : new ArrayList<>(policies.keySet())) {
+            if (!persistentTableMap.containsKey(tableName)) {
+                removePolicy(tableName);
+            }
+        }
+
+        for (String tableName : persistentTableMap.keySet()) {
+            registerIndexTable(tableName);
+        }
     }
 
-    public synchronized void createTableIfNecessary(String tableName) throws FileNotFoundException {
-        if (tableName.startsWith("pt-")) {
-            if (!persistentTableMap.containsKey(tableName)) {
+    // Index tables are found by their name; their entries are loaded back into memory
+    private void registerIndexTable(String tableName) {
+        if (SecondaryIndex.isIndexTable(tableName)) {
+            String indexedTable = SecondaryIndex.indexedTableOf(tableName);
+            SecondaryIndex index = new SecondaryIndex(indexedTable, SecondaryIndex.indexedColumnOf(tableName));
+            persistentTableMap.get(tableName).getKeys().asIterator().forEachRemaining(index.entries::add);
+            addIndex(index);
+        }
+    }
+
+    private void trackExpiryOfAllRows(String tableName, TablePolicy policy) {
+        if (policy.ttlSeconds() > 0) {
+            // When the rows were written is not recorded, so they count as written now
+            ConcurrentHashMap<String, Long> times = new ConcurrentHashMap<>();
+            long expiresAt = System.currentTimeMillis() + policy.ttlSeconds() * 1000;
+            persistentTableMap.get(tableName).getKeys().asIterator().forEachRemaining(key -> times.put(key, expiresAt));
+            expiryTimes.put(tableName, times);
+        }
+    }
+
+    public void createTableIfNecessary(String tableName) throws IOException {
+        lock.lock();
+        try {
+            createTableIfNecessary(tableName, policyOf(tableName));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The policy only matters if the table does not exist yet
+    public void createTableIfNecessary(String tableName, TablePolicy policy) throws IOException {
+        lock.lock();
+        try {
+            if (containsKey(tableName)) {
+                return;
+            }
+            // Other files in the storage directory, such as the worker's id, are not tables
+            if (policy.isPersistent() && new File(storageDirectory, tableName).exists()) {
+                throw new FileAlreadyExistsException(tableName);
+            }
+            setPolicy(tableName, policy);
+            if (policy.isPersistent()) {
                 PersistentTable table = new PersistentTable(storageDirectory + File.separator + tableName);
+                table.applyPolicy(policy);
                 persistentTableMap.put(tableName, table);
+            } else {
+                inMemoryTableMap.put(tableName, (policy.storage() == TablePolicy.Storage.COMPACT) ? new CompactTable() : new ConcurrentHashMap<>());
             }
-        } else if (!inMemoryTableMap.containsKey(tableName)) {
-            inMemoryTableMap.put(tableName, new ConcurrentHashMap<>());
+            tableStats.put(tableName, new TableStats());
+            if (policy.ttlSeconds() > 0) {
+                expiryTimes.put(tableName, new ConcurrentHashMap<>());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The policy of an existing table, or the one a new table with this name would get
+    public TablePolicy policyOf(String tableName) {
+        TablePolicy policy = policies.get(tableName);
+        return (policy != null) ? policy : TablePolicy.defaultFor(tableName);
+    }
+
+    // Existing tables are found in the map they live in, whatever their name; a new table is
+    // persistent if its policy says so
+    public boolean isPersistent(String tableName) {
+        if (persistentTableMap.containsKey(tableName)) {
+            return true;
+        } else if (inMemoryTableMap.containsKey(tableName)) {
+            return false;
+        }
+        return policyOf(tableName).isPersistent();
+    }
+
+    private void setPolicy(String tableName, TablePolicy policy) throws IOException {
+        removePolicy(tableName);
+        if (policy.equals(TablePolicy.defaultFor(tableName))) {
+            return;
+        }
+        if (policy.isPersistent()) {
+            policy.store(policyPath(tableName));
         }
+        policies.put(tableName, policy);
     }
 
+    private void removePolicy(String tableName) throws IOException {
+        if (policies.remove(tableName) != null) {
+            Files.deleteIfExists(policyPath(tableName));
+        }
+    }
+
+    private Path policyPath(String tableName) {
+        return Path.of(storageDirectory, POLICY_DIRECTORY, tableName);
+    }
+
+    // Rows of TTL tables are deleted by a background task shortly after they expire, so indexes
+    // and statistics stay in step; getRow() already hides them in between
+    private void touchRows(String tableName, List<Row> rows) {
+        ConcurrentHashMap<String, Long> times = expiryTimes.get(tableName);
+        if (times != null) {
+            long expiresAt = System.currentTimeMillis() + policyOf(tableName).ttlSeconds() * 1000;
+            for (Row row : rows) {
+                times.put(row.key(), expiresAt);
+            }
+        }
+    }
+
+    boolean isExpired(String tableName, String key) {
+        ConcurrentHashMap<String, Long> times = expiryTimes.get(tableName);
+        Long expiresAt = (times == null) ? null : times.get(key);
+        return (expiresAt != null) && (expiresAt <= System.currentTimeMillis());
+    }
+
+    private void expireRows() {
+        for (Map.Entry<String, ConcurrentHashMap<String, Long>> entry : expiryTimes.entrySet()) {
+            long now = System.currentTimeMillis();
+            List<String> expired = new ArrayList<>();
+            entry.getValue().forEach((key, expiresAt) -> {
+                if (expiresAt <= now) {
+                    expired.add(key);
+                }
+            });
+            if (expired.isEmpty()) {
+                continue;
+            }
+            lock.lock();
+            try {
+                // Skip tables that were renamed or deleted, and rows that were written again, meanwhile
+                if (expiryTimes.get(entry.getKey()) != entry.getValue()) {
+                    continue;
+                }
+                expired.removeIf(key -> {
+                    Long expiresAt = entry.getValue().get(key);
+                    return (expiresAt == null) || (expiresAt > now);
+                });
+                try {
+                    deleteRows(entry.getKey(), expired);
+                } catch (IOException e) {
+                    logger.error("Error deleting expired rows of table " + entry.getKey(), e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Writes wait for the handler lock; the number of rows that are waiting to be written or
+    // being written is kept per table, as a measure of how far behind the worker is
     public void putRow(String tableName, Row row) throws IOException {
+        AtomicInteger pending = pendingWrites.computeIfAbsent(tableName, t -> new AtomicInteger());
+        pending.incrementAndGet();
+        try {
+            writeRow(tableName, row);
+        } finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    public void putRows(String tableName, List<Row> rows) throws IOException {
+        AtomicInteger pending = pendingWrites.computeIfAbsent(tableName, t -> new AtomicInteger());
+        pending.addAndGet(rows.size());
+        try {
+            writeRows(tableName, rows);
+        } finally {
+            pending.addAndGet(-rows.size());
+        }
+    }
+
+    private void writeRow(String tableName, Row row) throws IOException {
         createTableIfNecessary(tableName);
-        synchronized (this) {
-            if (tableName.startsWith("pt-")) {
+        lock.lock();
+        try {
+            touchRows(tableName, Collections.singletonList(row));
+            if (isPersistent(tableName)) {
                 PersistentTable table = persistentTableMap.get(tableName);
-                if (table.containsKey(row.key())) {
-                    Row existingRow = table.getRow(row.key());
-                    for (String col : row.columns()) {
-                        existingRow.put(col, row.get(col));
-                    }
-                    table.putRow(existingRow.key(), existingRow);
-                } else {
-                    table.putRow(row.key(), row);
-                }
+                Row existingRow = table.containsKey(row.key()) ? table.getRow(row.key()) : null;
+                Row newRow = (existingRow == null) ? row : mergeRows(existingRow, row);
+                table.putRow(newRow.key(), newRow);
+                recordPut(tableName, existingRow, newRow);
+                updateIndexes(tableName, Collections.singletonList(existingRow), Collections.singletonList(newRow));
             } else {
-                inMemoryTableMap.get(tableName).put(row.key(), row);
+                Map<String, Row> table = inMemoryTableMap.get(tableName);
+                Row existingRow = table.get(row.key());
+                Row newRow = (existingRow == null) ? row : mergeRows(existingRow, row);
+                storeRow(table, newRow);
+                recordPut(tableName, existingRow, newRow);
+                updateIndexes(tableName, Collections.singletonList(existingRow), Collections.singletonList(newRow));
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public void putRows(String tableName, List<Row> rows) throws IOException {
+    private void writeRows(String tableName, List<Row> rows) throws IOException {
         createTableIfNecessary(tableName);
-        synchronized (this) {
-            if (tableName.startsWith("pt-")) {
+        lock.lock();
+        try {
+            List<Row> oldRows = new ArrayList<>();
+            List<Row> newRows = new ArrayList<>();
+            touchRows(tableName, rows);
+            if (isPersistent(tableName)) {
                 PersistentTable table = persistentTableMap.get(tableName);
+                // Rows for the same key within one batch are merged first, so each key
+                // is read and appended only once
+                Map<String, Row> merged = new LinkedHashMap<>();
                 for (Row row : rows) {
-                    if (table.containsKey(row.key())) {
-                        Row existingRow = table.getRow(row.key());
-                        for (String col : existingRow.columns()) {
-                            row.put(col, existingRow.get(col));
-                        }
+                    Row existingRow = merged.get(row.key());
+                    if ((existingRow == null) && table.containsKey(row.key())) {
+                        existingRow = table.getRow(row.key());
                     }
+                    Row newRow = (existingRow == null) ? row : mergeRows(existingRow, row);
+                    merged.put(row.key(), newRow);
+                    recordPut(tableName, existingRow, newRow);
+                    oldRows.add(existingRow);
+                    newRows.add(newRow);
                 }
-                table.putRows(rows);
+                table.putRows(new ArrayList<>(merged.values()));
             } else {
-                ConcurrentHashMap<String, Row> table = inMemoryTableMap.get(tableName);
+                Map<String, Row> table = inMemoryTableMap.get(tableName);
                 for (Row row : rows) {
-                    table.put(row.key(), row);
+                    Row existingRow = table.get(row.key());
+                    Row newRow = (existingRow == null) ? row : mergeRows(existingRow, row);
+                    storeRow(table, newRow);
+                    recordPut(tableName, existingRow, newRow);
+                    oldRows.add(existingRow);
+                    newRows.add(newRow);
                 }
             }
+            updateIndexes(tableName, oldRows, newRows);
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized Row getRow(String tableName, String key) throws IOException {
-        if (tableName.startsWith("pt-")) {
-            if (persistentTableMap.containsKey(tableName)) {
-                PersistentTable table = persistentTableMap.get(tableName);
-                if (table.containsKey(key)) {
-                    return table.getRow(key);
-                } else {
-                    return null;
-                }
-            } else {
+    // The caller already has the old row, so a CompactTable does not need to decode it again
+    private static void storeRow(Map<String, Row> table, Row row) {
+        if (table instanceof CompactTable) {
+            ((CompactTable) table).set(row.key(), row);
+        } else {
+            table.put(row.key(), row);
+        }
+    }
+
+    // Returns a new row with the columns of both rows; columns of the newer row win
+    private static Row mergeRows(Row olderRow, Row newerRow) {
+        Row merged = olderRow.clone();
+        for (String col : newerRow.columns()) {
+            merged.put(col, newerRow.getBytes(col));
+        }
+        return merged;
+    }
+
+    private void recordPut(String tableName, Row oldRowOrNull, Row newRow) {
+        TableStats stats = tableStats.get(tableName);
+        if (stats != null) {
+            stats.recordPut(oldRowOrNull, newRow);
+        }
+    }
+
+    // Statistics of tables recovered from disk or restored from a backup are built on first
+    // use, so that startup does not have to read every row twice; after that they are maintained
+    // on every write. The handler lock is only held while each row is read, so writes go on
+    // during the scan and account for the rows they change before the scan gets to them.
+    public TableStats getStats(String tableName) throws IOException {
+        TableStats stats;
+        lock.lock();
+        try {
+            if (!containsKey(tableName)) {
                 return null;
             }
+            stats = tableStats.get(tableName);
+            if (stats == null) {
+                stats = TableStats.building();
+                tableStats.put(tableName, stats);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (stats.isBuilding()) {
+            // Callers that come while the statistics are built join the scan; no row counts twice
+            PersistentTable table = persistentTableMap.get(tableName);
+            for (Enumeration<String> e = (table == null) ? Collections.emptyEnumeration() : table.getKeys(); e.hasMoreElements(); ) {
+                String key = e.nextElement();
+                if (!stats.needsScan(key)) {
+                    continue;
+                }
+                lock.lock();
+                try {
+                    if (tableStats.get(tableName) != stats) {
+                        // Truncated, deleted or renamed in the meantime
+                        return getStats(tableName);
+                    }
+                    stats.recordScanned(key, table.getRow(key));
+                } finally {
+                    lock.unlock();
+                }
+            }
+            stats.finishBuilding();
+        }
+        if (stats.keyBoundsStale()) {
+            // Only once all of the smallest or the largest keys that the statistics keep are deleted
+            lock.lock();
+            try {
+                if (containsKey(tableName) && (tableStats.get(tableName) == stats)) {
+                    if (isPersistent(tableName)) {
+                        stats.recomputeKeyBounds(persistentTableMap.get(tableName).getKeys().asIterator());
+                    } else {
+                        stats.recomputeKeyBounds(inMemoryTableMap.get(tableName).keySet().iterator());
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return stats;
+    }
+
+    public boolean deleteRow(String tableName, String key) throws IOException {
+        lock.lock();
+        try {
+            return deleteRows(tableName, Collections.singletonList(key)) > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deletes all rows with startRow <= key < endRowExclusive; either bound may be null. The keys,
+    // and for a persistent table the rows, are found without the handler lock: the rows are read
+    // through a snapshot, and only those written again since then are read under the lock. Keys
+    // that are first written while the range is being read are not deleted.
+    public int deleteRange(String tableName, String startRow, String endRowExclusive) throws IOException {
+        PersistentTable persistentTable = persistentTableMap.get(tableName);
+        if (persistentTable == null) {
+            Map<String, Row> table = inMemoryTableMap.get(tableName);
+            if (table == null) {
+                return 0;
+            }
+            List<String> keys = new ArrayList<>();
+            for (String key : table.keySet()) {
+                if (((startRow == null) || (key.compareTo(startRow) >= 0)) && ((endRowExclusive == null) || (key.compareTo(endRowExclusive) < 0))) {
+                    keys.add(key);
+                }
+            }
+            lock.lock();
+            try {
+                return deleteRows(tableName, keys);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        PersistentTable.Snapshot snapshot = persistentTable.openSnapshot();
+        try {
+            List<String> keys = snapshot.keys(startRow, endRowExclusive);
+            Map<String, Row> oldRows = new HashMap<>();
+            if (tableStats.containsKey(tableName) || indexes.containsKey(tableName)) {
+                for (String key : keys) {
+                    Row row = snapshot.getRow(key);
+                    if (row != null) {
+                        oldRows.put(key, row);
+                    }
+                }
+            }
+            lock.lock();
+            try {
+                // Dropped or renamed meanwhile
+                if (persistentTableMap.get(tableName) != persistentTable) {
+                    return 0;
+                }
+                return deleteRows(tableName, keys, key -> {
+                    Row row = oldRows.get(key);
+                    return ((row != null) && persistentTable.unchangedSince(snapshot, key)) ? row : persistentTable.getRow(key);
+                });
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            snapshot.release();
+            // Compaction waits while a snapshot is open
+            if (persistentTable.needsCompaction()) {
+                compactionExecutor.execute(() -> compact(persistentTable));
+            }
+        }
+    }
+
+    private int deleteRows(String tableName, List<String> keys) throws IOException {
+        PersistentTable table = persistentTableMap.get(tableName);
+        return deleteRows(tableName, keys, (table == null) ? null : table::getRow);
+    }
+
+    // currentRows gives a persistent table's current version of a row, for the stats and indexes
+    private int deleteRows(String tableName, List<String> keys, RowReader currentRows) throws IOException {
+        if (!containsKey(tableName)) {
+            return 0;
+        }
+        TableStats stats = tableStats.get(tableName);
+        boolean indexed = indexes.containsKey(tableName);
+        ConcurrentHashMap<String, Long> times = expiryTimes.get(tableName);
+        if (times != null) {
+            keys.forEach(times::remove);
+        }
+        if (isPersistent(tableName)) {
+            PersistentTable table = persistentTableMap.get(tableName);
+            List<Row> oldRows = new ArrayList<>();
+            if ((stats != null) || indexed) {
+                for (String key : keys) {
+                    Row oldRow = currentRows.read(key);
+                    if (oldRow != null) {
+                        oldRows.add(oldRow);
+                        if (stats != null) {
+                            stats.recordDelete(oldRow);
+                        }
+                    }
+                }
+            }
+            int deleted = table.deleteRows(keys);
+            if (indexed) {
+                updateIndexes(tableName, oldRows, Collections.nCopies(oldRows.size(), null));
+            }
+            if (table.needsCompaction()) {
+                compactionExecutor.execute(() -> compact(table));
+            }
+            return deleted;
         } else {
-            if (inMemoryTableMap.containsKey(tableName)) {
-                return inMemoryTableMap.get(tableName).get(key);
+            Map<String, Row> table = inMemoryTableMap.get(tableName);
+            List<Row> oldRows = new ArrayList<>();
+            for (String key : keys) {
+                Row oldRow = table.remove(key);
+                if (oldRow != null) {
+                    oldRows.add(oldRow);
+                    if (stats != null) {
+                        stats.recordDelete(oldRow);
+                    }
+                }
+            }
+            if (indexed) {
+                updateIndexes(tableName, oldRows, Collections.nCopies(oldRows.size(), null));
+            }
+            return oldRows.size();
+        }
+    }
+
+    private interface RowReader {
+        Row read(String key) throws IOException;
+    }
+
+    public void truncate(String tableName) throws IOException {
+        lock.lock();
+        try {
+            if (!containsKey(tableName)) {
+                return;
+            }
+            if (isPersistent(tableName)) {
+                persistentTableMap.get(tableName).truncate();
             } else {
+                inMemoryTableMap.get(tableName).clear();
+            }
+            ConcurrentHashMap<String, Long> times = expiryTimes.get(tableName);
+            if (times != null) {
+                times.clear();
+            }
+            tableStats.put(tableName, new TableStats());
+            for (SecondaryIndex index : indexesOf(tableName)) {
+                truncate(index.indexTableName);
+                index.entries.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Compaction only holds the table's own lock, so other tables stay available meanwhile
+    private static void compact(PersistentTable table) {
+        try {
+            table.compact();
+        } catch (IOException e) {
+            logger.error("Error compacting table", e);
+        }
+    }
+
+    public boolean openSnapshot(String tableName, String snapshotID) throws IOException {
+        lock.lock();
+        try {
+            if (!containsKey(tableName)) {
+                return false;
+            }
+            TableSnapshot snapshot = isPersistent(tableName) ? persistentTableMap.get(tableName).openSnapshot() : new TableSnapshot.InMemory(tableName, inMemoryTableMap.get(tableName));
+            TableSnapshot previous = snapshots.put(snapshotID, snapshot);
+            if (previous != null) {
+                previous.release();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public TableSnapshot getSnapshot(String tableName, String snapshotID) {
+        TableSnapshot snapshot = snapshots.get(snapshotID);
+        if ((snapshot == null) || !snapshot.tableName.equals(tableName)) {
+            return null;
+        }
+        snapshot.lastAccess = System.currentTimeMillis();
+        return snapshot;
+    }
+
+    public boolean releaseSnapshot(String tableName, String snapshotID) {
+        TableSnapshot snapshot = snapshots.get(snapshotID);
+        if ((snapshot == null) || !snapshot.tableName.equals(tableName) || !snapshots.remove(snapshotID, snapshot)) {
+            return false;
+        }
+        snapshot.release();
+        return true;
+    }
+
+    private void expireSnapshots() {
+        long cutoff = System.currentTimeMillis() - SNAPSHOT_IDLE_TIMEOUT_MS;
+        for (Map.Entry<String, TableSnapshot> entry : snapshots.entrySet()) {
+            if (entry.getValue().lastAccess < cutoff) {
+                logger.info("Releasing idle snapshot " + entry.getKey() + " of table " + entry.getValue().tableName);
+                releaseSnapshot(entry.getValue().tableName, entry.getKey());
+            }
+        }
+    }
+
+    public void compact(String tableName) throws IOException {
+        PersistentTable table = persistentTableMap.get(tableName);
+        if (table != null) {
+            table.compact();
+        }
+    }
+
+    public int rowCount(String tableName) {
+        lock.lock();
+        try {
+            if (isPersistent(tableName)) {
+                PersistentTable table = persistentTableMap.get(tableName);
+                return (table == null) ? 0 : table.size();
+            } else {
+                Map<String, Row> table = inMemoryTableMap.get(tableName);
+                return (table == null) ? 0 : table.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Both maps are concurrent, so listing the tables does not need the handler lock
+    public Set<String> getTableNames() {
+        Set<String> names = new TreeSet<>(inMemoryTableMap.keySet());
+        names.addAll(persistentTableMap.keySet());
+        names.removeIf(SecondaryIndex::isIndexTable);
+        return names;
+    }
+
+    // Returns up to limit keys greater than fromKeyExclusive (null for the start of the table), in
+    // order. Only the limit smallest keys seen so far are kept, in a max-heap whose top is the
+    // largest of them, so a page costs one pass over the keys and O(limit) memory. The key maps
+    // are concurrent, so this does not need the handler lock and does not stall writers.
+    public List<String> keysAfter(String tableName, String fromKeyExclusive, int limit) {
+        Iterator<String> iter;
+        if (limit <= 0) {
+            return Collections.emptyList();
+        } else if (isPersistent(tableName)) {
+            PersistentTable table = persistentTableMap.get(tableName);
+            if (table == null) {
+                return Collections.emptyList();
+            }
+            iter = table.getKeys().asIterator();
+        } else {
+            Map<String, Row> table = inMemoryTableMap.get(tableName);
+            if (table == null) {
+                return Collections.emptyList();
+            }
+            iter = table.keySet().iterator();
+        }
+        PriorityQueue<String> smallest = new PriorityQueue<>(limit + 1, Collections.reverseOrder());
+        while (iter.hasNext()) {
+            String key = iter.next();
+            if ((fromKeyExclusive != null) && (key.compareTo(fromKeyExclusive) <= 0)) {
+                continue;
+            }
+            if (smallest.size() < limit) {
+                smallest.add(key);
+            } else if (key.compareTo(smallest.peek()) < 0) {
+                smallest.poll();
+                smallest.add(key);
+            }
+        }
+        List<String> keys = new ArrayList<>(smallest);
+        Collections.sort(keys);
+        return keys;
+    }
+
+    public Row getRow(String tableName, String key) throws IOException {
+        lock.lock();
+        try {
+            if (isExpired(tableName, key)) {
                 return null;
+            } else if (isPersistent(tableName)) {
+                if (persistentTableMap.containsKey(tableName)) {
+                    PersistentTable table = persistentTableMap.get(tableName);
+                    if (table.containsKey(key)) {
+                        return table.getRow(key);
+                    } else {
+                        return null;
+                    }
+                } else {
+                    return null;
+                }
+            } else {
+                if (inMemoryTableMap.containsKey(tableName)) {
+                    return inMemoryTableMap.get(tableName).get(key);
+                } else {
+                    return null;
+                }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void rename(String oldTableName, String newTableName) throws IOException {
-        if (oldTableName.startsWith("pt-")) {
-            if (persistentTableMap.containsKey(oldTableName)) {
+    // Renames within the same kind of storage only swap metadata, and they happen under the
+    // handler lock, so readers see either the old or the new name but never a partial table.
+    // Renaming between in-memory and persistent storage has to copy the rows.
+    public void rename(String oldTableName, String newTableName) throws IOException {
+        lock.lock();
+        try {
+            if (!containsKey(oldTableName)) {
+                return;
+            }
+            if (containsKey(newTableName)) {
+                throw new FileAlreadyExistsException(newTableName);
+            }
+            boolean persistent = isPersistent(oldTableName);
+            TablePolicy policy = policyAfterRename(oldTableName, newTableName);
+            setPolicy(newTableName, policy);
+            if (persistent && policy.isPersistent()) {
                 PersistentTable table = persistentTableMap.get(oldTableName);
                 table.rename(oldTableName, newTableName);
                 this.persistentTableMap.put(newTableName, persistentTableMap.remove(oldTableName));
+                removePolicy(oldTableName);
+                moveStats(oldTableName, newTableName);
+                moveExpiryTimes(oldTableName, newTableName);
+                moveIndexes(oldTableName, newTableName);
+            } else if (!persistent && !policy.isPersistent()) {
+                inMemoryTableMap.put(newTableName, inMemoryTableMap.remove(oldTableName));
+                removePolicy(oldTableName);
+                moveStats(oldTableName, newTableName);
+                moveExpiryTimes(oldTableName, newTableName);
+                moveIndexes(oldTableName, newTableName);
+            } else {
+                for (SecondaryIndex index : indexesOf(oldTableName)) {
+                    createIndex(newTableName, index.column);
+                }
+                copyRows(oldTableName, newTableName);
+                delete(oldTableName);
             }
-        } else {
-            ConcurrentHashMap<String, Row> table = inMemoryTableMap.get(oldTableName);
-            for (Map.Entry<String, Row> entry : table.entrySet()) {
-                putRow(newTableName, entry.getValue());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void copyTable(String tableName, String newTableName) throws IOException {
+        lock.lock();
+        try {
+            if (!containsKey(tableName)) {
+                return;
+            }
+            if (containsKey(newTableName)) {
+                throw new FileAlreadyExistsException(newTableName);
             }
+            TableStats stats = tableStats.get(tableName);
+            boolean persistent = isPersistent(tableName);
+            TablePolicy policy = policyAfterRename(tableName, newTableName);
+            setPolicy(newTableName, policy);
+            if (persistent && policy.isPersistent()) {
+                PersistentTable copy = persistentTableMap.get(tableName).copyTo(newTableName);
+                copy.applyPolicy(policy);
+                persistentTableMap.put(newTableName, copy);
+            } else if (!persistent && !policy.isPersistent()) {
+                Map<String, Row> table = inMemoryTableMap.get(tableName);
+                inMemoryTableMap.put(newTableName, (table instanceof CompactTable) ? ((CompactTable) table).copy() : new ConcurrentHashMap<>(table));
+            } else {
+                for (SecondaryIndex index : indexesOf(tableName)) {
+                    createIndex(newTableName, index.column);
+                }
+                copyRows(tableName, newTableName);
+                return;
+            }
+            // Statistics that are still being built are built again for the copy
+            if ((stats != null) && !stats.isBuilding()) {
+                tableStats.put(newTableName, stats.copy());
+            }
+            ConcurrentHashMap<String, Long> times = expiryTimes.get(tableName);
+            if (times != null) {
+                expiryTimes.put(newTableName, new ConcurrentHashMap<>(times));
+            }
+            for (SecondaryIndex index : indexesOf(tableName)) {
+                copyTable(index.indexTableName, SecondaryIndex.indexTableName(newTableName, index.column));
+                addIndex(new SecondaryIndex(newTableName, index.column, new ConcurrentSkipListSet<>(index.entries)));
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void delete(String tableName) throws IOException {
-        if (tableName.startsWith("pt-")) {
-            PersistentTable table = this.persistentTableMap.get(tableName);
-            table.delete();
-            this.persistentTableMap.remove(tableName);
+    private void copyRows(String tableName, String newTableName) throws IOException {
+        createTableIfNecessary(newTableName);
+        List<Row> rows = new ArrayList<>();
+        if (isPersistent(tableName)) {
+            PersistentTable table = persistentTableMap.get(tableName);
+            for (Enumeration<String> e = table.getKeys(); e.hasMoreElements(); ) {
+                Row row = table.getRow(e.nextElement());
+                if (row != null) {
+                    rows.add(row);
+                }
+            }
         } else {
-            inMemoryTableMap.remove(tableName);
+            rows.addAll(inMemoryTableMap.get(tableName).values());
+        }
+        putRows(newTableName, rows);
+    }
+
+    // Tables without a policy of their own go by their new name, as they always have
+    private TablePolicy policyAfterRename(String tableName, String newTableName) {
+        TablePolicy policy = policies.get(tableName);
+        return (policy != null) ? policy.renamedTo(newTableName) : TablePolicy.defaultFor(newTableName);
+    }
+
+    private void moveExpiryTimes(String oldTableName, String newTableName) {
+        ConcurrentHashMap<String, Long> times = expiryTimes.remove(oldTableName);
+        if (times != null) {
+            expiryTimes.put(newTableName, times);
         }
     }
 
-    public synchronized boolean containsKey(String tableName) {
-        if (tableName.startsWith("pt-")) {
-            return persistentTableMap.containsKey(tableName);
+    private void moveStats(String oldTableName, String newTableName) {
+        TableStats stats = tableStats.remove(oldTableName);
+        if (stats != null) {
+            tableStats.put(newTableName, stats);
         } else {
-            return inMemoryTableMap.containsKey(tableName);
+            tableStats.remove(newTableName);
         }
     }
 
-    public synchronized PersistentTable getPersistentTable(String tableName) throws FileNotFoundException {
-        createTableIfNecessary(tableName);
-        return persistentTableMap.get(tableName);
+    private void moveIndexes(String oldTableName, String newTableName) throws IOException {
+        for (SecondaryIndex index : indexesOf(oldTableName)) {
+            rename(index.indexTableName, SecondaryIndex.indexTableName(newTableName, index.column));
+            addIndex(new SecondaryIndex(newTableName, index.column, index.entries));
+        }
+        indexes.remove(oldTableName);
     }
 
-    public synchronized ConcurrentHashMap<String, Row> getInMemoryTable(String tableName) throws FileNotFoundException {
-        createTableIfNecessary(tableName);
-        return inMemoryTableMap.get(tableName);
+    // Declares an index on the column and fills it from the rows the table already has; from
+    // then on every write to the table also updates the index. Creates the table if needed,
+    // so that indexes can be declared before any data arrives.
+    public void createIndex(String tableName, String column) throws IOException {
+        lock.lock();
+        try {
+            if (SecondaryIndex.isIndexTable(tableName)) {
+                throw new IllegalArgumentException("Cannot index the index table " + tableName);
+            }
+            if (indexesOf(tableName).stream().anyMatch(index -> index.column.equals(column))) {
+                return;
+            }
+            createTableIfNecessary(tableName);
+            SecondaryIndex index = new SecondaryIndex(tableName, column);
+            createTableIfNecessary(index.indexTableName, policyOf(tableName).forIndexTable());
+
+            List<Row> rows = new ArrayList<>();
+            if (isPersistent(tableName)) {
+                PersistentTable table = persistentTableMap.get(tableName);
+                for (Enumeration<String> e = table.getKeys(); e.hasMoreElements(); ) {
+                    Row row = table.getRow(e.nextElement());
+                    if (row != null) {
+                        rows.add(row);
+                    }
+                }
+            } else {
+                rows.addAll(inMemoryTableMap.get(tableName).values());
+            }
+            Map<String, Boolean> changes = new LinkedHashMap<>();
+            for (Row row : rows) {
+                index.collectChanges(null, row, changes);
+            }
+            applyIndexChanges(index, changes);
+            addIndex(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean dropIndex(String tableName, String column) throws IOException {
+        lock.lock();
+        try {
+            Map<String, SecondaryIndex> tableIndexes = indexes.get(tableName);
+            SecondaryIndex index = (tableIndexes == null) ? null : tableIndexes.remove(column);
+            if (index == null) {
+                return false;
+            }
+            if (tableIndexes.isEmpty()) {
+                indexes.remove(tableName);
+            }
+            delete(index.indexTableName);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<String> getIndexedColumns(String tableName) {
+        lock.lock();
+        try {
+            List<String> columns = new ArrayList<>();
+            for (SecondaryIndex index : indexesOf(tableName)) {
+                columns.add(index.column);
+            }
+            return columns;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Keys of the rows whose column holds exactly the value, in sorted order, or null if the
+    // column is not indexed
+    public List<String> lookup(String tableName, String column, String value) throws IOException {
+        lock.lock();
+        try {
+            Map<String, SecondaryIndex> tableIndexes = indexes.get(tableName);
+            SecondaryIndex index = (tableIndexes == null) ? null : tableIndexes.get(column);
+            if (index == null) {
+                return null;
+            }
+            List<String> candidates = index.candidates(value);
+            if (!SecondaryIndex.needsCheck(value)) {
+                return candidates;
+            }
+            List<String> rowKeys = new ArrayList<>();
+            for (String key : candidates) {
+                Row row = getRow(tableName, key);
+                if ((row != null) && value.equals(row.get(column))) {
+                    rowKeys.add(key);
+                }
+            }
+            return rowKeys;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<SecondaryIndex> indexesOf(String tableName) {
+        Map<String, SecondaryIndex> tableIndexes = indexes.get(tableName);
+        return (tableIndexes == null) ? Collections.emptyList() : new ArrayList<>(tableIndexes.values());
+    }
+
+    private void addIndex(SecondaryIndex index) {
+        indexes.computeIfAbsent(index.tableName, t -> new ConcurrentHashMap<>()).put(index.column, index);
+    }
+
+    // oldRows and newRows are parallel lists; a null entry means the row did not exist before,
+    // or no longer exists after, the write
+    private void updateIndexes(String tableName, List<Row> oldRows, List<Row> newRows) throws IOException {
+        for (SecondaryIndex index : indexesOf(tableName)) {
+            Map<String, Boolean> changes = new LinkedHashMap<>();
+            for (int i = 0; i < oldRows.size(); i++) {
+                index.collectChanges(oldRows.get(i), newRows.get(i), changes);
+            }
+            applyIndexChanges(index, changes);
+        }
+    }
+
+    private void applyIndexChanges(SecondaryIndex index, Map<String, Boolean> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        List<Row> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            if (change.getValue()) {
+                added.add(SecondaryIndex.entryRow(change.getKey()));
+                index.entries.add(change.getKey());
+            } else {
+                removed.add(change.getKey());
+                index.entries.remove(change.getKey());
+            }
+        }
+        if (!removed.isEmpty()) {
+            deleteRows(index.indexTableName, removed);
+        }
+        if (!added.isEmpty()) {
+            putRows(index.indexTableName, added);
+        }
+    }
+
+    // Storage details of one table for the admin endpoints, or null if there is no such table.
+    // Everything comes from counters that the table maintains, and the handler lock is not
+    // taken, so this is cheap enough to poll continuously.
+    public Map<String, Object> adminInfo(String tableName) {
+        Map<String, Object> info = new LinkedHashMap<>();
+        TableStats stats = tableStats.get(tableName);
+        Long liveBytes = null;
+        if ((stats != null) && !stats.isBuilding()) {
+            // Every record is followed by a newline in the file
+            liveBytes = stats.byteSize() + (isPersistent(tableName) ? stats.rowCount() : 0);
+        }
+        TablePolicy policy = policyOf(tableName);
+        info.put("name", tableName);
+        if (isPersistent(tableName)) {
+            PersistentTable table = persistentTableMap.get(tableName);
+            if (table == null) {
+                return null;
+            }
+            long fileBytes = table.fileSize();
+            info.put("storage", policy.storage().name().toLowerCase());
+            info.put("keys", table.size());
+            info.put("fileBytes", fileBytes);
+            // Unknown for tables recovered from disk until their statistics have been built
+            info.put("liveBytes", liveBytes);
+            // Compressed rows take less space in the file than liveBytes says, so there is no estimate
+            boolean compressed = (policy.compression() != TablePolicy.Compression.NONE);
+            info.put("garbageBytes", ((liveBytes == null) || compressed) ? null : Math.max(0, fileBytes - liveBytes));
+            info.put("deadRecords", table.deadRecords());
+            info.put("indexMemoryBytes", table.indexMemoryBytes());
+            info.put("openHandles", table.openHandles());
+            info.put("activeReadHandles", table.activeReadHandles());
+            info.put("activeWriteHandles", table.activeWriteHandles());
+            info.put("handleCacheHits", table.handleHits());
+            info.put("handleCacheMisses", table.handleMisses());
+            info.put("openSnapshots", table.openSnapshots());
+            if (policy.storage() == TablePolicy.Storage.CACHED) {
+                info.put("rowCacheHits", table.rowCacheHits());
+                info.put("rowCacheMisses", table.rowCacheMisses());
+            }
+        } else {
+            Map<String, Row> table = inMemoryTableMap.get(tableName);
+            if (table == null) {
+                return null;
+            }
+            info.put("storage", (table instanceof CompactTable) ? "compact" : "memory");
+            info.put("keys", table.size());
+            info.put("liveBytes", liveBytes);
+            if (table instanceof CompactTable) {
+                info.put("memoryBytes", ((CompactTable) table).memoryBytes());
+            }
+        }
+        info.put("policy", policy.toQueryString());
+        AtomicInteger pending = pendingWrites.get(tableName);
+        info.put("pendingWrites", (pending == null) ? 0 : pending.get());
+        Map<String, Object> secondaryIndexes = new LinkedHashMap<>();
+        for (SecondaryIndex index : indexesOf(tableName)) {
+            // The index table keeps one entry per indexed row
+            Map<String, Object> indexInfo = adminInfo(index.indexTableName);
+            if (indexInfo != null) {
+                secondaryIndexes.put(index.column, indexInfo.get("keys"));
+            }
+        }
+        info.put("secondaryIndexes", secondaryIndexes);
+        return info;
+    }
+
+    public int pendingWrites() {
+        int total = 0;
+        for (AtomicInteger pending : pendingWrites.values()) {
+            total += pending.get();
+        }
+        return total;
+    }
+
+    public int openSnapshotCount() {
+        return snapshots.size();
+    }
+
+    public void delete(String tableName) throws IOException {
+        lock.lock();
+        try {
+            if (isPersistent(tableName)) {
+                PersistentTable table = this.persistentTableMap.get(tableName);
+                table.delete();
+                this.persistentTableMap.remove(tableName);
+            } else {
+                inMemoryTableMap.remove(tableName);
+            }
+            removePolicy(tableName);
+            expiryTimes.remove(tableName);
+            tableStats.remove(tableName);
+            pendingWrites.remove(tableName);
+            for (SecondaryIndex index : indexesOf(tableName)) {
+                delete(index.indexTableName);
+            }
+            indexes.remove(tableName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Backs up every persistent table to backups/<backupID> in the storage directory, on top of
+    // the newest earlier backup unless full is set. The tables are captured together under the
+    // handler lock, which only takes a copy of each index; the data is copied afterwards,
+    // while writes go on.
+    public Map<String, Object> backup(String backupID, boolean full) throws IOException {
+        Path backupsRoot = Path.of(storageDirectory, BACKUP_DIRECTORY);
+        Files.createDirectories(backupsRoot);
+        Path base = full ? null : TableBackup.newest(backupsRoot, backupID);
+        Map<String, PersistentTable.Capture> captures = new LinkedHashMap<>();
+        Map<String, TablePolicy> policiesNow;
+        try {
+            lock.lock();
+            try {
+                for (Map.Entry<String, PersistentTable> entry : persistentTableMap.entrySet()) {
+                    captures.put(entry.getKey(), entry.getValue().capture());
+                }
+                policiesNow = new HashMap<>(policies);
+            } finally {
+                lock.unlock();
+            }
+            return TableBackup.create(backupsRoot.resolve(backupID), base, captures, policiesNow);
+        } finally {
+            for (PersistentTable.Capture capture : captures.values()) {
+                capture.release();
+            }
+        }
     }
 
-    public synchronized ConcurrentHashMap<String, ConcurrentHashMap<String, Row>> getInMemoryTableMap() {
+    // Restores the tables of backups/<backupID>, or of the backup directory given instead,
+    // that this worker does not have; tables that exist are left alone. The files are
+    // assembled without the handler lock, and each is then attached as a whole. A directory
+    // that is given must be in the backups directory or in BULK_LOAD_DIRECTORY, so that
+    // clients cannot make the worker read files from anywhere else.
+    public Map<String, Object> restore(String backupID, String backupDirectoryOrNull) throws IOException {
+        Path backupDir = Path.of(storageDirectory, BACKUP_DIRECTORY, backupID);
+        if (backupDirectoryOrNull != null) {
+            // Real paths, so that neither .. nor symbolic links lead elsewhere
+            backupDir = Path.of(backupDirectoryOrNull).toRealPath();
+            if (!isWithin(backupDir, Path.of(storageDirectory, BACKUP_DIRECTORY)) && !isWithin(backupDir, Path.of(BULK_LOAD_DIRECTORY))) {
+                throw new AccessDeniedException(backupDirectoryOrNull, null, "Backups can only be restored from " + BACKUP_DIRECTORY + " or " + BULK_LOAD_DIRECTORY);
+            }
+        }
+        List<String> restored = new ArrayList<>();
+        List<String> skipped = new ArrayList<>();
+        Predicate<String> isNew = tableName -> {
+            if (containsKey(tableName)) {
+                skipped.add(tableName);
+                return false;
+            }
+            return true;
+        };
+        for (TableBackup.RestoredTable table : TableBackup.restore(backupDir, storageDirectory, isNew)) {
+            if (attachTable(table.tableName, table.file, table.index, table.deadRecords, table.policy)) {
+                restored.add(table.tableName);
+            } else {
+                skipped.add(table.tableName);
+            }
+        }
+        // Indexes can only be registered once the indexed table is there as well
+        lock.lock();
+        try {
+            for (String tableName : restored) {
+                if (SecondaryIndex.isIndexTable(tableName) && containsKey(SecondaryIndex.indexedTableOf(tableName))) {
+                    registerIndexTable(tableName);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("restored", restored);
+        summary.put("skipped", skipped);
+        return summary;
+    }
+
+    private static boolean isWithin(Path dir, Path root) throws IOException {
+        return Files.isDirectory(root) && dir.startsWith(root.toRealPath());
+    }
+
+    // Moves a complete table file, written elsewhere in the storage directory, into place and
+    // serves it with the given index; readers see either no table or all of it. Returns false,
+    // and deletes the file, if a table with the name appeared in the meantime.
+    boolean attachTable(String tableName, Path file, Map<String, Long> index, long deadRecords, TablePolicy policy) throws IOException {
+        lock.lock();
+        try {
+            if (containsKey(tableName) || !policy.isPersistent()) {
+                Files.deleteIfExists(file);
+                return false;
+            }
+            Path tablePath = Path.of(storageDirectory, tableName);
+            Files.move(file, tablePath, StandardCopyOption.ATOMIC_MOVE);
+            PersistentTable table = PersistentTable.attach(tablePath.toString(), index, deadRecords);
+            table.applyPolicy(policy);
+            setPolicy(tableName, policy);
+            persistentTableMap.put(tableName, table);
+            trackExpiryOfAllRows(tableName, policy);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean containsKey(String tableName) {
+        lock.lock();
+        try {
+            return persistentTableMap.containsKey(tableName) || inMemoryTableMap.containsKey(tableName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public PersistentTable getPersistentTable(String tableName) throws IOException {
+        lock.lock();
+        try {
+            createTableIfNecessary(tableName);
+            return persistentTableMap.get(tableName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Row> getInMemoryTable(String tableName) throws IOException {
+        lock.lock();
+        try {
+            createTableIfNecessary(tableName);
+            return inMemoryTableMap.get(tableName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ConcurrentHashMap<String, Map<String, Row>> getInMemoryTableMap() {
         return inMemoryTableMap;
     }
+
+    // For callers that need several calls to see the same set of tables
+    ReentrantLock handlerLock() {
+        return lock;
+    }
 }
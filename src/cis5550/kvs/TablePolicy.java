@@ -0,0 +1,246 @@
+package cis5550.kvs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.function.Function;
+
+// How a table is stored, declared when the table is created with PUT /persist/:T. Tables that
+// are created implicitly, by their first write, get the default policy for their name:
+// persistent for pt- tables and in-memory for all others. Once a table exists, its policy,
+// and not its name, decides where reads and writes go.
+public final class TablePolicy {
+    public enum Storage {
+        MEMORY, COMPACT, PERSISTENT,
+        // Persistent, with a bounded cache of recently read rows in front of the file
+        CACHED
+    }
+
+    public enum Compression { NONE, DEFLATE }
+
+    public enum Fsync {
+        // The OS decides when appended rows reach the disk
+        NONE,
+        // Every write is forced to the disk before it is acknowledged
+        ALWAYS
+    }
+
+    public static final int DEFAULT_CACHE_ROWS = 10000;
+
+    private static final TablePolicy MEMORY = new Builder().storage(Storage.MEMORY).build();
+    private static final TablePolicy PERSISTENT = new Builder().storage(Storage.PERSISTENT).build();
+
+    private final Storage storage;
+    private final Compression compression;
+    private final Fsync fsync;
+    // Rows expire this long after they were last written; 0 means never
+    private final long ttlSeconds;
+    private final int cacheRows;
+
+    private TablePolicy(Builder builder) {
+        this.storage = builder.storage;
+        this.compression = builder.compression;
+        this.fsync = builder.fsync;
+        this.ttlSeconds = builder.ttlSeconds;
+        this.cacheRows = builder.cacheRows;
+    }
+
+    public static TablePolicy defaultFor(String tableName) {
+        return tableName.startsWith("pt-") ? PERSISTENT : MEMORY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Builder toBuilder() {
+        return new Builder().storage(storage).compression(compression).fsync(fsync).ttlSeconds(ttlSeconds).cacheRows(cacheRows);
+    }
+
+    public Storage storage() {
+        return storage;
+    }
+
+    public Compression compression() {
+        return compression;
+    }
+
+    public Fsync fsync() {
+        return fsync;
+    }
+
+    public long ttlSeconds() {
+        return ttlSeconds;
+    }
+
+    public int cacheRows() {
+        return cacheRows;
+    }
+
+    public boolean isPersistent() {
+        return (storage == Storage.PERSISTENT) || (storage == Storage.CACHED);
+    }
+
+    // The policy a table keeps under a new name. A pt- name always means persistent storage,
+    // as it did before policies existed, so renaming an in-memory table to pt-... still saves it.
+    TablePolicy renamedTo(String newTableName) {
+        if (!newTableName.startsWith("pt-") || isPersistent()) {
+            return this;
+        }
+        return toBuilder().storage(Storage.PERSISTENT).build();
+    }
+
+    // Index tables are stored like the table they index, but their rows never expire on their
+    // own (they are removed when the indexed row is), and they are too small to be worth
+    // caching or compressing
+    TablePolicy forIndexTable() {
+        return toBuilder().storage((storage == Storage.CACHED) ? Storage.PERSISTENT : storage).compression(Compression.NONE).ttlSeconds(0).build();
+    }
+
+    // Reads a policy from the query parameters of PUT /persist/:T; parameters that are not
+    // given keep the default for the table's name. Throws IllegalArgumentException if a
+    // parameter is invalid or does not fit the table.
+    public static TablePolicy fromQueryParams(String tableName, Function<String, String> params) {
+        Builder builder = defaultFor(tableName).toBuilder();
+        String storage = params.apply("storage");
+        if (storage != null) {
+            builder.storage(parseEnum(Storage.class, "storage", storage));
+        }
+        String compression = params.apply("compression");
+        if (compression != null) {
+            builder.compression(parseEnum(Compression.class, "compression", compression));
+        }
+        String fsync = params.apply("fsync");
+        if (fsync != null) {
+            builder.fsync(parseEnum(Fsync.class, "fsync", fsync));
+        }
+        String ttl = params.apply("ttl");
+        if (ttl != null) {
+            builder.ttlSeconds(parseNumber("ttl", ttl));
+        }
+        String cacheRows = params.apply("cacheRows");
+        if (cacheRows != null) {
+            builder.cacheRows((int) Math.min(Integer.MAX_VALUE, parseNumber("cacheRows", cacheRows)));
+        }
+        String replication = params.apply("replication");
+        if ((replication != null) && (parseNumber("replication", replication) != 1)) {
+            throw new IllegalArgumentException("replication factors other than 1 are not supported: the KVS does not place replicas");
+        }
+        TablePolicy policy = builder.build();
+        if (tableName.startsWith("pt-") && !policy.isPersistent()) {
+            throw new IllegalArgumentException("pt- tables are always persistent");
+        }
+        return policy;
+    }
+
+    public String toQueryString() {
+        return "storage=" + storage.name().toLowerCase(Locale.ROOT)
+                + "&compression=" + compression.name().toLowerCase(Locale.ROOT)
+                + "&fsync=" + fsync.name().toLowerCase(Locale.ROOT)
+                + "&ttl=" + ttlSeconds
+                + "&cacheRows=" + cacheRows;
+    }
+
+    void store(Path path) throws IOException {
+        Properties properties = new Properties();
+        for (String param : toQueryString().split("&")) {
+            String[] pieces = param.split("=", 2);
+            properties.setProperty(pieces[0], pieces[1]);
+        }
+        Files.createDirectories(path.getParent());
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempPath)) {
+            properties.store(out, null);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static TablePolicy load(String tableName, Path path) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        }
+        return fromQueryParams(tableName, properties::getProperty);
+    }
+
+    public boolean equals(Object o) {
+        return (o instanceof TablePolicy) && toQueryString().equals(((TablePolicy) o).toQueryString());
+    }
+
+    public int hashCode() {
+        return toQueryString().hashCode();
+    }
+
+    public String toString() {
+        return toQueryString();
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String param, String value) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid " + param + ": " + value);
+        }
+    }
+
+    private static long parseNumber(String param, String value) {
+        try {
+            long number = Long.parseLong(value);
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid " + param + ": " + value);
+    }
+
+    public static final class Builder {
+        private Storage storage = Storage.MEMORY;
+        private Compression compression = Compression.NONE;
+        private Fsync fsync = Fsync.NONE;
+        private long ttlSeconds;
+        private int cacheRows = DEFAULT_CACHE_ROWS;
+
+        private Builder() {
+        }
+
+        public Builder storage(Storage storage) {
+            this.storage = storage;
+            return this;
+        }
+
+        public Builder compression(Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder fsync(Fsync fsync) {
+            this.fsync = fsync;
+            return this;
+        }
+
+        public Builder ttlSeconds(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+            return this;
+        }
+
+        public Builder cacheRows(int cacheRows) {
+            this.cacheRows = cacheRows;
+            return this;
+        }
+
+        // Compression and fsync only apply to rows on disk
+        public TablePolicy build() {
+            if (!(storage == Storage.PERSISTENT || storage == Storage.CACHED) && ((compression != Compression.NONE) || (fsync != Fsync.NONE))) {
+                throw new IllegalArgumentException("compression and fsync need persistent storage");
+            }
+            return new TablePolicy(this);
+        }
+    }
+}
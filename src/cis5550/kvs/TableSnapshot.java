@@ -0,0 +1,62 @@
+package cis5550.kvs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A point-in-time view of a table. Scans of a snapshot see exactly the rows that existed when
+// it was opened, no matter what is written to the table afterwards. Snapshots must be
+// released so that the table can drop the bookkeeping it keeps for them.
+abstract class TableSnapshot {
+    final String tableName;
+    volatile long lastAccess = System.currentTimeMillis();
+
+    TableSnapshot(String tableName) {
+        this.tableName = tableName;
+    }
+
+    // Keys visible in the snapshot with startRow <= key < endRowExclusive (either may be null), in sorted order
+    abstract List<String> keys(String startRow, String endRowExclusive);
+
+    // The row as it was when the snapshot was opened, or null if it did not exist
+    abstract Row getRow(String key) throws IOException;
+
+    abstract void release();
+
+    static boolean inRange(String key, String startRow, String endRowExclusive) {
+        return ((startRow == null) || (key.compareTo(startRow) >= 0)) && ((endRowExclusive == null) || (key.compareTo(endRowExclusive) < 0));
+    }
+
+    // In-memory tables never modify a stored Row (writes replace it with a new object), so a
+    // shallow copy of the map is enough to freeze the table. A CompactTable copy shares the
+    // table's records and only duplicates its slot arrays.
+    static class InMemory extends TableSnapshot {
+        private final Map<String, Row> rows;
+
+        InMemory(String tableName, Map<String, Row> table) {
+            super(tableName);
+            this.rows = (table instanceof CompactTable) ? ((CompactTable) table).copy() : new HashMap<>(table);
+        }
+
+        List<String> keys(String startRow, String endRowExclusive) {
+            List<String> keys = new ArrayList<>();
+            for (String key : rows.keySet()) {
+                if (inRange(key, startRow, endRowExclusive)) {
+                    keys.add(key);
+                }
+            }
+            Collections.sort(keys);
+            return keys;
+        }
+
+        Row getRow(String key) {
+            return rows.get(key);
+        }
+
+        void release() {
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package cis5550.kvs;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Statistics about the live rows of a table: row count, serialized size, how many rows
+// contain each column, and the smallest and largest key. The worker keeps one instance per
+// table and updates it on every write, so reading the statistics never scans the table.
+public class TableStats {
+    private static final String COLUMN_PREFIX = "col:";
+
+    // How many of the smallest and of the largest keys are kept
+    private static final int KEY_RESERVE = 64;
+
+    private long rowCount;
+    private long byteSize;
+    // lowKeys holds every key of the table up to lowKeys.last(), and highKeys every key from
+    // highKeys.first() on, so deleting the smallest or largest key rarely needs a scan; when
+    // lowComplete (highComplete) is set, the set holds every key of the table
+    private final TreeSet<String> lowKeys = new TreeSet<>();
+    private final TreeSet<String> highKeys = new TreeSet<>();
+    private boolean lowComplete = true;
+    private boolean highComplete = true;
+    // Set when all the keys in one of the sets are deleted; the owner then rescans the keys
+    private boolean keyBoundsStale;
+    private final Map<String, Long> columnCounts = new HashMap<>();
+    // While the owner builds the statistics of an existing table by reading its rows: the keys
+    // that are accounted for, whether by the owner's scan or by a write that came first
+    private Set<String> counted;
+
+    // Statistics that the owner fills with recordScanned(), while writes keep coming in
+    static TableStats building() {
+        TableStats stats = new TableStats();
+        stats.counted = new HashSet<>();
+        return stats;
+    }
+
+    public synchronized long rowCount() {
+        return rowCount;
+    }
+
+    public synchronized long byteSize() {
+        return byteSize;
+    }
+
+    public synchronized String minKey() {
+        return lowKeys.isEmpty() ? null : lowKeys.first();
+    }
+
+    public synchronized String maxKey() {
+        return highKeys.isEmpty() ? null : highKeys.last();
+    }
+
+    public synchronized Map<String, Long> columnCounts() {
+        return new HashMap<>(columnCounts);
+    }
+
+    // Records that oldRowOrNull (if any) has been replaced by newRow
+    public synchronized void recordPut(Row oldRowOrNull, Row newRow) {
+        if ((counted != null) && counted.add(newRow.key())) {
+            // The scan has not reached the old row and will now skip it
+            oldRowOrNull = null;
+        }
+        if (oldRowOrNull == null) {
+            rowCount++;
+            addKey(newRow.key());
+        } else {
+            byteSize -= oldRowOrNull.byteSize();
+            for (String col : oldRowOrNull.columns()) {
+                columnCounts.computeIfPresent(col, (c, count) -> (count > 1) ? count - 1 : null);
+            }
+        }
+        byteSize += newRow.byteSize();
+        for (String col : newRow.columns()) {
+            columnCounts.merge(col, 1L, Long::sum);
+        }
+    }
+
+    public synchronized void recordDelete(Row oldRow) {
+        if ((counted != null) && counted.add(oldRow.key())) {
+            return;
+        }
+        rowCount--;
+        byteSize -= oldRow.byteSize();
+        for (String col : oldRow.columns()) {
+            columnCounts.computeIfPresent(col, (c, count) -> (count > 1) ? count - 1 : null);
+        }
+        String key = oldRow.key();
+        if ((lowKeys.remove(key) && lowKeys.isEmpty() && !lowComplete) || (highKeys.remove(key) && highKeys.isEmpty() && !highComplete)) {
+            keyBoundsStale = true;
+        }
+    }
+
+    private void addKey(String key) {
+        if (lowComplete || (!lowKeys.isEmpty() && (key.compareTo(lowKeys.last()) < 0))) {
+            lowKeys.add(key);
+            if (lowKeys.size() > KEY_RESERVE) {
+                lowKeys.pollLast();
+                lowComplete = false;
+            }
+        }
+        if (highComplete || (!highKeys.isEmpty() && (key.compareTo(highKeys.first()) > 0))) {
+            highKeys.add(key);
+            if (highKeys.size() > KEY_RESERVE) {
+                highKeys.pollFirst();
+                highComplete = false;
+            }
+        }
+    }
+
+    // Whether the owner's scan still has to read the row with this key
+    synchronized boolean needsScan(String key) {
+        return (counted != null) && !counted.contains(key);
+    }
+
+    // Records a row that the owner's scan has read, or null if the row is gone
+    synchronized void recordScanned(String key, Row rowOrNull) {
+        if ((counted != null) && counted.add(key) && (rowOrNull != null)) {
+            rowCount++;
+            addKey(key);
+            byteSize += rowOrNull.byteSize();
+            for (String col : rowOrNull.columns()) {
+                columnCounts.merge(col, 1L, Long::sum);
+            }
+        }
+    }
+
+    // Called when the owner's scan has read every key; writes have accounted for the rest
+    synchronized void finishBuilding() {
+        counted = null;
+    }
+
+    synchronized boolean isBuilding() {
+        return counted != null;
+    }
+
+    public synchronized boolean keyBoundsStale() {
+        return keyBoundsStale;
+    }
+
+    public synchronized void recomputeKeyBounds(Iterator<String> keys) {
+        lowKeys.clear();
+        highKeys.clear();
+        lowComplete = true;
+        highComplete = true;
+        while (keys.hasNext()) {
+            addKey(keys.next());
+        }
+        keyBoundsStale = false;
+    }
+
+    // Combines the statistics of two partitions of the same table
+    public void merge(TableStats other) {
+        TableStats copy = other.copy();
+        synchronized (this) {
+            mergeCopy(copy);
+        }
+    }
+
+    private void mergeCopy(TableStats copy) {
+        rowCount += copy.rowCount;
+        byteSize += copy.byteSize;
+        for (Map.Entry<String, Long> entry : copy.columnCounts.entrySet()) {
+            columnCounts.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+        // Only the bounds matter here, and the other partition's keys all belong in the sets
+        lowKeys.addAll(copy.lowKeys);
+        highKeys.addAll(copy.highKeys);
+    }
+
+    public synchronized TableStats copy() {
+        TableStats copy = new TableStats();
+        copy.rowCount = rowCount;
+        copy.byteSize = byteSize;
+        copy.lowKeys.addAll(lowKeys);
+        copy.highKeys.addAll(highKeys);
+        copy.lowComplete = lowComplete;
+        copy.highComplete = highComplete;
+        copy.keyBoundsStale = keyBoundsStale;
+        copy.columnCounts.putAll(columnCounts);
+        return copy;
+    }
+
+    // The statistics travel between worker and client in the same format as a Row
+    public synchronized Row toRow(String tableName) {
+        Row row = new Row(tableName);
+        row.put("rows", String.valueOf(rowCount));
+        row.put("bytes", String.valueOf(byteSize));
+        if (!lowKeys.isEmpty()) {
+            row.put("minKey", lowKeys.first());
+        }
+        if (!highKeys.isEmpty()) {
+            row.put("maxKey", highKeys.last());
+        }
+        for (Map.Entry<String, Long> entry : columnCounts.entrySet()) {
+            row.put(COLUMN_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        return row;
+    }
+
+    public static TableStats fromRow(Row row) {
+        TableStats stats = new TableStats();
+        for (String col : row.columns()) {
+            if (col.equals("rows")) {
+                stats.rowCount = Long.parseLong(row.get(col));
+            } else if (col.equals("bytes")) {
+                stats.byteSize = Long.parseLong(row.get(col));
+            } else if (col.equals("minKey")) {
+                stats.lowKeys.add(row.get(col));
+            } else if (col.equals("maxKey")) {
+                stats.highKeys.add(row.get(col));
+            } else if (col.startsWith(COLUMN_PREFIX)) {
+                stats.columnCounts.put(col.substring(COLUMN_PREFIX.length()), Long.parseLong(row.get(col)));
+            }
+        }
+        return stats;
+    }
+
+    public static TableStats fromBytes(byte[] data) throws Exception {
+        Row row = Row.readFrom(new ByteArrayInputStream(data));
+        return (row == null) ? new TableStats() : fromRow(row);
+    }
+
+    public synchronized String toString() {
+        return "rows=" + rowCount + ", bytes=" + byteSize + ", minKey=" + minKey() + ", maxKey=" + maxKey() + ", columns=" + columnCounts;
+    }
+}
@@ -9,8 +9,10 @@ import static cis5550.webserver.Server.*;
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.net.URLEncoder;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
@@ -97,8 +99,23 @@ public class Worker extends cis5550.generic.Worker {
         putPersistentTable();
         putRowsInTable();
         getRowCountOfTable();
+        getStatsOfTable();
         renameTable();
+        copyTable();
         deleteTable();
+        deleteRowFromTable();
+        deleteRangeFromTable();
+        truncateTable();
+        compactTable();
+        openSnapshotOfTable();
+        releaseSnapshotOfTable();
+        createIndexOnTable();
+        dropIndexOfTable();
+        getIndexesOfTable();
+        lookupRowsByIndex();
+        backupTables();
+        restoreTables();
+        setupAdminEndpoints();
     }
 
     public static String generateRandomId() {
@@ -206,36 +223,13 @@ public class Worker extends cis5550.generic.Worker {
             html.append("<html><body><h1>Table List</h1>");
             html.append("<table border='1'>");
             html.append("<tr><th>Name</th><th>Keys</th></tr>");
-            for (Map.Entry<String, ConcurrentHashMap<String, Row>> entry : tableHandler.getInMemoryTableMap().entrySet()) {
-                String tableName = entry.getKey();
-                int rowCount = entry.getValue().size();
+            for (String tableName : tableHandler.getTableNames()) {
                 html.append("<tr>")
                         .append("<td><a href='/view/").append(tableName).append("'>")
                         .append(tableName).append("</a></td>")
-                        .append("<td>").append(rowCount).append("</td>")
+                        .append("<td>").append(tableHandler.rowCount(tableName)).append("</td>")
                         .append("</tr>");
             }
-            if (tableHandler != null) {
-                try {
-                    File[] files = new File(storageDirectory).listFiles();
-                    if (files != null) {
-                        for (File file : files) {
-                            if (file.isFile() && !file.getName().equals("id")) {
-                                String tableName = file.getName();
-                                PersistentTable table = tableHandler.getPersistentTable(tableName);
-                                int rowCount = table.size();
-                                html.append("<tr>")
-                                        .append("<td><a href='/view/").append(tableName).append("'>")
-                                        .append(tableName).append("</a></td>")
-                                        .append("<td>").append(rowCount).append("</td>")
-                                        .append("</tr>");
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    logger.error("Error reading persistent table", e);
-                }
-            }
 
             html.append("</table></body></html>");
             res.type("text/html");
@@ -255,38 +249,18 @@ public class Worker extends cis5550.generic.Worker {
             html.append("<body><h3>Table: ").append(tableName).append("</h3>");
             html.append("<table border='1'>\n");
 
-            TreeSet<String> rowKeys = new TreeSet<>();
             TreeSet<String> columnNames = new TreeSet<>();
 
             try {
-                if (tableName.startsWith("pt-")) {
-                    PersistentTable table = tableHandler.getPersistentTable(tableName);
-                    for (Enumeration<String> e = table.getKeys(); e.hasMoreElements();) {
-                        String key = e.nextElement();
-                        if (fromRow == null || key.compareTo(fromRow) > 0) {
-                            rowKeys.add(key);
-                        }
-                    }
-                } else {
-                    ConcurrentHashMap<String, Row> table = tableHandler.getInMemoryTable(tableName);
-                    if (table != null) {
-                        for (String key : table.keySet()) {
-                            if (fromRow == null || key.compareTo(fromRow) > 0) {
-                                rowKeys.add(key);
-                            }
-                        }
-                    }
-                }
-
-                Iterator<String> keyIter = rowKeys.iterator();
-                int count = 0;
-                while (keyIter.hasNext() && count < pageSize) {
-                    String key = keyIter.next();
+                // One key past the page tells whether there is a next page
+                List<String> pageKeys = tableHandler.keysAfter(tableName, fromRow, pageSize + 1);
+                List<Row> rows = new ArrayList<>();
+                for (String key : pageKeys.subList(0, Math.min(pageSize, pageKeys.size()))) {
                     Row row = tableHandler.getRow(tableName, key);
                     if (row != null) {
+                        rows.add(row);
                         columnNames.addAll(row.columns());
                     }
-                    count++;
                 }
 
                 html.append("<tr><th>Key</th>");
@@ -295,26 +269,18 @@ public class Worker extends cis5550.generic.Worker {
                 }
                 html.append("</tr>\n");
 
-                keyIter = rowKeys.iterator();
-                count = 0;
-                String nextKey = null;
-                while (keyIter.hasNext() && count < pageSize) {
-                    String key = keyIter.next();
-                    Row row = tableHandler.getRow(tableName, key);
-                    if (row != null) {
-                        html.append("<tr><td>").append(key).append("</td>");
-                        for (String column : columnNames) {
-                            String value = row.get(column);
-                            html.append("<td>").append(value != null ? value : "").append("</td>");
-                        }
-                        html.append("</tr>\n");
-                    }
-                    count++;
-                    if (keyIter.hasNext() && count == pageSize) {
-                        nextKey = keyIter.next();
+                for (Row row : rows) {
+                    html.append("<tr><td>").append(row.key()).append("</td>");
+                    for (String column : columnNames) {
+                        String value = row.get(column);
+                        html.append("<td>").append(value != null ? value : "").append("</td>");
                     }
+                    html.append("</tr>\n");
                 }
 
+                // fromRow is exclusive, so the next page starts after the last key on this one
+                String nextKey = (pageKeys.size() > pageSize) ? pageKeys.get(pageSize - 1) : null;
+
                 html.append("</table>");
 
                 if (nextKey != null) {
@@ -337,14 +303,26 @@ public class Worker extends cis5550.generic.Worker {
     public static void putPersistentTable() {
         put("/persist/:T", (req, res) -> {
             String tableName = req.params("T");
+            // The query parameters declare the table's storage policy; see TablePolicy
+            TablePolicy policy;
+            try {
+                policy = TablePolicy.fromQueryParams(tableName, req::queryParams);
+            } catch (IllegalArgumentException e) {
+                res.status(400, "Bad Request");
+                return e.getMessage();
+            }
             if (tableHandler.containsKey(tableName)) {
                 res.status(403, "FORBIDDEN");
                 return "FORBIDDEN";
-            } else {
-                tableHandler.createTableIfNecessary(tableName);
-                res.status(200, "OK");
-                return "OK";
             }
+            try {
+                tableHandler.createTableIfNecessary(tableName, policy);
+            } catch (FileAlreadyExistsException e) {
+                res.status(400, "Bad Request");
+                return "Table name " + tableName + " is taken by another file";
+            }
+            res.status(200, "OK");
+            return "OK";
         });
     }
 
@@ -352,34 +330,29 @@ public class Worker extends cis5550.generic.Worker {
         get("/data/:T/:R", (req, res) -> {
             String tableName = req.params("T");
             String rowKey = req.params("R");
-            if (tableHandler.containsKey(tableName)) {
-                if (tableName.startsWith("pt-")) {
-                    PersistentTable table = tableHandler.getPersistentTable(tableName);
-                    if (table.containsKey(rowKey)) {
-                        Row row = table.getRow(rowKey);
-                        res.bodyAsBytes(row.toByteArray());
-                        res.status(200, "OK");
-                        return null;
-                    } else {
-                        res.status(404, "NOT FOUND");
-                        return "NOT FOUND";
+            Row row = null;
+            if (tableHandler.containsKey(tableName) && !tableHandler.isExpired(tableName, rowKey)) {
+                // ?exists answers from the index, without reading or sending the row
+                if (req.queryParams("exists") != null) {
+                    boolean exists = tableHandler.isPersistent(tableName)
+                            ? tableHandler.getPersistentTable(tableName).containsKey(rowKey)
+                            : tableHandler.getInMemoryTable(tableName).containsKey(rowKey);
+                    if (exists) {
+                        return "OK";
                     }
+                } else if (tableHandler.isPersistent(tableName)) {
+                    row = tableHandler.getPersistentTable(tableName).getRow(rowKey);
                 } else {
-                    ConcurrentHashMap<String, Row> table = tableHandler.getInMemoryTable(tableName);
-                    if (table.containsKey(rowKey)) {
-                        Row row = table.get(rowKey);
-                        res.bodyAsBytes(row.toByteArray());
-                        res.status(200, "OK");
-                        return null;
-                    } else {
-                        res.status(404, "NOT FOUND");
-                        return "NOT FOUND";
-                    }
+                    row = tableHandler.getInMemoryTable(tableName).get(rowKey);
                 }
-            } else {
+            }
+            if (row == null) {
                 res.status(404, "NOT FOUND");
                 return "NOT FOUND";
             }
+            res.bodyAsBytes(row.toByteArray());
+            res.status(200, "OK");
+            return null;
         });
     }
 
@@ -388,33 +361,62 @@ public class Worker extends cis5550.generic.Worker {
             String tableName = req.params("T");
             String startRow = req.queryParams("startRow");
             String endRowExclusive = req.queryParams("endRowExclusive");
+            String snapshotID = req.queryParams("snapshot");
 
             if (!tableHandler.containsKey(tableName)) {
                 res.status(404, "NOT FOUND");
                 return "NOT FOUND";
             }
 
-            if (tableName.startsWith("pt-")) {
+            if (snapshotID != null) {
+                TableSnapshot snapshot = tableHandler.getSnapshot(tableName, snapshotID);
+                if (snapshot == null) {
+                    res.status(404, "NOT FOUND");
+                    return "NOT FOUND";
+                }
+                for (String rowKey : snapshot.keys((startRow == null || startRow.isEmpty()) ? null : startRow,
+                        (endRowExclusive == null || endRowExclusive.isEmpty()) ? null : endRowExclusive)) {
+                    Row row = snapshot.getRow(rowKey);
+                    if (row != null) {
+                        res.write(row.toByteArray());
+                        res.write("\n".getBytes());
+                    }
+                }
+                res.write("\n".getBytes());
+                res.status(200, "OK");
+                return null;
+            }
+
+            if (tableHandler.isPersistent(tableName)) {
                 PersistentTable table = tableHandler.getPersistentTable(tableName);
                 for (Enumeration<String> e = table.getKeys(); e.hasMoreElements(); ) {
                     String rowKey = e.nextElement();
                     if ((startRow == null || startRow.isEmpty() || startRow.compareTo(rowKey) < 0) &&
                     (endRowExclusive == null || endRowExclusive.isEmpty() || endRowExclusive.compareTo(rowKey) > 0)) {
-                        Row row = table.getRow(rowKey);
+                        // Expired rows are hidden until the expirer deletes them
+                        Row row = tableHandler.isExpired(tableName, rowKey) ? null : table.getRow(rowKey);
+                        // Deleted since the key was listed, e.g. because it expired
+                        if (row == null) {
+                            continue;
+                        }
                         res.write(row.toByteArray());
                         res.write("\n".getBytes());
                     }
                 }
                 res.write("\n".getBytes());
             } else {
-                ConcurrentHashMap<String, Row> table = tableHandler.getInMemoryTable(tableName);
+                Map<String, Row> table = tableHandler.getInMemoryTable(tableName);
                 if (table != null) {
                     for (String rowKey : table.keySet()) {
                         if ((startRow != null && rowKey.compareTo(startRow) < 0) ||
                                 (endRowExclusive != null && rowKey.compareTo(endRowExclusive) >= 0)) {
                             continue;
                         }
-                        Row row = table.get(rowKey);
+                        Row row = tableHandler.isExpired(tableName, rowKey) ? null : table.get(rowKey);
+                        // Deleted since the key was listed
+                        if (row == null) {
+                            continue;
+                        }
                         res.write(row.toByteArray());
                         res.write("\n".getBytes());
                     }
@@ -481,19 +483,10 @@ public class Worker extends cis5550.generic.Worker {
         get("/count/:T", (req, res) -> {
             String tableName = req.params("T");
             if (tableHandler.containsKey(tableName)) {
-                if (tableName.startsWith("pt-")) {
-                    PersistentTable table = tableHandler.getPersistentTable(tableName);
-                    int count = table.size();
-                    res.bodyAsBytes(String.valueOf(count).getBytes());
-                    res.status(200, "OK");
-                    return null;
-                } else {
-                    ConcurrentHashMap<String, Row> table = tableHandler.getInMemoryTable(tableName);
-                    int count = table.size();
-                    res.bodyAsBytes(String.valueOf(count).getBytes());
-                    res.status(200, "OK");
-                    return null;
-                }
+                int count = tableHandler.rowCount(tableName);
+                res.bodyAsBytes(String.valueOf(count).getBytes());
+                res.status(200, "OK");
+                return null;
             } else {
                 res.status(404, "NOT FOUND");
                 return "NOT FOUND";
@@ -501,11 +494,26 @@ public class Worker extends cis5550.generic.Worker {
         });
     }
 
+    public static void getStatsOfTable() {
+        get("/stats/:T", (req, res) -> {
+            String tableName = req.params("T");
+            TableStats stats = tableHandler.getStats(tableName);
+            if (stats == null) {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+            res.bodyAsBytes(stats.toRow(tableName).toByteArray());
+            res.status(200, "OK");
+            return null;
+        });
+    }
+
     public static void renameTable() {
         put("/rename/:T", (req, res) -> {
             String oldName = req.params("T");
             String newName = req.body().trim();
-            synchronized (tableHandler) {
+            tableHandler.handlerLock().lock();
+            try {
                 if (tableHandler.containsKey(oldName)) {
                     try {
                         tableHandler.rename(oldName, newName);
@@ -522,6 +530,36 @@ public class Worker extends cis5550.generic.Worker {
                     res.status(404, "NOT FOUND");
                     return "NOT FOUND";
                 }
+            } finally {
+                tableHandler.handlerLock().unlock();
+            }
+        });
+    }
+
+    public static void copyTable() {
+        put("/copy/:T", (req, res) -> {
+            String tableName = req.params("T");
+            String newName = req.body().trim();
+            tableHandler.handlerLock().lock();
+            try {
+                if (tableHandler.containsKey(tableName)) {
+                    try {
+                        tableHandler.copyTable(tableName, newName);
+                        res.status(200, "OK");
+                        return "OK";
+                    } catch (FileAlreadyExistsException e) {
+                        res.status(409, "Conflict");
+                        return "Conflict";
+                    } catch (IOException e) {
+                        res.status(500, "Internal Server Error");
+                        return "Internal Server Error";
+                    }
+                } else {
+                    res.status(404, "NOT FOUND");
+                    return "NOT FOUND";
+                }
+            } finally {
+                tableHandler.handlerLock().unlock();
             }
         });
     }
@@ -529,7 +567,8 @@ public class Worker extends cis5550.generic.Worker {
     public static void deleteTable() {
         put("/delete/:T", (req, res) -> {
             String tableName = req.params("T");
-            synchronized (tableHandler) {
+            tableHandler.handlerLock().lock();
+            try {
                 if (tableHandler.containsKey(tableName)) {
                     tableHandler.delete(tableName);
                     res.status(200, "OK");
@@ -538,7 +577,277 @@ public class Worker extends cis5550.generic.Worker {
                     res.status(404, "NOT FOUND");
                     return "NOT FOUND";
                 }
+            } finally {
+                tableHandler.handlerLock().unlock();
+            }
+        });
+    }
+
+    public static void deleteRowFromTable() {
+        put("/delete-row/:T/:R", (req, res) -> {
+            String tableName = req.params("T");
+            String rowKey = req.params("R");
+            if (tableHandler.deleteRow(tableName, rowKey)) {
+                res.status(200, "OK");
+                return "OK";
+            } else {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+        });
+    }
+
+    public static void deleteRangeFromTable() {
+        put("/delete-range/:T", (req, res) -> {
+            String tableName = req.params("T");
+            String startRow = req.queryParams("startRow");
+            String endRowExclusive = req.queryParams("endRowExclusive");
+            if (!tableHandler.containsKey(tableName)) {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+            int deleted = tableHandler.deleteRange(tableName,
+                    (startRow == null || startRow.isEmpty()) ? null : startRow,
+                    (endRowExclusive == null || endRowExclusive.isEmpty()) ? null : endRowExclusive);
+            res.status(200, "OK");
+            return String.valueOf(deleted);
+        });
+    }
+
+    public static void truncateTable() {
+        put("/truncate/:T", (req, res) -> {
+            String tableName = req.params("T");
+            if (!tableHandler.containsKey(tableName)) {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+            tableHandler.truncate(tableName);
+            res.status(200, "OK");
+            return "OK";
+        });
+    }
+
+    public static void compactTable() {
+        put("/compact/:T", (req, res) -> {
+            String tableName = req.params("T");
+            if (!tableHandler.containsKey(tableName)) {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+            tableHandler.compact(tableName);
+            res.status(200, "OK");
+            return "OK";
+        });
+    }
+
+    public static void openSnapshotOfTable() {
+        put("/snapshot/:T/:id", (req, res) -> {
+            if (tableHandler.openSnapshot(req.params("T"), req.params("id"))) {
+                res.status(200, "OK");
+                return "OK";
+            } else {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+        });
+    }
+
+    public static void releaseSnapshotOfTable() {
+        put("/release-snapshot/:T/:id", (req, res) -> {
+            if (tableHandler.releaseSnapshot(req.params("T"), req.params("id"))) {
+                res.status(200, "OK");
+                return "OK";
+            } else {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+        });
+    }
+
+    public static void createIndexOnTable() {
+        put("/index/:T", (req, res) -> {
+            String tableName = req.params("T");
+            String column = req.body().trim();
+            if (column.isEmpty() || SecondaryIndex.isIndexTable(tableName)) {
+                res.status(400, "Bad Request");
+                return "Bad Request";
+            }
+            tableHandler.createIndex(tableName, column);
+            res.status(200, "OK");
+            return "OK";
+        });
+    }
+
+    public static void dropIndexOfTable() {
+        put("/drop-index/:T", (req, res) -> {
+            if (tableHandler.dropIndex(req.params("T"), req.body().trim())) {
+                res.status(200, "OK");
+                return "OK";
+            } else {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+        });
+    }
+
+    public static void getIndexesOfTable() {
+        get("/index/:T", (req, res) -> {
+            StringBuilder columns = new StringBuilder();
+            for (String column : tableHandler.getIndexedColumns(req.params("T"))) {
+                columns.append(column).append("\n");
+            }
+            res.status(200, "OK");
+            return columns.toString();
+        });
+    }
+
+    // Returns the keys of the rows whose column holds the value, one per line, or with rows=true
+    // the rows themselves in the same format as /data/:T
+    public static void lookupRowsByIndex() {
+        get("/lookup/:T", (req, res) -> {
+            String tableName = req.params("T");
+            String column = req.queryParams("column");
+            String value = req.queryParams("value");
+            if ((column == null) || (value == null)) {
+                res.status(400, "Bad Request");
+                return "Bad Request";
+            }
+            List<String> rowKeys = tableHandler.lookup(tableName, column, value);
+            if (rowKeys == null) {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+            if ("true".equals(req.queryParams("rows"))) {
+                for (String rowKey : rowKeys) {
+                    Row row = tableHandler.getRow(tableName, rowKey);
+                    if (row != null) {
+                        res.write(row.toByteArray());
+                        res.write("\n".getBytes());
+                    }
+                }
+                res.write("\n".getBytes());
+            } else {
+                for (String rowKey : rowKeys) {
+                    res.write((rowKey + "\n").getBytes());
+                }
             }
+            res.status(200, "OK");
+            return null;
         });
     }
+
+    // Backs up the worker's persistent tables to backups/:id in its storage directory;
+    // incremental on top of the newest earlier backup, unless full=true
+    public static void backupTables() {
+        put("/backup/:id", (req, res) -> {
+            String backupID = req.params("id");
+            if (!backupID.matches("[A-Za-z0-9_-]+")) {
+                res.status(400, "Bad Request");
+                return "Backup IDs may only contain letters, digits, '-' and '_'";
+            }
+            try {
+                Map<String, Object> summary = tableHandler.backup(backupID, "true".equals(req.queryParams("full")));
+                res.type("application/json");
+                return toJson(summary);
+            } catch (FileAlreadyExistsException e) {
+                res.status(403, "FORBIDDEN");
+                return "Backup " + backupID + " exists";
+            }
+        });
+    }
+
+    // Restores the tables of backups/:id, or of the backup directory in dir=, that the worker
+    // does not have yet. dir= must lie in the worker's backups directory or its bulk load
+    // directory (see TableHandler.restore()); anywhere else gets a 403.
+    public static void restoreTables() {
+        put("/restore/:id", (req, res) -> {
+            String backupID = req.params("id");
+            String backupDir = req.queryParams("dir");
+            if ((backupDir == null) && !backupID.matches("[A-Za-z0-9_-]+")) {
+                res.status(400, "Bad Request");
+                return "Backup IDs may only contain letters, digits, '-' and '_'";
+            }
+            try {
+                Map<String, Object> summary = tableHandler.restore(backupID, backupDir);
+                res.type("application/json");
+                return toJson(summary);
+            } catch (NoSuchFileException e) {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            } catch (AccessDeniedException e) {
+                res.status(403, "FORBIDDEN");
+                return e.getMessage();
+            }
+        });
+    }
+
+    // JSON views of the worker's storage for monitoring tools. They only read counters that are
+    // maintained on every write, so polling them does not scan tables or wait for writers.
+    private static void setupAdminEndpoints() {
+        get("/admin/worker", (req, res) -> {
+            Runtime runtime = Runtime.getRuntime();
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("id", getId());
+            info.put("tables", tableHandler.getTableNames().size());
+            info.put("pendingWrites", tableHandler.pendingWrites());
+            info.put("openSnapshots", tableHandler.openSnapshotCount());
+            info.put("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory());
+            info.put("heapMaxBytes", runtime.maxMemory());
+            res.type("application/json");
+            return toJson(info);
+        });
+
+        get("/admin/tables", (req, res) -> {
+            List<Object> tables = new ArrayList<>();
+            for (String tableName : tableHandler.getTableNames()) {
+                Map<String, Object> info = tableHandler.adminInfo(tableName);
+                if (info != null) {
+                    tables.add(info);
+                }
+            }
+            res.type("application/json");
+            return toJson(tables);
+        });
+
+        get("/admin/tables/:T", (req, res) -> {
+            Map<String, Object> info = tableHandler.adminInfo(req.params("T"));
+            if (info == null) {
+                res.status(404, "NOT FOUND");
+                return "NOT FOUND";
+            }
+            res.type("application/json");
+            return toJson(info);
+        });
+    }
+
+    private static String toJson(Object value) {
+        if (value == null) {
+            return "null";
+        } else if ((value instanceof Number) || (value instanceof Boolean)) {
+            return value.toString();
+        } else if (value instanceof Map<?, ?> map) {
+            StringJoiner json = new StringJoiner(",", "{", "}");
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                json.add(toJson(String.valueOf(entry.getKey())) + ":" + toJson(entry.getValue()));
+            }
+            return json.toString();
+        } else if (value instanceof Collection<?> collection) {
+            StringJoiner json = new StringJoiner(",", "[", "]");
+            for (Object element : collection) {
+                json.add(toJson(element));
+            }
+            return json.toString();
+        }
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : value.toString().toCharArray()) {
+            if ((c == '"') || (c == '\\')) {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
 }
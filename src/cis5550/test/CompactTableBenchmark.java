@@ -0,0 +1,119 @@
+package cis5550.test;
+
+import cis5550.kvs.CompactTable;
+import cis5550.kvs.Row;
+import cis5550.tools.Hasher;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+// Compares the two in-memory table layouts the KVS worker can use, on the kind of table Flame
+// produces: many rows with a hashed key and one short value. Runs in-process, without a KVS.
+//
+// Usage: CompactTableBenchmark [rows] [threads]
+public class CompactTableBenchmark {
+    private static final DecimalFormat df = new DecimalFormat("#.##");
+
+    public static void main(String[] args) throws Exception {
+        int numRows = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int numThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        String[] keys = new String[numRows];
+        for (int i = 0; i < numRows; i++) {
+            keys[i] = Hasher.hash(String.valueOf(i));
+        }
+
+        // Run each layout twice and report the second run, so that both are measured with warm code
+        for (int round = 0; round < 2; round++) {
+            boolean report = (round == 1);
+            run("ConcurrentHashMap<String, Row>", ConcurrentHashMap::new, keys, numThreads, report);
+            run("CompactTable", CompactTable::new, keys, numThreads, report);
+        }
+    }
+
+    private static void run(String name, Supplier<Map<String, Row>> factory, String[] keys, int numThreads, boolean report) throws Exception {
+        long heapBefore = usedHeap();
+        Map<String, Row> table = factory.get();
+
+        long start = System.nanoTime();
+        for (String key : keys) {
+            table.put(key, newRow(key));
+        }
+        double putSeconds = (System.nanoTime() - start) / 1e9;
+        long heapAfter = usedHeap();
+
+        start = System.nanoTime();
+        parallel(numThreads, keys.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                table.put(keys[i], newRow(keys[i]));
+            }
+        });
+        double parallelPutSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        parallel(numThreads, keys.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                if (table.get(keys[i]).get("value") == null) {
+                    throw new IllegalStateException("Missing value for " + keys[i]);
+                }
+            }
+        });
+        double getSeconds = (System.nanoTime() - start) / 1e9;
+
+        if (report) {
+            System.out.println("\n=== " + name + " (" + keys.length + " rows, " + numThreads + " threads) ===");
+            System.out.println("Heap per row:          " + df.format((heapAfter - heapBefore) / (double) keys.length) + " bytes");
+            if (table instanceof CompactTable) {
+                System.out.println("Slabs and slots:       " + df.format(((CompactTable) table).memoryBytes() / (double) keys.length) + " bytes/row");
+            }
+            System.out.println("Put, 1 thread:         " + df.format(keys.length / putSeconds) + " ops/s");
+            System.out.println("Overwrite, " + numThreads + " threads:  " + df.format(keys.length / parallelPutSeconds) + " ops/s");
+            System.out.println("Get, " + numThreads + " threads:        " + df.format(keys.length / getSeconds) + " ops/s");
+        }
+        table.clear();
+    }
+
+    private static Row newRow(String key) {
+        Row row = new Row(key);
+        row.put("value", "v" + key.substring(0, 8));
+        return row;
+    }
+
+    private interface RangeTask {
+        void run(int from, int to);
+    }
+
+    private static void parallel(int numThreads, int count, RangeTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            int chunk = (count + numThreads - 1) / numThreads;
+            for (int t = 0; t < numThreads; t++) {
+                int from = t * chunk;
+                int to = Math.min(count, from + chunk);
+                futures.add(executor.submit(() -> task.run(from, to)));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
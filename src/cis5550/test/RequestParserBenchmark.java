@@ -0,0 +1,158 @@
+package cis5550.test;
+
+import cis5550.webserver.RequestParser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static cis5550.webserver.Server.*;
+
+// Measures the webserver's request parsing: first the parser alone on request heads like the
+// ones KVS clients send, next to the byte-at-a-time loop it replaced, then uploads of large
+// bodies (as put-rows receives them) through a server in this process.
+//
+// Usage: RequestParserBenchmark [port] [uploadMB]
+public class RequestParserBenchmark {
+    private static final DecimalFormat df = new DecimalFormat("#.##");
+    private static final int ROUNDS = 2_000_000;
+
+    private static final String[] REQUESTS = {
+        "GET /data/pt-crawl/8a7f3c2d19e0b6a4/page HTTP/1.1\r\nHost: localhost:8001\r\nConnection: keep-alive\r\n\r\n",
+        "PUT /data/put-rows/pt-index HTTP/1.1\r\nHost: 10.0.0.12:8001\r\nContent-Type: application/octet-stream\r\nContent-Length: 1048576\r\n\r\n",
+        "GET /data/pt-crawl?startRow=4&endRowExclusive=8 HTTP/1.1\r\nHost: localhost:8001\r\nUser-Agent: Java-http-client/21\r\nAccept: */*\r\nAccept-Encoding: gzip\r\n\r\n",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 18081;
+        int uploadMB = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+
+        byte[][] heads = new byte[REQUESTS.length][];
+        for (int i = 0; i < REQUESTS.length; i++) {
+            heads[i] = REQUESTS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        // Run each parser twice and report the second run, so that both are measured with warm code
+        for (int round = 0; round < 2; round++) {
+            boolean report = (round == 1);
+            long start = System.nanoTime();
+            long sink = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                byte[] head = heads[i % heads.length];
+                int end = RequestParser.findHeadEnd(head, 0, head.length);
+                sink += RequestParser.parse(head, 0, end).headers.size();
+            }
+            report(report, "RequestParser", System.nanoTime() - start, heads, sink);
+
+            start = System.nanoTime();
+            sink = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                sink += byteLoopParse(new ByteArrayInputStream(heads[i % heads.length])).size();
+            }
+            report(report, "Byte-at-a-time loop", System.nanoTime() - start, heads, sink);
+        }
+
+        upload(port, uploadMB);
+        System.exit(0);
+    }
+
+    private static void report(boolean report, String name, long nanos, byte[][] heads, long sink) {
+        if (!report) {
+            return;
+        }
+        long bytes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            bytes += heads[i % heads.length].length;
+        }
+        System.out.println("\n=== " + name + " (" + ROUNDS + " heads, checksum " + sink + ") ===");
+        System.out.println("Per head:   " + df.format(nanos / (double) ROUNDS) + " ns");
+        System.out.println("Throughput: " + df.format(bytes / (nanos / 1e9) / (1 << 20)) + " MB/s");
+    }
+
+    // The loop the blocking handler used before: one read() per byte, the line buffer turned
+    // into a String twice per line, and the request line split with a regex
+    private static Map<String, String> byteLoopParse(InputStream in) throws IOException {
+        ByteArrayOutputStream byteBuf = new ByteArrayOutputStream();
+        List<String> headerLines = new ArrayList<>();
+        int prevPrevByte = -1;
+        int prevByte = -1;
+        int currentByte;
+        while ((currentByte = in.read()) != -1) {
+            byteBuf.write(currentByte);
+            if ((prevByte == '\r') && (currentByte == '\n')) {
+                if (byteBuf.toString().length() > 2) {
+                    headerLines.add(byteBuf.toString().substring(0, byteBuf.toString().length() - 2));
+                }
+                byteBuf.reset();
+            }
+            if ((prevPrevByte == '\r') && (prevByte == '\n') && (currentByte == '\r')) {
+                if (in.read() == '\n') {
+                    break;
+                }
+            }
+            prevPrevByte = prevByte;
+            prevByte = currentByte;
+        }
+        Map<String, String> headers = new HashMap<>();
+        String[] requestLine = headerLines.get(0).split("\\s+");
+        headers.put("", requestLine[1]);
+        for (int i = 1; i < headerLines.size(); i++) {
+            String line = headerLines.get(i);
+            int pos = line.indexOf(':');
+            if (pos != -1) {
+                headers.put(line.substring(0, pos).toLowerCase(), line.substring(pos + 2));
+            }
+        }
+        return headers;
+    }
+
+    private static void upload(int port, int uploadMB) throws Exception {
+        port(port);
+        put("/upload", (req, res) -> String.valueOf(req.bodyAsBytes().length));
+        Thread.sleep(500);
+
+        byte[] body = new byte[uploadMB << 20];
+        byte[] head = ("PUT /upload HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/octet-stream\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            for (int round = 0; round < 4; round++) {
+                long start = System.nanoTime();
+                out.write(head);
+                out.write(body);
+                out.flush();
+                String response = readResponse(in);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                if (!response.equals(String.valueOf(body.length))) {
+                    throw new IOException("Unexpected response " + response);
+                }
+                if (round > 0) {
+                    System.out.println("Upload of " + uploadMB + " MB: " + df.format(seconds * 1000) + " ms (" + df.format(uploadMB / seconds) + " MB/s)");
+                }
+            }
+        }
+    }
+
+    private static String readResponse(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            head.append((char) b);
+        }
+        int pos = head.indexOf("Content-Length: ");
+        int length = Integer.parseInt(head.substring(pos + 16, head.indexOf("\r\n", pos)));
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
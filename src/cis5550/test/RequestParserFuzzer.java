@@ -0,0 +1,155 @@
+package cis5550.test;
+
+import cis5550.webserver.RequestParser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+// Checks the webserver's request parser against generated input. Well-formed heads, with
+// random header case, spacing and empty lines in front, are fed in pieces the way they arrive
+// from a socket: the end of the head must be found exactly when its last byte is there, no
+// matter where the pieces were split, and the parsed fields must match what was generated.
+// Random mutations of those heads, and plain random bytes, must never make the parser throw.
+//
+// Usage: RequestParserFuzzer [iterations] [seed]
+public class RequestParserFuzzer {
+    private static final String[] METHODS = {"GET", "PUT", "POST", "HEAD", "DELETE"};
+    private static final String[] NAMES = {"Host", "Content-Type", "Content-Length", "Cookie", "Range", "X-Custom", "Accept-Encoding"};
+    private static final String VALUE_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJ0123456789-_./:;=,% ";
+
+    public static void main(String[] args) {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        int failures = 0;
+        for (int i = 0; (i < iterations) && (failures < 10); i++) {
+            String problem;
+            try {
+                problem = checkWellFormed(random);
+                if (problem == null) {
+                    problem = checkMutated(random);
+                }
+            } catch (RuntimeException e) {
+                problem = "threw " + e;
+            }
+            if (problem != null) {
+                System.out.println("Iteration " + i + ": " + problem);
+                failures++;
+            }
+        }
+        System.out.println(iterations + " iterations with seed " + seed + ": " + ((failures == 0) ? "no failures" : failures + " failures"));
+        System.exit((failures == 0) ? 0 : 1);
+    }
+
+    private static String checkWellFormed(Random random) {
+        String method = METHODS[random.nextInt(METHODS.length)];
+        String url = "/" + randomString(random, 1 + random.nextInt(40), "abcdefghijklmnopqrstuvwxyz0123456789/%?=&-");
+        Map<String, String> expected = new LinkedHashMap<>();
+        StringBuilder head = new StringBuilder();
+        for (int i = random.nextInt(3); i > 0; i--) {
+            head.append("\r\n");
+        }
+        head.append(method).append(spaces(random)).append(url).append(spaces(random)).append("HTTP/1.1\r\n");
+        long contentLength = 0;
+        for (int i = random.nextInt(8); i > 0; i--) {
+            String name = randomCase(random, NAMES[random.nextInt(NAMES.length)]);
+            String value = name.equalsIgnoreCase("Content-Length") ? String.valueOf(random.nextInt(1 << 20)) : randomString(random, random.nextInt(30), VALUE_CHARS).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            }
+            expected.put(name.toLowerCase(Locale.ROOT), value);
+            head.append(name).append(':').append(random.nextBoolean() ? " " : "").append(value).append(random.nextBoolean() ? "" : " ").append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] bytes = head.toString().getBytes(StandardCharsets.UTF_8);
+        // Something of the next request may follow in the same buffer
+        byte[] buf = new byte[bytes.length + 16];
+        System.arraycopy(bytes, 0, buf, 0, bytes.length);
+        System.arraycopy("GET / HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII), 0, buf, bytes.length, 16);
+
+        // Feed the bytes in random pieces, resuming the search as the handlers do
+        int received = 0;
+        int start = 0;
+        int scanFrom = 0;
+        int headEnd = -1;
+        while (headEnd < 0) {
+            if (received == buf.length) {
+                return "end of head not found in " + quote(head.toString());
+            }
+            received = Math.min(buf.length, received + 1 + random.nextInt(20));
+            if (scanFrom == start) {
+                start = RequestParser.skipEmptyLines(buf, start, received);
+                scanFrom = start;
+            }
+            headEnd = RequestParser.findHeadEnd(buf, scanFrom, received);
+            scanFrom = Math.max(start, received - 3);
+        }
+        if (headEnd != bytes.length) {
+            return "head of " + quote(head.toString()) + " ends at " + headEnd + " instead of " + bytes.length;
+        }
+
+        RequestParser.Head parsed = RequestParser.parse(buf, start, headEnd);
+        if (!parsed.valid || !method.equals(parsed.method) || !url.equals(parsed.url) || !"HTTP/1.1".equals(parsed.protocol)) {
+            return "request line of " + quote(head.toString()) + " parsed as " + parsed.method + " " + parsed.url + " " + parsed.protocol;
+        }
+        if (!expected.equals(parsed.headers)) {
+            return "headers of " + quote(head.toString()) + " parsed as " + parsed.headers;
+        }
+        if (parsed.contentLength != contentLength) {
+            return "Content-Length of " + quote(head.toString()) + " parsed as " + parsed.contentLength;
+        }
+        return null;
+    }
+
+    private static String checkMutated(Random random) {
+        byte[] buf;
+        if (random.nextInt(4) == 0) {
+            buf = new byte[random.nextInt(200)];
+            random.nextBytes(buf);
+        } else {
+            buf = ("GET /data/t/r HTTP/1.1\r\nHost: x\r\nContent-Length: 12\r\nCookie: SessionID=ab\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            for (int i = 1 + random.nextInt(6); i > 0; i--) {
+                buf[random.nextInt(buf.length)] = (byte) "\r\n :\t0aZ\u00ff".charAt(random.nextInt(9));
+            }
+        }
+        int start = RequestParser.skipEmptyLines(buf, 0, buf.length);
+        int headEnd = RequestParser.findHeadEnd(buf, start, buf.length);
+        if (headEnd >= 0) {
+            if ((headEnd < start + 4) || (headEnd > buf.length)) {
+                return "head end " + headEnd + " out of range";
+            }
+            RequestParser.Head parsed = RequestParser.parse(buf, start, headEnd);
+            if (parsed.contentLength < 0) {
+                return "negative Content-Length";
+            }
+        }
+        return null;
+    }
+
+    private static String spaces(Random random) {
+        return random.nextInt(4) == 0 ? " \t " : " ";
+    }
+
+    private static String randomCase(Random random, String s) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            sb.append(random.nextBoolean() ? Character.toUpperCase(c) : Character.toLowerCase(c));
+        }
+        return sb.toString();
+    }
+
+    private static String randomString(Random random, int length, String chars) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\r", "\\r").replace("\n", "\\n").replace("\t", "\\t") + "\"";
+    }
+}
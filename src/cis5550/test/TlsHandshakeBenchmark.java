@@ -0,0 +1,261 @@
+package cis5550.test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import static cis5550.webserver.Server.*;
+
+// Measures the secure port: new connections per second and handshake latency, for clients that
+// run a full handshake on every connection and for clients that resume their session. Each
+// connection sends one request and is then closed, like a browser that opens a page and leaves.
+// The server runs in a process of its own, in a temporary directory with a self-signed
+// keystore.jks made by keytool; the clients run on threads in this process.
+//
+// Usage: TlsHandshakeBenchmark [--protocol TLSv1.3|TLSv1.2] [--seconds s] [--mode blocking|virtual_threads] [clients...]
+public class TlsHandshakeBenchmark {
+    private static final DecimalFormat df = new DecimalFormat("#.##");
+    private static final int PORT = 18443;
+    private static final int WARMUP_SECONDS = 2;
+    private static final int TIMEOUT_MS = 10000;
+    private static final String HOST = "localhost";
+
+    public static void main(String[] args) throws Exception {
+        if ((args.length == 2) && args[0].equals("--serve")) {
+            securePort(Integer.parseInt(args[1]));
+            get("/ping", (req, res) -> "OK");
+            return;
+        }
+        String protocol = "TLSv1.3";
+        String mode = "blocking";
+        int seconds = 10;
+        List<Integer> clientCounts = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--protocol") && (i + 1 < args.length)) {
+                protocol = args[++i];
+            } else if (args[i].equals("--seconds") && (i + 1 < args.length)) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--mode") && (i + 1 < args.length)) {
+                mode = args[++i];
+            } else {
+                clientCounts.add(Integer.parseInt(args[i]));
+            }
+        }
+        if (clientCounts.isEmpty()) {
+            clientCounts = List.of(1, 16, 64);
+        }
+
+        Path dir = Files.createTempDirectory("tls-bench");
+        Process server = startServer(dir, mode);
+        try {
+            System.out.println(protocol + ", server mode " + mode + ", " + seconds + " s per run after " + WARMUP_SECONDS + " s of warmup");
+            for (int clients : clientCounts) {
+                run("full handshakes", protocol, false, clients, seconds);
+                run("resumed sessions", protocol, true, clients, seconds);
+            }
+        } finally {
+            server.destroy();
+            server.waitFor();
+            Files.deleteIfExists(dir.resolve("keystore.jks"));
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static Process startServer(Path dir, String mode) throws Exception {
+        String bin = Path.of(System.getProperty("java.home"), "bin").toString();
+        Process keytool = new ProcessBuilder(Path.of(bin, "keytool").toString(), "-genkeypair", "-keyalg", "RSA", "-keysize", "2048",
+                "-alias", "selfsigned", "-keystore", "keystore.jks", "-storepass", "secret", "-validity", "2",
+                "-dname", "CN=" + HOST).directory(dir.toFile()).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed");
+        }
+        // The server reads keystore.jks from its working directory
+        Process server = new ProcessBuilder(Path.of(bin, "java").toString(), "--enable-preview", "-cp", absoluteClassPath(),
+                "-Dcis5550.webserver.io=" + mode, TlsHandshakeBenchmark.class.getName(), "--serve", String.valueOf(PORT))
+                .directory(dir.toFile()).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(HOST, PORT), 100);
+                return server;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        server.destroy();
+        throw new IOException("Server did not start");
+    }
+
+    private static String absoluteClassPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(Path.of(entry).toAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    private static void run(String label, String protocol, boolean resume, int clients, int seconds) throws Exception {
+        byte[] request = ("GET /ping HTTP/1.1\r\nHost: " + HOST + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        long measureFrom = System.nanoTime() + WARMUP_SECONDS * 1_000_000_000L;
+        long end = measureFrom + seconds * 1_000_000_000L;
+        // A client that resumes keeps one context, and with it its session cache
+        SSLContext shared = resume ? clientContext() : null;
+        AtomicLong errors = new AtomicLong();
+        AtomicLong resumed = new AtomicLong();
+
+        List<Future<long[]>> results = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            for (int i = 0; i < clients; i++) {
+                results.add(pool.submit(() -> {
+                    long[] latencies = new long[1024];
+                    int count = 0;
+                    byte[] lastSession = null;
+                    while (System.nanoTime() < end) {
+                        SSLContext context = resume ? shared : clientContext();
+                        long start = System.nanoTime();
+                        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket()) {
+                            socket.connect(new InetSocketAddress(HOST, PORT), TIMEOUT_MS);
+                            socket.setSoTimeout(TIMEOUT_MS);
+                            socket.setTcpNoDelay(true);
+                            SSLParameters params = socket.getSSLParameters();
+                            params.setProtocols(new String[] {protocol});
+                            params.setServerNames(List.of(new SNIHostName(HOST)));
+                            params.setApplicationProtocols(new String[] {"http/1.1"});
+                            socket.setSSLParameters(params);
+                            socket.startHandshake();
+                            long handshake = System.nanoTime() - start;
+                            byte[] id = socket.getSession().getId();
+                            if ((lastSession != null) && (id.length > 0) && Arrays.equals(id, lastSession)) {
+                                resumed.incrementAndGet();
+                            }
+                            lastSession = id;
+                            OutputStream out = socket.getOutputStream();
+                            out.write(request);
+                            out.flush();
+                            readResponse(new BufferedInputStream(socket.getInputStream()));
+                            if (start >= measureFrom) {
+                                if (count == latencies.length) {
+                                    latencies = Arrays.copyOf(latencies, count * 2);
+                                }
+                                latencies[count++] = handshake;
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    return Arrays.copyOf(latencies, count);
+                }));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        long total = 0;
+        for (Future<long[]> result : results) {
+            total += result.get().length;
+        }
+        long[] all = new long[(int) total];
+        int pos = 0;
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            System.arraycopy(latencies, 0, all, pos, latencies.length);
+            pos += latencies.length;
+        }
+        Arrays.sort(all);
+
+        System.out.println("\n=== " + label + ", " + clients + " clients ===");
+        System.out.println("Connections:   " + df.format(total / (double) seconds) + " /s");
+        System.out.println("Handshake p50: " + millis(all, 0.50) + " ms");
+        System.out.println("Handshake p99: " + millis(all, 0.99) + " ms");
+        System.out.println("Max:           " + millis(all, 1.0) + " ms");
+        if (resume) {
+            // TLS 1.2 resumes with the same session ID; TLS 1.3 tickets do not show up here
+            System.out.println("Same session:  " + resumed.get() + " connections");
+        }
+        System.out.println("Failed:        " + errors.get() + " connections");
+    }
+
+    // Trusts the server's self-signed certificate, like tools.HTTP does
+    private static SSLContext clientContext() throws Exception {
+        TrustManager[] trustAll = {new X509TrustManager() {
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+
+            public void checkClientTrusted(X509Certificate[] certs, String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] certs, String authType) {
+            }
+        }};
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustAll, new SecureRandom());
+        return context;
+    }
+
+    private static String millis(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1);
+        return df.format(sorted[Math.max(0, index)] / 1e6);
+    }
+
+    // Reads one response with a Content-Length and discards it
+    private static void readResponse(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        long contentLength = 0;
+        int prev = -1;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            if ((b == '\n') && (prev == '\r')) {
+                if (line.length() == 1) {
+                    break;
+                }
+                String header = line.toString().trim().toLowerCase(Locale.ROOT);
+                if (header.startsWith("content-length:")) {
+                    contentLength = Long.parseLong(header.substring(15).trim());
+                }
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+            prev = b;
+        }
+        for (long i = 0; i < contentLength; i++) {
+            if (in.read() < 0) {
+                throw new IOException("Connection closed by server");
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package cis5550.test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cis5550.webserver.Server.*;
+
+// Compares the webserver's I/O modes with many concurrent keep-alive connections, each sending
+// one request after another to a route that blocks for a while, like a KVS or Flame route that
+// waits on another node. Every mode gets its own server process on the same machine; the
+// clients run on virtual threads in this process. Each connection needs a file descriptor on
+// both sides, so raise ulimit -n above the largest connection count.
+//
+// Usage: WebServerBenchmark [--modes blocking,virtual_threads,selector] [--delay ms] [--seconds s] [connections...]
+public class WebServerBenchmark {
+    private static final DecimalFormat df = new DecimalFormat("#.##");
+    private static final int PORT = 18080;
+    private static final int WARMUP_SECONDS = 2;
+    private static final int READ_TIMEOUT_MS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        if ((args.length == 2) && args[0].equals("--serve")) {
+            serve(Integer.parseInt(args[1]));
+            return;
+        }
+        List<String> modes = List.of("blocking", "virtual_threads", "selector");
+        int delayMs = 20;
+        int seconds = 10;
+        List<Integer> connectionCounts = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--modes") && (i + 1 < args.length)) {
+                modes = Arrays.asList(args[++i].split(","));
+            } else if (args[i].equals("--delay") && (i + 1 < args.length)) {
+                delayMs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seconds") && (i + 1 < args.length)) {
+                seconds = Integer.parseInt(args[++i]);
+            } else {
+                connectionCounts.add(Integer.parseInt(args[i]));
+            }
+        }
+        if (connectionCounts.isEmpty()) {
+            connectionCounts = List.of(1000, 5000, 10000);
+        }
+
+        System.out.println("Route delay " + delayMs + " ms, " + seconds + " s per run after " + WARMUP_SECONDS + " s of warmup");
+        for (String mode : modes) {
+            Process server = startServer(mode);
+            try {
+                for (int connections : connectionCounts) {
+                    run(mode, connections, delayMs, seconds);
+                }
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    private static void serve(int port) {
+        port(port);
+        get("/work", (req, res) -> {
+            Thread.sleep(Integer.parseInt(req.queryParams("ms")));
+            return "OK";
+        });
+    }
+
+    private static Process startServer(String mode) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(java, "--enable-preview", "-cp", System.getProperty("java.class.path"),
+                "-Dcis5550.webserver.io=" + mode.toLowerCase(Locale.ROOT), WebServerBenchmark.class.getName(), "--serve", String.valueOf(PORT))
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", PORT), 100);
+                return server;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        server.destroy();
+        throw new IOException("Server in mode " + mode + " did not start");
+    }
+
+    private static void run(String mode, int connections, int delayMs, int seconds) throws Exception {
+        byte[] request = ("GET /work?ms=" + delayMs + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        long measureFrom = System.nanoTime() + WARMUP_SECONDS * 1_000_000_000L;
+        long end = measureFrom + seconds * 1_000_000_000L;
+        AtomicLong errors = new AtomicLong();
+        AtomicLong starved = new AtomicLong();
+
+        List<Future<long[]>> results = new ArrayList<>();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                results.add(clients.submit(() -> {
+                    long[] latencies = new long[1024];
+                    int count = 0;
+                    try (Socket socket = new Socket()) {
+                        socket.connect(new InetSocketAddress("localhost", PORT), READ_TIMEOUT_MS);
+                        socket.setSoTimeout(READ_TIMEOUT_MS);
+                        socket.setTcpNoDelay(true);
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        while (System.nanoTime() < end) {
+                            long start = System.nanoTime();
+                            out.write(request);
+                            out.flush();
+                            readResponse(in);
+                            if (start >= measureFrom) {
+                                if (count == latencies.length) {
+                                    latencies = Arrays.copyOf(latencies, count * 2);
+                                }
+                                latencies[count++] = System.nanoTime() - start;
+                            }
+                        }
+                    } catch (java.net.SocketTimeoutException e) {
+                        // The connection never got a handler, or waited too long for one
+                        starved.incrementAndGet();
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                    return Arrays.copyOf(latencies, count);
+                }));
+            }
+        }
+
+        long total = 0;
+        for (Future<long[]> result : results) {
+            total += result.get().length;
+        }
+        long[] all = new long[(int) total];
+        int pos = 0;
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            System.arraycopy(latencies, 0, all, pos, latencies.length);
+            pos += latencies.length;
+        }
+        Arrays.sort(all);
+
+        System.out.println("\n=== " + mode + ", " + connections + " connections ===");
+        System.out.println("Throughput:   " + df.format(total / (double) seconds) + " requests/s");
+        System.out.println("Latency p50:  " + millis(all, 0.50) + " ms");
+        System.out.println("Latency p99:  " + millis(all, 0.99) + " ms");
+        System.out.println("Latency p999: " + millis(all, 0.999) + " ms");
+        System.out.println("Max:          " + millis(all, 1.0) + " ms");
+        System.out.println("Timed out:    " + starved.get() + " connections");
+        System.out.println("Failed:       " + errors.get() + " connections");
+    }
+
+    private static String millis(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1);
+        return df.format(sorted[Math.max(0, index)] / 1e6);
+    }
+
+    // Reads one response with a Content-Length and discards it
+    private static void readResponse(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        long contentLength = 0;
+        int prev = -1;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            if ((b == '\n') && (prev == '\r')) {
+                if (line.length() == 1) {
+                    break;
+                }
+                String header = line.toString().trim().toLowerCase(Locale.ROOT);
+                if (header.startsWith("content-length:")) {
+                    contentLength = Long.parseLong(header.substring(15).trim());
+                }
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+            prev = b;
+        }
+        for (long i = 0; i < contentLength; i++) {
+            if (in.read() < 0) {
+                throw new IOException("Connection closed by server");
+            }
+        }
+    }
+}
@@ -6,14 +6,23 @@ import java.io.*;
 import javax.net.ssl.*;
 import java.security.*;
 import java.security.cert.X509Certificate;
+import java.util.zip.*;
 
-// This class is NOT thread-safe! If you have more than one thread, each thread should get its own instance.
+// Requests may be issued from several threads at once; each request takes a connection out of
+// the cache for its exclusive use and returns it when the response has been read. doPipelined()
+// sends a batch of GETs over one connection per server without waiting for each response.
+//
+// Responses are requested with Accept-Encoding: gzip and decoded before they are returned, and
+// uploads of COMPRESS_MIN_BYTES or more are sent gzipped; our webserver decodes them. Call
+// compressUploads(false) before talking to servers that cannot.
 
 public class HTTP {
   public static class Response {
     byte body[];
     Map<String,String> headers;
     int statusCode;
+    // Whether the connection can take another request after this response
+    boolean reusable;
 
     public Response(byte bodyArg[], Map<String,String> headersArg, int statusCodeArg) {
       body = bodyArg;
@@ -34,7 +43,20 @@ public class HTTP {
     }
   }
 
-  static Map<String,Vector<Socket>> cachedConnections;
+  static final Map<String,Vector<Socket>> cachedConnections = new HashMap<String,Vector<Socket>>();
+  static final int COMPRESS_MIN_BYTES = 1024;
+  static final int READ_BUFFER_SIZE = 65536;
+  static volatile boolean compressUploads = true;
+  static volatile int pipelineDepth = 16;
+
+  public static void compressUploads(boolean enabled) {
+    compressUploads = enabled;
+  }
+
+  // How many requests doPipelined() sends ahead of the responses on one connection
+  public static void pipelineDepth(int depth) {
+    pipelineDepth = Math.max(1, depth);
+  }
 
   static Socket openSocket(String protocol, String host, int port) {
     try {
@@ -48,12 +70,17 @@ public class HTTP {
         try { 
           sc = SSLContext.getInstance("SSL"); 
           sc.init(null, trustAllCerts, new SecureRandom());
-          return sc.getSocketFactory().createSocket(host, port);
+          Socket sock = sc.getSocketFactory().createSocket(host, port);
+          sock.setTcpNoDelay(true);
+          return sock;
         } catch (NoSuchAlgorithmException nsae) {
         } catch (KeyManagementException kme) {
         }
       } else if (protocol.equals("http")) {
-        return new Socket(host, port);
+        // Requests are written in pieces (head, then body) and must not wait for an ACK in between
+        Socket sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        return sock;
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -67,54 +94,28 @@ public class HTTP {
   }
 
   public static Response doRequestWithTimeout(String method, String urlArg, byte uploadOrNull[], int timeoutMillis, boolean isHeadRequest) throws IOException {
-    String protocol = "http";
-    int pos = urlArg.indexOf("://");
-    if (pos >= 0) {
-      protocol = urlArg.substring(0, pos);
-      urlArg = urlArg.substring(pos+3);
-    }
-    pos = urlArg.indexOf('/');
-    if (pos < 0)
+    Target target = Target.parse(urlArg);
+    if (target == null)
       return null;
 
-    String host = urlArg.substring(0, pos), path = urlArg.substring(pos);
-    int port = (protocol.equals("https")) ? 443 : 80;
-    pos = host.indexOf(":");
-    if (pos > 0) {
-      String sport = host.substring(pos+1);
-      try { port = Integer.valueOf(sport).intValue(); } catch (NumberFormatException nfe) {}
-      host = host.substring(0, pos);
-    }
-
-    String serverID = protocol+"-"+host+"-"+port;
+    boolean gzipUpload = compressUploads && (uploadOrNull != null) && (uploadOrNull.length >= COMPRESS_MIN_BYTES);
+    if (gzipUpload)
+      uploadOrNull = gzip(uploadOrNull);
 
     while (true) {
-      boolean usingCached = false;
-      Socket sock = null;
-      if ((cachedConnections != null) && (cachedConnections.get(serverID) != null)) {
-        synchronized(cachedConnections) {
-          if (cachedConnections.get(serverID).size() > 0)
-            sock = cachedConnections.get(serverID).remove(0);
-        }
-        if (sock != null)
-          usingCached = true;
-      }
+      Socket sock = takeCached(target.serverID);
+      boolean usingCached = (sock != null);
       if (sock == null)
-        sock = openSocket(protocol, host, port);
+        sock = openSocket(target.protocol, target.host, target.port);
       if (sock == null)
-        throw new IOException("Cannot connect to server "+host+":"+port);
+        throw new IOException("Cannot connect to server "+target.host+":"+target.port);
 
       try {
         if (timeoutMillis > 0)
           sock.setSoTimeout(timeoutMillis);
 
         OutputStream out = sock.getOutputStream();
-        String request = method+" "+path+" HTTP/1.1\r\nHost: "+host+"\r\n";
-//  System.out.println((usingCached ? "[CACHED]" : "[FRESH]")+request);
-      if (uploadOrNull != null)
-          request = request + "Content-Length: "+uploadOrNull.length+"\r\n";
-        request = request + "Connection: keep-alive\r\n\r\n";
-        out.write(request.getBytes());
+        out.write(requestHead(method, target, uploadOrNull, gzipUpload));
         if (uploadOrNull != null)
           out.write(uploadOrNull);
         out.flush();
@@ -124,92 +125,270 @@ public class HTTP {
           System.out.println("XXX cached connection failed; continuing with normal connection");
           continue;
         }
-        throw new IOException("Connection to "+host+":"+port+" failed while writing the request");
+        throw new IOException("Connection to "+target.host+":"+target.port+" failed while writing the request");
       }
 
-  
-      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-      boolean readingHeaders = true;
-      int contentLength = -1;
-      Map<String,String> headers = new HashMap<String,String>();
-      byte buf[] = new byte[100000];
-      int inBuf = 0;
-      int statusCode = -1;
+      Response response;
+      try {
+        response = readResponse(new BufferedInputStream(sock.getInputStream(), READ_BUFFER_SIZE), isHeadRequest);
+      } catch (NoResponseException e) {
+        // The server had closed the cached connection before it got the request
+        try { sock.close(); } catch (Exception e2) {}
+        if (usingCached)
+          continue;
+        throw new IOException("Connection to "+target.host+":"+target.port+" failed while reading the response ("+e+")");
+      } catch (Exception e) {
+        try { sock.close(); } catch (Exception e2) {}
+        e.printStackTrace();
+        throw new IOException("Connection to "+target.host+":"+target.port+" failed while reading the response ("+e+")");
+      }
+
+      if (timeoutMillis > 0)
+        sock.setSoTimeout(0);
+      release(target.serverID, sock, response.reusable);
+      return response;
+    }
+  }
 
+  // Sends GET or HEAD requests for all the URLs without waiting for each response, and returns
+  // the responses in the order of the URLs. The requests to each server go over one connection,
+  // with at most pipelineDepth of them outstanding at a time; requests that the server did not
+  // answer before closing the connection are sent again on a new one.
+  public static Response[] doPipelined(String method, List<String> urls) throws IOException {
+    if (!method.equals("GET") && !method.equals("HEAD"))
+      throw new IllegalArgumentException("Only GET and HEAD requests can be pipelined, not "+method);
+
+    Response results[] = new Response[urls.size()];
+    Map<String,List<Integer>> byServer = new LinkedHashMap<String,List<Integer>>();
+    Target targets[] = new Target[urls.size()];
+    for (int i=0; i<urls.size(); i++) {
+      targets[i] = Target.parse(urls.get(i));
+      if (targets[i] == null)
+        throw new IllegalArgumentException("Invalid URL "+urls.get(i));
+      byServer.computeIfAbsent(targets[i].serverID, k -> new ArrayList<Integer>()).add(i);
+    }
+    for (List<Integer> indexes : byServer.values())
+      pipeline(method, targets, indexes, results);
+    return results;
+  }
+
+  static void pipeline(String method, Target targets[], List<Integer> indexes, Response results[]) throws IOException {
+    Target server = targets[indexes.get(0)];
+    boolean isHeadRequest = method.equals("HEAD");
+    int answered = 0;
+    while (answered < indexes.size()) {
+      Socket sock = takeCached(server.serverID);
+      boolean usingCached = (sock != null);
+      if (sock == null)
+        sock = openSocket(server.protocol, server.host, server.port);
+      if (sock == null)
+        throw new IOException("Cannot connect to server "+server.host+":"+server.port);
+
+      int answeredBefore = answered;
+      boolean reusable = true;
       try {
-        InputStream in = sock.getInputStream();
-        while (true) {
-          int n = in.read(buf, inBuf, buf.length - inBuf);
-          if (n<0)
-            break;
-
-          inBuf += n;
-          if (readingHeaders) {
-            int matchPtr = 0;
-            for (int i=0; i<inBuf; i++) {
-              if (buf[i] == 10)
-                matchPtr ++;
-               else if (buf[i] != 13)
-                matchPtr = 0;
-
-              if (matchPtr == 2) {
-                buffer.write(buf, 0, i);
-                ByteArrayInputStream bais = new ByteArrayInputStream(buffer.toByteArray());
-                BufferedReader hdr = new BufferedReader(new InputStreamReader(bais));
-                String statusLine[] = hdr.readLine().split(" ");
-//                statusCode = Integer.parseInt(statusLine[1]);
-                if (statusLine.length < 3 || !isNumeric(statusLine[1])) {
-                  throw new IOException("Invalid HTTP status code: " + Arrays.toString(statusLine));
-                }
-                statusCode = Integer.parseInt(statusLine[1]);
-
-                while (true) {
-                  String s = hdr.readLine();
-                  if (s.equals(""))
-                    break;
-                  String[] p2 = s.split(":", 2);
-                  if (p2.length == 2) {
-                    String headerName = p2[0];
-                    headers.put(headerName.toLowerCase(), p2[1].trim());
-                    if (headerName.toLowerCase().equals("content-length"))
-                      contentLength = Integer.parseInt(p2[1].trim());
-                  }
-                }
-                buffer.reset();
-                System.arraycopy(buf, i+1, buf, 0, inBuf-(i+1));
-                inBuf -= (i+1);
-                readingHeaders = false;
-                break;
-              }
-            }
-          }
-
-          if (!readingHeaders) {
-            int toCopy = ((contentLength>=0) && (inBuf > contentLength)) ? contentLength : inBuf;
-            buffer.write(buf, 0, toCopy);
-            System.arraycopy(buf, toCopy, buf, 0, inBuf-toCopy);
-            inBuf -= toCopy;
-
-            if ((buffer.size() >= contentLength) || isHeadRequest)
-              break;
-          }
+        OutputStream out = new BufferedOutputStream(sock.getOutputStream(), READ_BUFFER_SIZE);
+        InputStream in = new BufferedInputStream(sock.getInputStream(), READ_BUFFER_SIZE);
+        int sent = answered;
+        while ((answered < indexes.size()) && reusable) {
+          while ((sent < indexes.size()) && (sent - answered < pipelineDepth))
+            out.write(requestHead(method, targets[indexes.get(sent++)], null, false));
+          out.flush();
+          Response response = readResponse(in, isHeadRequest);
+          results[indexes.get(answered++)] = response;
+          reusable = response.reusable;
         }
       } catch (Exception e) {
         try { sock.close(); } catch (Exception e2) {}
-        e.printStackTrace();
-        throw new IOException("Connection to "+host+":"+port+" failed while reading the response ("+e+")");
+        // A fresh connection that does not get a single response will not do better next time
+        if ((answered == answeredBefore) && !usingCached)
+          throw new IOException("Connection to "+server.host+":"+server.port+" failed while pipelining requests ("+e+")");
+        continue;
+      }
+      release(server.serverID, sock, reusable);
+    }
+  }
+
+  // The parts of a URL that a request needs
+  static class Target {
+    String protocol, host, path, serverID;
+    int port;
+
+    static Target parse(String urlArg) {
+      Target t = new Target();
+      t.protocol = "http";
+      int pos = urlArg.indexOf("://");
+      if (pos >= 0) {
+        t.protocol = urlArg.substring(0, pos);
+        urlArg = urlArg.substring(pos+3);
       }
+      pos = urlArg.indexOf('/');
+      if (pos < 0)
+        return null;
 
-      if (cachedConnections == null) 
-        cachedConnections = new HashMap<String,Vector<Socket>>();
-      synchronized(cachedConnections) {
-        if (cachedConnections.get(serverID) == null)
-          cachedConnections.put(serverID, new Vector<Socket>());
-        cachedConnections.get(serverID).add(sock);
+      t.host = urlArg.substring(0, pos);
+      t.path = urlArg.substring(pos);
+      t.port = (t.protocol.equals("https")) ? 443 : 80;
+      pos = t.host.indexOf(":");
+      if (pos > 0) {
+        String sport = t.host.substring(pos+1);
+        try { t.port = Integer.valueOf(sport).intValue(); } catch (NumberFormatException nfe) {}
+        t.host = t.host.substring(0, pos);
       }
+      t.serverID = t.protocol+"-"+t.host+"-"+t.port;
+      return t;
+    }
+  }
+
+  static byte[] requestHead(String method, Target target, byte uploadOrNull[], boolean gzipUpload) {
+    StringBuilder request = new StringBuilder(128);
+    request.append(method).append(' ').append(target.path).append(" HTTP/1.1\r\nHost: ").append(target.host).append("\r\nAccept-Encoding: gzip\r\n");
+    if (uploadOrNull != null)
+      request.append("Content-Length: ").append(uploadOrNull.length).append("\r\n");
+    if (gzipUpload)
+      request.append("Content-Encoding: gzip\r\n");
+    request.append("Connection: keep-alive\r\n\r\n");
+    return request.toString().getBytes();
+  }
+
+  static Socket takeCached(String serverID) {
+    synchronized(cachedConnections) {
+      Vector<Socket> cached = cachedConnections.get(serverID);
+      if ((cached != null) && (cached.size() > 0))
+        return cached.remove(0);
+    }
+    return null;
+  }
+
+  static void release(String serverID, Socket sock, boolean reusable) {
+    if (!reusable) {
+      try { sock.close(); } catch (Exception e) {}
+      return;
+    }
+    synchronized(cachedConnections) {
+      if (cachedConnections.get(serverID) == null)
+        cachedConnections.put(serverID, new Vector<Socket>());
+      cachedConnections.get(serverID).add(sock);
+    }
+  }
+
+  // The connection was closed before any of the response arrived
+  static class NoResponseException extends EOFException {
+    private static final long serialVersionUID = 1L;
+
+    NoResponseException() {
+      super("Connection closed before the response");
+    }
+  }
+
+  // Reads one response, and nothing after it, so the next one can follow on the same connection.
+  // The body is decoded if it has a Content-Encoding.
+  static Response readResponse(InputStream in, boolean isHeadRequest) throws IOException {
+    int first = in.read();
+    if (first < 0)
+      throw new NoResponseException();
+    String statusLine[] = (((char) first) + readLine(in)).split(" ");
+    if (statusLine.length < 3 || !isNumeric(statusLine[1])) {
+      throw new IOException("Invalid HTTP status code: " + Arrays.toString(statusLine));
+    }
+    int statusCode = Integer.parseInt(statusLine[1]);
+
+    Map<String,String> headers = new HashMap<String,String>();
+    int contentLength = -1;
+    while (true) {
+      String s = readLine(in);
+      if (s.equals(""))
+        break;
+      String[] p2 = s.split(":", 2);
+      if (p2.length == 2) {
+        String headerName = p2[0].toLowerCase();
+        headers.put(headerName, p2[1].trim());
+        if (headerName.equals("content-length"))
+          contentLength = Integer.parseInt(p2[1].trim());
+      }
+    }
+    boolean chunked = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"));
+    // These never have a body
+    if ((statusCode / 100 == 1) || (statusCode == 204) || (statusCode == 304))
+      contentLength = 0;
+
+    byte body[];
+    if (isHeadRequest) {
+      body = new byte[0];
+    } else if (chunked) {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      readChunked(in, buffer);
+      body = buffer.toByteArray();
+    } else if (contentLength >= 0) {
+      body = in.readNBytes(contentLength);
+      if (body.length < contentLength)
+        throw new EOFException("Connection closed in the middle of the body");
+    } else {
+      // Without a length, the body ends when the server closes the connection
+      body = in.readAllBytes();
+    }
+
+    String encoding = headers.remove("content-encoding");
+    if ((encoding != null) && (body.length > 0) && !isHeadRequest)
+      body = decode(body, encoding.trim().toLowerCase());
+
+    Response response = new Response(body, headers, statusCode);
+    response.reusable = ((contentLength >= 0) || chunked || isHeadRequest) && !"close".equalsIgnoreCase(headers.get("connection"));
+    return response;
+  }
+
+  static byte[] gzip(byte data[]) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+    try (GZIPOutputStream out = new GZIPOutputStream(bytes, 8192) { { def.setLevel(Deflater.BEST_SPEED); } }) {
+      out.write(data);
+    }
+    return bytes.toByteArray();
+  }
+
+  static byte[] decode(byte data[], String encoding) throws IOException {
+    if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+        return in.readAllBytes();
+      }
+    } else if (encoding.equals("deflate")) {
+      try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(data))) {
+        return in.readAllBytes();
+      }
+    } else if (encoding.equals("identity")) {
+      return data;
+    }
+    throw new IOException("Unsupported Content-Encoding "+encoding);
+  }
+
+  // Reads a body in Transfer-Encoding: chunked, and nothing after it, so the connection can be reused
+  static void readChunked(InputStream in, ByteArrayOutputStream body) throws IOException {
+    while (true) {
+      String line = readLine(in);
+      int semicolon = line.indexOf(';');
+      int size = Integer.parseInt(((semicolon < 0) ? line : line.substring(0, semicolon)).trim(), 16);
+      if (size == 0)
+        break;
+      byte data[] = in.readNBytes(size);
+      if (data.length < size)
+        throw new EOFException("Connection closed in the middle of a chunk");
+      body.write(data);
+      readLine(in);
+    }
+    // Trailers, if any, are ignored
+    while (!readLine(in).isEmpty())
+      ;
+  }
 
-      return new Response(buffer.toByteArray(), headers, statusCode);
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b < 0)
+        throw new EOFException("Connection closed in the middle of a response");
+      if (b != '\r')
+        line.write(b);
     }
+    return line.toString();
   }
 
   private static boolean isNumeric(String str) {
@@ -0,0 +1,56 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// The Transport of a blocking plain HTTP connection: buffers go out in one gathering write, and
+// files with transferTo, which lets the kernel copy them straight to the socket
+class ChannelTransport implements Transport {
+    private final SocketChannel channel;
+    private ByteBuffer block;
+
+    ChannelTransport(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public void write(ByteBuffer[] buffers) throws IOException {
+        // A blocking channel may still write only part of them
+        int first = 0;
+        while (first < buffers.length) {
+            channel.write(buffers, first, buffers.length - first);
+            while ((first < buffers.length) && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    public void transferFile(Path file, long position, long count) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (count > 0) {
+                long n = fc.transferTo(position, count, channel);
+                if (n == 0) {
+                    // Under a virtual thread the socket does not block in transferTo when it is
+                    // full; a plain write of the next block waits for it
+                    if (block == null) {
+                        block = ByteBuffer.allocate(StaticFiles.COPY_BUFFER_SIZE);
+                    }
+                    block.clear().limit((int) Math.min(block.capacity(), count));
+                    n = fc.read(block, position);
+                    if (n <= 0) {
+                        throw new IOException(file + " is shorter than announced");
+                    }
+                    block.flip();
+                    while (block.hasRemaining()) {
+                        channel.write(block);
+                    }
+                }
+                position += n;
+                count -= n;
+            }
+        }
+    }
+}
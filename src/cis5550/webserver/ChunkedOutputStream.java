@@ -0,0 +1,114 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The body of a streamed response (Response.write) in Transfer-Encoding: chunked, so that the
+// connection can be reused afterwards. Small writes are collected in a buffer that leaves room
+// for the chunk's size line in front and its CRLF behind, so a chunk goes out in one write;
+// writes of at least a chunk's size are sent as chunks of their own without being copied.
+class ChunkedOutputStream extends OutputStream {
+    // Longest size line: up to 8 hex digits and CRLF
+    private static final int PREFIX = 10;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream output;
+    private final Transport transport;
+    private final Server.FlushPolicy policy;
+    private final byte[] buf;
+    private int count = PREFIX;
+    // When the last chunk was sent
+    private long lastSent = System.nanoTime();
+
+    ChunkedOutputStream(OutputStream output, Transport transport, Server.FlushPolicy policy, int chunkSize) {
+        this.output = output;
+        this.transport = transport;
+        this.policy = policy;
+        this.buf = new byte[PREFIX + chunkSize + CRLF.length];
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        int capacity = buf.length - PREFIX - CRLF.length;
+        if (len >= capacity) {
+            sendBuffered();
+            sendChunk(b, off, len);
+            return;
+        }
+        if (len > buf.length - CRLF.length - count) {
+            sendBuffered();
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+        if (flushDue()) {
+            sendBuffered();
+        }
+    }
+
+    // Whether the flush policy wants what has been written so far to go out now
+    boolean flushDue() {
+        return (policy == Server.FlushPolicy.EACH_WRITE) || (System.nanoTime() - lastSent > Server.MAX_CHUNK_DELAY_NANOS);
+    }
+
+    public void flush() throws IOException {
+        sendBuffered();
+    }
+
+    // Sends what is buffered and the last chunk; the connection can take the next response then
+    void finish() throws IOException {
+        sendBuffered();
+        output.write(LAST_CHUNK);
+        output.flush();
+    }
+
+    private void sendBuffered() throws IOException {
+        int len = count - PREFIX;
+        if (len == 0) {
+            return;
+        }
+        int start = sizeLine(len, buf, PREFIX);
+        buf[count++] = '\r';
+        buf[count++] = '\n';
+        output.write(buf, start, count - start);
+        output.flush();
+        count = PREFIX;
+        lastSent = System.nanoTime();
+    }
+
+    private void sendChunk(byte[] b, int off, int len) throws IOException {
+        byte[] line = new byte[PREFIX];
+        int start = sizeLine(len, line, PREFIX);
+        if (transport != null) {
+            output.flush();
+            transport.write(new ByteBuffer[] {ByteBuffer.wrap(line, start, PREFIX - start), ByteBuffer.wrap(b, off, len), ByteBuffer.wrap(CRLF)});
+        } else {
+            output.write(line, start, PREFIX - start);
+            output.write(b, off, len);
+            output.write(CRLF);
+            output.flush();
+        }
+        lastSent = System.nanoTime();
+    }
+
+    // Writes "<hex size>\r\n" so that it ends at dest[end]; returns where it starts
+    private static int sizeLine(int size, byte[] dest, int end) {
+        int pos = end;
+        dest[--pos] = '\n';
+        dest[--pos] = '\r';
+        do {
+            dest[--pos] = HEX[size & 0xf];
+            size >>>= 4;
+        } while (size != 0);
+        return pos;
+    }
+}
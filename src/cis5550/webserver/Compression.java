@@ -0,0 +1,129 @@
+package cis5550.webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Content-Encoding for responses and request bodies. A response is compressed if the client
+// accepts gzip or deflate, its type is one that compresses well, and it has at least MIN_BYTES
+// (streamed bodies are assumed to). Compression favors speed over size, since most of the
+// traffic is between our own nodes on the same network.
+final class Compression {
+    static final int MIN_BYTES = 1024;
+    private static final int LEVEL = 1;
+    private static final int BUFFER_SIZE = 8192;
+
+    private Compression() {
+    }
+
+    // Returns "gzip", "deflate", or null for identity, from an Accept-Encoding header
+    static String negotiate(String acceptEncoding) {
+        if (!Server.compression || (acceptEncoding == null)) {
+            return null;
+        }
+        // -1 until the header mentions them
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzip = q;
+            } else if (name.equals("deflate")) {
+                deflate = q;
+            } else if (name.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if ((gzip > 0) && (gzip >= deflate)) {
+            return "gzip";
+        }
+        return (deflate > 0) ? "deflate" : null;
+    }
+
+    // Whether a body of this Content-Type is worth compressing; null means text/plain
+    static boolean compressible(String contentType) {
+        if (contentType == null) {
+            return true;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.startsWith("application/octet-stream") || type.contains("json")
+                || type.contains("xml") || type.contains("javascript") || type.startsWith("application/x-www-form-urlencoded");
+    }
+
+    static byte[] compress(byte[] data, String encoding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (OutputStream out = stream(bytes, encoding)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    // A stream that compresses into out; flush() pushes out everything written so far. close()
+    // finishes the encoding and calls out.close().
+    static DeflaterOutputStream stream(OutputStream out, String encoding) throws IOException {
+        if (encoding.equals("gzip")) {
+            return new GZIPOutputStream(out, BUFFER_SIZE, true) {
+                {
+                    def.setLevel(LEVEL);
+                }
+            };
+        }
+        return new DeflaterOutputStream(out, true) {
+            {
+                def.setLevel(LEVEL);
+            }
+        };
+    }
+
+    // Decodes a request body; returns null if the encoding is not supported. Throws if the data
+    // is corrupt or decodes to more than maxBytes.
+    static byte[] decode(byte[] data, String encoding, long maxBytes) throws IOException {
+        String name = encoding.trim().toLowerCase(Locale.ROOT);
+        if (name.isEmpty() || name.equals("identity")) {
+            return data;
+        }
+        InputStream in;
+        if (name.equals("gzip") || name.equals("x-gzip")) {
+            in = new GZIPInputStream(new ByteArrayInputStream(data), BUFFER_SIZE);
+        } else if (name.equals("deflate")) {
+            in = new InflaterInputStream(new ByteArrayInputStream(data));
+        } else {
+            return null;
+        }
+        try (in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(64, Math.min(maxBytes, data.length * 4L)));
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                if (out.size() + n > maxBytes) {
+                    throw new IOException("Decoded body is larger than " + maxBytes + " bytes");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package cis5550.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+// The output of a blocking connection. While the client has more requests waiting in the read
+// buffer, flush() leaves responses in the buffer, so that the responses to a burst of pipelined
+// requests go out together instead of one write each; send() writes them. Buffers and files that
+// go through the Transport are written after whatever is buffered, so the order is kept.
+class PipelinedOutputStream extends BufferedOutputStream implements Transport {
+    private final Transport transport;
+    private boolean holding;
+    // Responses in the buffer
+    private int held;
+
+    PipelinedOutputStream(OutputStream out, Transport transport, int size) {
+        super(out, size);
+        this.transport = transport;
+    }
+
+    // Whether the client has sent more than the request that is about to be handled
+    void holding(boolean more) {
+        holding = more;
+    }
+
+    // Called after each response; Server.pipelineDepth responses are never held back together
+    void responseDone() throws IOException {
+        if (++held >= Server.pipelineDepth) {
+            send();
+        }
+    }
+
+    public void flush() throws IOException {
+        if (!holding) {
+            send();
+        }
+    }
+
+    void send() throws IOException {
+        super.flush();
+        held = 0;
+    }
+
+    public void write(ByteBuffer[] buffers) throws IOException {
+        send();
+        transport.write(buffers);
+    }
+
+    public void transferFile(Path file, long position, long length) throws IOException {
+        send();
+        transport.transferFile(file, position, length);
+    }
+}
@@ -0,0 +1,201 @@
+package cis5550.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Parses the head of an HTTP/1.1 request (the request line and the headers) directly from the
+// buffer it was read into, so the connection handlers can read the socket in large blocks.
+// The request line is split at runs of spaces and tabs without a regex, the usual header names
+// are matched against constants instead of being copied and lowercased, and Content-Length is
+// parsed from the bytes. Both the blocking handlers and the selector-based transport use it.
+public final class RequestParser {
+    // Longest head that is accepted; anything longer gets a 400
+    public static final int MAX_HEAD_BYTES = 64 * 1024;
+
+    private static final String[] KNOWN_HEADERS = {
+        "host", "content-length", "content-type", "connection", "cookie", "range", "if-modified-since",
+        "if-none-match", "accept", "accept-encoding", "content-encoding", "transfer-encoding", "user-agent", "expect"
+    };
+    private static final byte[][] KNOWN_HEADER_BYTES = new byte[KNOWN_HEADERS.length][];
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    public static final class Head {
+        public final String method;
+        public final String url;
+        public final String protocol;
+        // Lowercase names; of a header that appears more than once, the last value
+        public final Map<String, String> headers;
+        // 0 without a Content-Length header
+        public final long contentLength;
+        // False if the request line does not have three parts or Content-Length is not a number
+        public final boolean valid;
+
+        Head(String method, String url, String protocol, Map<String, String> headers, long contentLength, boolean valid) {
+            this.method = method;
+            this.url = url;
+            this.protocol = protocol;
+            this.headers = headers;
+            this.contentLength = contentLength;
+            this.valid = valid;
+        }
+    }
+
+    private RequestParser() {
+    }
+
+    // Skips the empty lines that may come before a request
+    public static int skipEmptyLines(byte[] buf, int from, int to) {
+        while ((from + 1 < to) && (buf[from] == '\r') && (buf[from + 1] == '\n')) {
+            from += 2;
+        }
+        return from;
+    }
+
+    // Returns the offset just past the empty line that ends the head, or -1 if the head has not
+    // been received completely. scanFrom lets a caller that is still receiving the head skip
+    // what it has searched before; the head itself starts at or before it.
+    public static int findHeadEnd(byte[] buf, int scanFrom, int to) {
+        int i = scanFrom + 3;
+        while (i < to) {
+            byte b = buf[i];
+            if ((b == '\n') && (buf[i - 1] == '\r') && (buf[i - 2] == '\n') && (buf[i - 3] == '\r')) {
+                return i + 1;
+            }
+            // Any CRLF CRLF that ends in the next three bytes would contain this one
+            i += ((b == '\r') || (b == '\n')) ? 1 : 4;
+        }
+        return -1;
+    }
+
+    // Parses the head in buf[from, headEnd), where headEnd is what findHeadEnd() returned
+    public static Head parse(byte[] buf, int from, int headEnd) {
+        int lineEnd = indexOfCRLF(buf, from, headEnd);
+        String[] parts = new String[3];
+        int numParts = 0;
+        int pos = from;
+        while (pos < lineEnd) {
+            while ((pos < lineEnd) && isSpace(buf[pos])) {
+                pos++;
+            }
+            if (pos == lineEnd) {
+                break;
+            }
+            int start = pos;
+            while ((pos < lineEnd) && !isSpace(buf[pos])) {
+                pos++;
+            }
+            if (numParts == 3) {
+                numParts++;
+                break;
+            }
+            parts[numParts] = (numParts == 0) ? method(buf, start, pos) : new String(buf, start, pos - start, StandardCharsets.UTF_8);
+            numParts++;
+        }
+        boolean valid = (numParts == 3);
+
+        Map<String, String> headers = new HashMap<>();
+        long contentLength = 0;
+        for (int lineStart = lineEnd + 2; lineStart < headEnd - 2; lineStart = lineEnd + 2) {
+            lineEnd = indexOfCRLF(buf, lineStart, headEnd);
+            int colon = lineStart;
+            while ((colon < lineEnd) && (buf[colon] != ':')) {
+                colon++;
+            }
+            if (colon == lineEnd) {
+                // Not a header; ignored, as before
+                continue;
+            }
+            int valueStart = colon + 1;
+            while ((valueStart < lineEnd) && isSpace(buf[valueStart])) {
+                valueStart++;
+            }
+            int valueEnd = lineEnd;
+            while ((valueEnd > valueStart) && isSpace(buf[valueEnd - 1])) {
+                valueEnd--;
+            }
+            String name = headerName(buf, lineStart, colon);
+            if (name.equals("content-length")) {
+                contentLength = parseLength(buf, valueStart, valueEnd);
+                if (contentLength < 0) {
+                    valid = false;
+                    contentLength = 0;
+                }
+            }
+            headers.put(name, new String(buf, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8));
+        }
+        return new Head(parts[0], parts[1], parts[2], headers, contentLength, valid);
+    }
+
+    private static int indexOfCRLF(byte[] buf, int from, int to) {
+        for (int i = from; i + 1 < to; i++) {
+            if ((buf[i] == '\r') && (buf[i + 1] == '\n')) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static boolean isSpace(byte b) {
+        return (b == ' ') || (b == '\t');
+    }
+
+    private static String method(byte[] buf, int from, int to) {
+        int length = to - from;
+        if ((length == 3) && (buf[from] == 'G') && (buf[from + 1] == 'E') && (buf[from + 2] == 'T')) {
+            return "GET";
+        } else if ((length == 3) && (buf[from] == 'P') && (buf[from + 1] == 'U') && (buf[from + 2] == 'T')) {
+            return "PUT";
+        } else if ((length == 4) && (buf[from] == 'P') && (buf[from + 1] == 'O') && (buf[from + 2] == 'S') && (buf[from + 3] == 'T')) {
+            return "POST";
+        } else if ((length == 4) && (buf[from] == 'H') && (buf[from + 1] == 'E') && (buf[from + 2] == 'A') && (buf[from + 3] == 'D')) {
+            return "HEAD";
+        }
+        return new String(buf, from, length, StandardCharsets.UTF_8);
+    }
+
+    // Returns one of the KNOWN_HEADERS constants if the name matches it, ignoring case, and a
+    // new lowercase string otherwise
+    private static String headerName(byte[] buf, int from, int to) {
+        int length = to - from;
+        for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+            byte[] known = KNOWN_HEADER_BYTES[i];
+            if (known.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length) {
+                byte b = buf[from + j];
+                byte k = known[j];
+                if ((b != k) && !((k >= 'a') && (k <= 'z') && (b == k - ('a' - 'A')))) {
+                    break;
+                }
+                j++;
+            }
+            if (j == length) {
+                return KNOWN_HEADERS[i];
+            }
+        }
+        return new String(buf, from, length, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+    }
+
+    // Returns -1 unless buf[from, to) is a non-negative decimal number that fits in a long
+    private static long parseLength(byte[] buf, int from, int to) {
+        if ((from == to) || (to - from > 18)) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            if ((buf[i] < '0') || (buf[i] > '9')) {
+                return -1;
+            }
+            value = value * 10 + (buf[i] - '0');
+        }
+        return value;
+    }
+}
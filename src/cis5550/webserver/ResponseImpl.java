@@ -2,8 +2,6 @@ package cis5550.webserver;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -14,11 +12,19 @@ public class ResponseImpl implements Response {
     Map<String,List<String>> headers = new HashMap<>();
     int statusC=200;
     String statusStr="OK";
-    Socket socket;
+    OutputStream output;
+    Transport transport;
+    // What Compression.negotiate() chose for the request, or null
+    String encoding;
+    ChunkedOutputStream chunked;
+    // chunked, or a compressing stream in front of it
+    OutputStream body;
     boolean writeCalled = false;
     String redirectURL = null;
-    ResponseImpl(Socket s, int code){ 
-        socket=s;
+    ResponseImpl(OutputStream out, Transport transportArg, String encodingArg, int code){ 
+        output=out;
+        transport=transportArg;
+        encoding=encodingArg;
         statusC=code;
         // header("content-type", "text/html");
     }
@@ -52,31 +58,30 @@ public class ResponseImpl implements Response {
         statusC=statusCode;
         statusStr=reasonPhrase;
     }
-    public void write(byte[] b)
+    public void write(byte[] b) throws IOException
     {
-        try {
-            OutputStream output = socket.getOutputStream();
-            if(!writeCalled)
-            {
-                writeCalled=true;
-                String response = "HTTP/1.1 "+getStatusCode()+" "+getStatusString()+"\r\n";
-                for (Map.Entry<String, List<String>> mEntry : getHeaders().entrySet()) {
-                    String header = mEntry.getKey();
-                    List<String> contents = mEntry.getValue();
-                    for (String content : contents) {
-                        response += header + ": " + content + "\r\n";
-                    }
-                }
-                response += "Connection: close\r\n\r\n";
-                output.write(response.getBytes(StandardCharsets.US_ASCII));
-                //output.flush();
-            }
-            output.write(b);
-            output.flush();
-        }catch(IOException e)
+        if(!writeCalled)
         {
-            e.printStackTrace();
+            writeCalled=true;
+            boolean compress=(encoding!=null)&&Compression.compressible(ResponseWriter.value(headers, "Content-Type"))&&(ResponseWriter.value(headers, "Content-Encoding")==null);
+            String extraHeaders="Transfer-Encoding: chunked\r\n";
+            if(compress)
+                extraHeaders+="Content-Encoding: "+encoding+"\r\nVary: Accept-Encoding\r\n";
+            ResponseWriter.sendHead(output, getStatusCode(), getStatusString(), getHeaders(), extraHeaders);
+            chunked=new ChunkedOutputStream(output, transport, Server.flushPolicy, Server.CHUNK_SIZE);
+            body=compress?Compression.stream(chunked, encoding):chunked;
         }
+        body.write(b);
+        // The compressor holds data back until it is flushed
+        if(body!=chunked&&chunked.flushDue())
+            body.flush();
+    }
+    // Ends a streamed body after the route has returned
+    void finish() throws IOException
+    {
+        if(body!=chunked)
+            body.close();
+        chunked.finish();
     }
     public void redirect(String url, int responseCode)
     {
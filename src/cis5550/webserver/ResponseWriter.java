@@ -0,0 +1,155 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Writes the head of a dynamic response into a pooled buffer, byte by byte instead of through
+// String concatenation, and sends the body as it is: byte bodies are never transcoded, and
+// Content-Length is their length in bytes. A small body is copied behind the head so that both
+// go out in one write; a larger one is sent from the route's array, in one gathering write
+// together with the head where the connection has a Transport. Bodies are compressed if the
+// client accepts it (see Compression).
+final class ResponseWriter {
+    private static final int HEAD_BUFFER_SIZE = 4096;
+    private static final int POOLED_BUFFERS = 256;
+    private static final int MAX_COPIED_BODY = 8192;
+    private static final ArrayBlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    private byte[] buf;
+    private int count;
+
+    private ResponseWriter() {
+        buf = pool.poll();
+        if (buf == null) {
+            buf = new byte[HEAD_BUFFER_SIZE];
+        }
+    }
+
+    // Sends a complete response; Content-Type is text/plain unless the headers say otherwise.
+    // encoding is what Compression.negotiate() chose for the request.
+    static void send(OutputStream output, Transport transport, int status, String reason, Map<String, List<String>> headers, byte[] body, String encoding) throws IOException {
+        String type = value(headers, "Content-Type");
+        if ((encoding != null) && (body.length >= Compression.MIN_BYTES) && Compression.compressible(type) && (value(headers, "Content-Encoding") == null)) {
+            byte[] compressed = Compression.compress(body, encoding);
+            if (compressed.length < body.length) {
+                body = compressed;
+            } else {
+                encoding = null;
+            }
+        } else {
+            encoding = null;
+        }
+        ResponseWriter w = new ResponseWriter();
+        try {
+            w.statusLine(status, reason);
+            w.headers(headers);
+            if (type == null) {
+                w.put("Content-type: text/plain\r\n");
+            }
+            if (encoding != null) {
+                w.put("Content-Encoding: ");
+                w.put(encoding);
+                w.put("\r\nVary: Accept-Encoding\r\n");
+            }
+            w.put("Content-Length: ");
+            w.put(Integer.toString(body.length));
+            w.put("\r\n\r\n");
+            if ((body.length <= MAX_COPIED_BODY) && (body.length <= w.buf.length - w.count)) {
+                System.arraycopy(body, 0, w.buf, w.count, body.length);
+                output.write(w.buf, 0, w.count + body.length);
+                output.flush();
+            } else if (transport != null) {
+                output.flush();
+                transport.write(new ByteBuffer[] {ByteBuffer.wrap(w.buf, 0, w.count), ByteBuffer.wrap(body)});
+            } else {
+                output.write(w.buf, 0, w.count);
+                output.write(body);
+                output.flush();
+            }
+        } finally {
+            w.release();
+        }
+    }
+
+    // Writes only the head; extraHeaders are complete lines that follow the route's headers
+    static void sendHead(OutputStream output, int status, String reason, Map<String, List<String>> headers, String extraHeaders) throws IOException {
+        ResponseWriter w = new ResponseWriter();
+        try {
+            w.statusLine(status, reason);
+            w.headers(headers);
+            w.put(extraHeaders);
+            w.put("\r\n");
+            output.write(w.buf, 0, w.count);
+        } finally {
+            w.release();
+        }
+    }
+
+    private void statusLine(int status, String reason) {
+        put("HTTP/1.1 ");
+        put(Integer.toString(status));
+        put(" ");
+        put(reason);
+        put("\r\n");
+    }
+
+    private void headers(Map<String, List<String>> headers) {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            String name = entry.getKey();
+            for (String value : entry.getValue()) {
+                put(name);
+                put(": ");
+                put(value);
+                put("\r\n");
+            }
+        }
+    }
+
+    // The first value of a header that the route set, whatever case it used for the name
+    static String value(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private void put(String s) {
+        int length = s.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // Rare outside ASCII; encode the rest of the string properly
+                byte[] rest = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                ensure(rest.length);
+                System.arraycopy(rest, 0, buf, count, rest.length);
+                count += rest.length;
+                return;
+            }
+            buf[count++] = (byte) c;
+        }
+    }
+
+    private void ensure(int more) {
+        if (buf.length - count < more) {
+            byte[] larger = new byte[Math.max(buf.length * 2, count + more)];
+            System.arraycopy(buf, 0, larger, 0, count);
+            buf = larger;
+        }
+    }
+
+    // Buffers that had to grow are left to the garbage collector
+    private void release() {
+        if (buf.length == HEAD_BUFFER_SIZE) {
+            pool.offer(buf);
+        }
+        buf = null;
+    }
+}
@@ -0,0 +1,140 @@
+package cis5550.webserver;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// The routes of one host, compiled into a trie with one level per path segment. A request is
+// resolved in a single walk over its URL: segments are compared in place instead of being split
+// out, static segments are tried before :parameters, and the walk only backs up when a branch
+// has no route for the method. Segments follow String.split("/"), as the old matchUrl() did, so
+// trailing slashes are ignored and an empty segment can fill a parameter.
+final class RouteTrie {
+    static final class Match {
+        final Route route;
+        // Null for routes without parameters
+        final Map<String, String> params;
+
+        Match(Route route, Map<String, String> params) {
+            this.route = route;
+            this.params = params;
+        }
+    }
+
+    private static final class Target {
+        final Route route;
+        // By segment; null where the pattern has a static segment, or if it has no parameters
+        final String[] paramNames;
+
+        Target(Route route, String[] paramNames) {
+            this.route = route;
+            this.paramNames = paramNames;
+        }
+    }
+
+    private static final class Node {
+        final String segment;
+        Node[] children = new Node[0];
+        Node param;
+        Map<String, Target> targets;
+
+        Node(String segment) {
+            this.segment = segment;
+        }
+    }
+
+    private final Node root = new Node(null);
+    // Most segments in any pattern; longer URLs cannot match
+    private int maxDepth = 0;
+
+    void add(String method, String path, Route route) {
+        String[] segments = path.split("/");
+        String[] paramNames = null;
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.startsWith(":")) {
+                if (paramNames == null) {
+                    paramNames = new String[segments.length];
+                }
+                paramNames[i] = segment.substring(1);
+                if (node.param == null) {
+                    node.param = new Node(null);
+                }
+                node = node.param;
+            } else {
+                Node child = null;
+                for (Node c : node.children) {
+                    if (c.segment.equals(segment)) {
+                        child = c;
+                        break;
+                    }
+                }
+                if (child == null) {
+                    child = new Node(segment);
+                    node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                    node.children[node.children.length - 1] = child;
+                }
+                node = child;
+            }
+        }
+        if (node.targets == null) {
+            node.targets = new HashMap<>();
+        }
+        node.targets.put(method, new Target(route, paramNames));
+        maxDepth = Math.max(maxDepth, segments.length);
+    }
+
+    // Returns null if no route matches the path (without its query string) and method
+    Match match(String method, String path) {
+        int end = path.length();
+        while ((end > 0) && (path.charAt(end - 1) == '/')) {
+            end--;
+        }
+        // Like split(), a path of only slashes has no segments, but an empty one has one
+        int start = ((end == 0) && !path.isEmpty()) ? 1 : 0;
+        String[] values = new String[maxDepth];
+        Target target = match(root, method, path, start, end, 0, values);
+        if (target == null) {
+            return null;
+        }
+        if (target.paramNames == null) {
+            return new Match(target.route, null);
+        }
+        Map<String, String> params = new HashMap<>();
+        for (int i = 0; i < target.paramNames.length; i++) {
+            if (target.paramNames[i] != null) {
+                params.put(target.paramNames[i], values[i]);
+            }
+        }
+        return new Match(target.route, params);
+    }
+
+    private static Target match(Node node, String method, String path, int segStart, int end, int depth, String[] values) {
+        if (segStart > end) {
+            return (node.targets == null) ? null : node.targets.get(method);
+        }
+        if (depth == values.length) {
+            return null;
+        }
+        int segEnd = path.indexOf('/', segStart);
+        if ((segEnd < 0) || (segEnd > end)) {
+            segEnd = end;
+        }
+        int length = segEnd - segStart;
+        for (Node child : node.children) {
+            if ((child.segment.length() == length) && path.regionMatches(segStart, child.segment, 0, length)) {
+                Target target = match(child, method, path, segEnd + 1, end, depth + 1, values);
+                if (target != null) {
+                    return target;
+                }
+                break;
+            }
+        }
+        if (node.param != null) {
+            values[depth] = path.substring(segStart, segEnd);
+            return match(node.param, method, path, segEnd + 1, end, depth + 1, values);
+        }
+        return null;
+    }
+}
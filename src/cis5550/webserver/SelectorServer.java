@@ -0,0 +1,612 @@
+package cis5550.webserver;
+
+import cis5550.tools.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serves plain HTTP with non-blocking I/O. One thread accepts connections and hands them to a
+// few I/O threads, each with its own Selector, which read requests into a per-connection buffer.
+// Only a complete request (headers and body) is passed to the bounded handler pool, so an idle
+// keep-alive connection costs a registration and no thread. A connection is not read while its
+// pipeline is full; the handlers' output is queued and written by the I/O thread.
+class SelectorServer {
+    private static final Logger logger = Logger.getLogger(SelectorServer.class);
+
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_REQUEST_BUFFER = 4096;
+    private static final int OUTPUT_CHUNK_SIZE = 16 * 1024;
+    // A handler that produces output faster than the client reads it waits above this
+    private static final int MAX_QUEUED_OUTPUT = 1 << 20;
+    private static final byte[] UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\nContent-Type: text/plain\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final int port;
+    private final IOLoop[] loops;
+    private final ThreadPoolExecutor handlers;
+
+    SelectorServer(int port, int ioThreads, int handlerThreads, int maxQueuedRequests) throws IOException {
+        this.port = port;
+        this.loops = new IOLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IOLoop();
+        }
+        this.handlers = new ThreadPoolExecutor(handlerThreads, handlerThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueuedRequests));
+    }
+
+    void serve() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            for (int i = 0; i < loops.length; i++) {
+                Thread thread = new Thread(loops[i], "HTTP-IO-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            System.out.println("Server is listening on port: " + port + " (" + loops.length + " I/O threads)");
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    channel.close();
+                    continue;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private class IOLoop implements Runnable {
+        final Selector selector;
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        // Connections whose handler has queued output or finished
+        final Queue<Connection> signalled = new ConcurrentLinkedQueue<>();
+
+        IOLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        void signal(Connection connection) {
+            signalled.add(connection);
+            selector.wakeup();
+        }
+
+        // Whatever goes wrong while serving a connection, even running out of memory for its
+        // request, costs only that connection; the loop goes on with the others
+        public void run() {
+            while (true) {
+                Connection connection = null;
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        Connection newConnection = new Connection(this, channel);
+                        try {
+                            newConnection.key = channel.register(selector, SelectionKey.OP_READ, newConnection);
+                        } catch (ClosedChannelException e) {
+                            newConnection.closeNow();
+                        }
+                    }
+                    while ((connection = signalled.poll()) != null) {
+                        connection.resume();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            connection.resume();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    }
+                } catch (Throwable t) {
+                    if (connection != null) {
+                        logger.error("Error on connection from " + connection.remoteAddr, t);
+                        connection.closeNow();
+                    } else {
+                        logger.error("Error in I/O loop", t);
+                    }
+                }
+            }
+        }
+    }
+
+    // One client connection. The request fields and the list of exchanges belong to the I/O
+    // thread; each exchange's output queue and state are shared with its handler thread and
+    // guarded by the connection's lock.
+    //
+    // Pipelined requests are handled at the same time, up to Server.pipelineDepth per connection,
+    // as long as they are GET or HEAD; any other request waits for the ones before it and holds
+    // back the ones after it, so that they see its effects. Responses are written in the order
+    // of the requests: an exchange's output waits in its queue until the exchanges before it
+    // are done.
+    private class Connection {
+        final IOLoop loop;
+        final SocketChannel channel;
+        SelectionKey key;
+        InetSocketAddress remoteAddr;
+
+        // Received bytes that have not been handed to a handler yet
+        byte[] in;
+        int inLength;
+        // Where to continue looking for the end of the head, and the head once it is complete
+        int scanned;
+        RequestParser.Head head;
+        int headLength;
+        // The client has sent everything it is going to send
+        boolean inputClosed;
+        // Oldest first; the first one is the one whose output is being written
+        final ArrayDeque<Exchange> exchanges = new ArrayDeque<>();
+        // Exchanges in the list that must run alone
+        int exclusive;
+
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition drained = lock.newCondition();
+        boolean closed;
+
+        Connection(IOLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            try {
+                this.remoteAddr = (InetSocketAddress) channel.getRemoteAddress();
+            } catch (IOException e) {
+                this.remoteAddr = null;
+            }
+        }
+
+        void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            try {
+                int n;
+                while ((n = channel.read(buffer.clear())) > 0) {
+                    append(buffer.flip());
+                    if (n < buffer.capacity()) {
+                        break;
+                    }
+                }
+                if (n < 0) {
+                    // Requests that are already in progress still get their responses
+                    inputClosed = true;
+                }
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+            update();
+        }
+
+        private void append(ByteBuffer buffer) {
+            if (in == null) {
+                in = new byte[Math.max(INITIAL_REQUEST_BUFFER, buffer.remaining())];
+            } else if (in.length - inLength < buffer.remaining()) {
+                // Doubling, but not past the end of a request whose length is known
+                int needed = inLength + buffer.remaining();
+                int size = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * in.length, needed));
+                if (head != null) {
+                    size = Math.max(needed, Math.min(size, headLength + (int) head.contentLength));
+                }
+                in = Arrays.copyOf(in, size);
+            }
+            int count = buffer.remaining();
+            buffer.get(in, inLength, count);
+            inLength += count;
+        }
+
+        // Starts what can be started, and waits for input, output, or neither
+        private void update() {
+            boolean wantsInput = dispatch();
+            if (closed) {
+                return;
+            }
+            if (wantsInput && inputClosed) {
+                if (exchanges.isEmpty()) {
+                    closeNow();
+                    return;
+                }
+                wantsInput = false;
+            }
+            Exchange first = exchanges.peek();
+            int ops = wantsInput ? SelectionKey.OP_READ : 0;
+            if ((first != null) && first.hasOutput()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        // Hands buffered requests to handlers while the pipeline has room for them. Returns
+        // true if it stopped because the next request has not arrived completely.
+        private boolean dispatch() {
+            while (!closed && (exchanges.size() < Server.pipelineDepth)) {
+                if (head == null) {
+                    if (inLength == 0) {
+                        return true;
+                    }
+                    int start = RequestParser.skipEmptyLines(in, 0, inLength);
+                    if (start > 0) {
+                        consume(start);
+                        if (inLength == 0) {
+                            return true;
+                        }
+                    }
+                    int headEnd = RequestParser.findHeadEnd(in, scanned, inLength);
+                    if (headEnd < 0) {
+                        scanned = Math.max(0, inLength - 3);
+                        if (inLength > RequestParser.MAX_HEAD_BYTES) {
+                            reject(Server.BAD_REQUEST);
+                            return false;
+                        }
+                        return true;
+                    }
+                    head = RequestParser.parse(in, 0, headEnd);
+                    headLength = headEnd;
+                    if (head.contentLength > Server.maxBodyBytes) {
+                        reject(Server.PAYLOAD_TOO_LARGE);
+                        return false;
+                    }
+                }
+                // The buffer grows as the body arrives (see append()), never ahead of it
+                int requestEnd = headLength + (int) head.contentLength;
+                if (inLength < requestEnd) {
+                    return true;
+                }
+                // A head that cannot be parsed, e.g. a blank request line without a method, is
+                // answered with a 400 after the responses before it, and ends the connection
+                boolean alone = !head.valid || (!head.method.equals("GET") && !head.method.equals("HEAD"));
+                if (!exchanges.isEmpty() && (alone || (exclusive > 0))) {
+                    return false;
+                }
+                RequestParser.Head request = head;
+                byte[] body = Arrays.copyOfRange(in, headLength, requestEnd);
+                Exchange exchange = new Exchange(alone);
+                try {
+                    handlers.execute(() -> handle(exchange, request, body));
+                } catch (RejectedExecutionException e) {
+                    if (exchanges.isEmpty()) {
+                        reject(UNAVAILABLE);
+                    }
+                    // Otherwise the request stays buffered until an exchange is done
+                    return false;
+                }
+                exchanges.add(exchange);
+                if (alone) {
+                    exclusive++;
+                }
+                head = null;
+                consume(requestEnd);
+            }
+            return false;
+        }
+
+        private void consume(int count) {
+            inLength -= count;
+            scanned = 0;
+            if (inLength == 0) {
+                // Idle connections keep no buffer
+                in = null;
+            } else {
+                System.arraycopy(in, count, in, 0, inLength);
+            }
+        }
+
+        // Runs on a handler thread
+        private void handle(Exchange exchange, RequestParser.Head request, byte[] body) {
+            ChannelOutputStream output = new ChannelOutputStream(exchange);
+            boolean keep = false;
+            try {
+                keep = Server.handleRequest(request, body, output, output, exchange, remoteAddr);
+                output.flush();
+            } catch (Exception e) {
+                logger.error("Error handling request from " + remoteAddr, e);
+            } finally {
+                // Also after an Error, so that the connection is closed rather than left waiting
+                lock.lock();
+                try {
+                    exchange.finished = true;
+                    exchange.keepAlive = keep && !exchange.closeRequested;
+                } finally {
+                    lock.unlock();
+                }
+                loop.signal(this);
+            }
+        }
+
+        // Runs on the I/O thread: writes what the exchanges have queued, in order, and once the
+        // first one is done and its output written, moves on to the next, or closes the
+        // connection if the first one must not be followed by another
+        void resume() {
+            // Signals can arrive after the request they were about has been completed
+            if (closed) {
+                return;
+            }
+            Exchange first;
+            while ((first = exchanges.peek()) != null) {
+                boolean done = false;
+                boolean reuse = false;
+                boolean failed = false;
+                lock.lock();
+                try {
+                    first.write();
+                    done = first.finished && first.out.isEmpty();
+                    reuse = first.keepAlive;
+                } catch (IOException e) {
+                    failed = true;
+                } finally {
+                    lock.unlock();
+                }
+                if (failed) {
+                    closeNow();
+                    return;
+                }
+                if (!done) {
+                    break;
+                }
+                exchanges.poll();
+                if (first.alone) {
+                    exclusive--;
+                }
+                if (!reuse) {
+                    closeNow();
+                    return;
+                }
+            }
+            update();
+        }
+
+        private void reject(byte[] response) {
+            try {
+                channel.write(ByteBuffer.wrap(response));
+            } catch (IOException e) {
+                // Closed below
+            }
+            closeNow();
+        }
+
+        void closeNow() {
+            lock.lock();
+            try {
+                closed = true;
+                for (Exchange exchange : exchanges) {
+                    exchange.discard();
+                }
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            in = null;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+
+        // One request and its response
+        private class Exchange implements Closeable {
+            final boolean alone;
+            // ByteBuffers and FileRegions, in the order they are to be written
+            final ArrayDeque<Object> out = new ArrayDeque<>();
+            long queuedBytes;
+            boolean finished;
+            boolean keepAlive;
+            boolean closeRequested;
+
+            Exchange(boolean alone) {
+                this.alone = alone;
+            }
+
+            // Called by the handler when the connection must not be reused; the I/O thread
+            // closes it once this response has been written
+            public void close() {
+                lock.lock();
+                try {
+                    closeRequested = true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void enqueue(Object output, long length) throws IOException {
+                lock.lock();
+                try {
+                    // Only the first exchange's output drains; the others wait their turn here
+                    while ((queuedBytes > MAX_QUEUED_OUTPUT) && !closed) {
+                        drained.awaitUninterruptibly();
+                    }
+                    if (closed) {
+                        throw new IOException("Connection to " + remoteAddr + " was closed");
+                    }
+                    out.add(output);
+                    queuedBytes += length;
+                } finally {
+                    lock.unlock();
+                }
+                loop.signal(Connection.this);
+            }
+
+            boolean hasOutput() {
+                lock.lock();
+                try {
+                    return !out.isEmpty();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Writes as much as the socket takes without blocking; called with the lock held
+            void write() throws IOException {
+                while (!out.isEmpty()) {
+                    Object next = out.peek();
+                    boolean complete;
+                    if (next instanceof FileRegion region) {
+                        queuedBytes -= region.write(channel);
+                        complete = (region.count == 0);
+                    } else {
+                        ByteBuffer buffer = (ByteBuffer) next;
+                        queuedBytes -= channel.write(buffer);
+                        complete = !buffer.hasRemaining();
+                    }
+                    if (!complete) {
+                        break;
+                    }
+                    out.poll();
+                }
+                if (queuedBytes <= MAX_QUEUED_OUTPUT) {
+                    drained.signalAll();
+                }
+            }
+
+            // Called with the lock held
+            void discard() {
+                for (Object pending : out) {
+                    if (pending instanceof FileRegion region) {
+                        region.close();
+                    }
+                }
+                out.clear();
+                queuedBytes = 0;
+            }
+        }
+
+        // What a handler writes; collected in chunks that are queued for the I/O thread. Large
+        // bodies are queued without a copy, and files as regions that the I/O thread sends with
+        // transferTo.
+        private class ChannelOutputStream extends OutputStream implements Transport {
+            private final Exchange exchange;
+            private final byte[] chunk = new byte[OUTPUT_CHUNK_SIZE];
+            private int count;
+
+            ChannelOutputStream(Exchange exchange) {
+                this.exchange = exchange;
+            }
+
+            public void write(int b) throws IOException {
+                if (count == chunk.length) {
+                    flush();
+                }
+                chunk[count++] = (byte) b;
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len >= chunk.length) {
+                    flush();
+                    exchange.enqueue(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)), len);
+                    return;
+                }
+                if (len > chunk.length - count) {
+                    flush();
+                }
+                System.arraycopy(b, off, chunk, count, len);
+                count += len;
+            }
+
+            public void flush() throws IOException {
+                if (count > 0) {
+                    exchange.enqueue(ByteBuffer.wrap(Arrays.copyOf(chunk, count)), count);
+                    count = 0;
+                }
+            }
+
+            public void write(ByteBuffer[] buffers) throws IOException {
+                for (int i = 0; i < buffers.length; i++) {
+                    ByteBuffer buffer = buffers[i];
+                    int length = buffer.remaining();
+                    if ((i == buffers.length - 1) && (length >= chunk.length)) {
+                        flush();
+                        exchange.enqueue(buffer, length);
+                    } else {
+                        write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                        buffer.position(buffer.limit());
+                    }
+                }
+                flush();
+            }
+
+            public void transferFile(Path file, long position, long length) throws IOException {
+                flush();
+                FileRegion region = new FileRegion(FileChannel.open(file, StandardOpenOption.READ), position, length);
+                try {
+                    exchange.enqueue(region, length);
+                } catch (IOException e) {
+                    region.close();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Part of a file that is still to be sent; owned by the connection's queue, which closes it
+    private static class FileRegion {
+        final FileChannel file;
+        long position;
+        long count;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
+        // Sends as much as the socket takes without blocking
+        long write(SocketChannel channel) throws IOException {
+            long written = file.transferTo(position, count, channel);
+            if ((written == 0) && (position >= file.size())) {
+                close();
+                throw new IOException("File is shorter than announced");
+            }
+            position += written;
+            count -= written;
+            if (count == 0) {
+                close();
+            }
+            return written;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+    }
+}
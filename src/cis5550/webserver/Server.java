@@ -1,84 +1,77 @@
 package cis5550.webserver;
 
 import cis5550.tools.Logger;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URLDecoder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.security.KeyStore;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocketFactory;
 
 public class Server implements Runnable {
     public void run(){
 		//Uncomment the following comments to pass the hw3 test since it needs to run on ports
-        boolean checkKeyExisted = new File("./keystore.jks").exists();
+        boolean checkKeyExisted = new File(TLSServer.DEFAULT_KEYSTORE).exists() || TLSServer.hasHostKeys();
         if (checkKeyExisted && secPort > 0){
-            ExecutorService poolTLS = Executors.newFixedThreadPool(NUM_WORKERS);
-            new Thread(() -> startTLSServer(poolTLS)).start();
+            ExecutorService poolTLS = newConnectionPool();
+            ExecutorService poolHandshakes = newHandshakePool();
+            new Thread(() -> startTLSServer(poolTLS, poolHandshakes)).start();
+        }else if(ioMode==IOMode.SELECTOR){
+            new Thread(this::startSelectorServer).start();
         }else{
-            ExecutorService poolNonTLS = Executors.newFixedThreadPool(NUM_WORKERS);
+            ExecutorService poolNonTLS = newConnectionPool();
             new Thread(() -> startNonTLSServer(poolNonTLS)).start();
         }
         SessionExpirer sessionExpirer = new SessionExpirer(sessionRecord);
         sessionExpirer.start();
     }
 
-    private ServerSocket createSSLServerSocket(int port) throws Exception {
-        String pwd = "secret";
-        KeyStore keyStore = KeyStore.getInstance("JKS");
-        keyStore.load(new FileInputStream("keystore.jks"), pwd.toCharArray());
-        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-        keyManagerFactory.init(keyStore, pwd.toCharArray());
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
-        SSLServerSocketFactory factory = sslContext.getServerSocketFactory();
-        return factory.createServerSocket(port);
+    // Runs the blocking handlers, one task per connection
+    private static ExecutorService newConnectionPool() {
+        if(ioMode==IOMode.VIRTUAL_THREADS)
+            return Executors.newVirtualThreadPerTaskExecutor();
+        return Executors.newFixedThreadPool(NUM_WORKERS);
     }
 
-    private void startTLSServer(ExecutorService pool) {
-        try (ServerSocket serverSocketTLS = createSSLServerSocket(secPort)) {
-            System.out.println("SSL Server is listening on port: " + secPort);
-            while (true) {
-                Socket socket = serverSocketTLS.accept();
-                pool.execute(new RequestHandler(socket));
-            }
+    // Runs TLS handshakes. Each gets a virtual thread, because a client can take up to the
+    // handshake timeout to send its ClientHello, and a fixed pool would let a few idle
+    // connections hold up all the others; TLSServer limits how many are pending at once
+    private static ExecutorService newHandshakePool() {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    private void startTLSServer(ExecutorService pool, ExecutorService handshakes) {
+        try {
+            new TLSServer(secPort, pool, handshakes).serve();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     private void startNonTLSServer(ExecutorService pool) {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
             System.out.println("Server is listening on port: " + port);
             while (true) {
-                Socket socket = serverSocket.accept();
+                Socket socket = serverChannel.accept().socket();
                 pool.execute(new RequestHandler(socket));
             }
         } catch (IOException e) {
@@ -86,6 +79,14 @@ public class Server implements Runnable {
         }
     }
 
+    private void startSelectorServer() {
+        try {
+            new SelectorServer(port, IO_THREADS, NUM_WORKERS, MAX_QUEUED_REQUESTS).serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     static class WorkerThread extends Thread {
         private BlockingQueue<Runnable> taskQueue;
 
@@ -106,297 +107,229 @@ public class Server implements Runnable {
         }
     }
 
-    private static class RequestHandler implements Runnable {
+    static class RequestHandler implements Runnable {
         private final Socket socket;
 
         public RequestHandler(Socket socket) {
             this.socket = socket;
         }
 
+        // Reads the connection in blocks into one buffer, which keeps whatever arrived after
+        // the current request for the next one; bodies are read in bulk. Pipelined requests are
+        // handled one after another, and their responses sent together (see PipelinedOutputStream).
         @Override
         public void run() {
-            int prevPrevByte = -1;
-            int prevByte = -1;
-            int currentByte = -1;
-            while(!socket.isClosed())
-            {   
-                //System.out.println("Socket is opened");
-                try {
-                    InputStream inputS = socket.getInputStream();
-                    ByteArrayOutputStream byteBuf = new ByteArrayOutputStream();
-                    List<String> headerLines = new ArrayList<>();
-                    while((currentByte=inputS.read())!=-1)
+            byte[] buf = new byte[READ_BUFFER_SIZE];
+            int start = 0;
+            int end = 0;
+            try {
+                InputStream inputS = socket.getInputStream();
+                // Plain connections are accepted from a channel, which buffers and files can be sent to directly
+                SocketChannel channel = socket.getChannel();
+                PipelinedOutputStream output = new PipelinedOutputStream(socket.getOutputStream(), (channel==null)?null:new ChannelTransport(channel), WRITE_BUFFER_SIZE);
+                Transport transport = (channel==null)?null:output;
+                InetSocketAddress remoteAddr = (InetSocketAddress)socket.getRemoteSocketAddress();
+                while(!socket.isClosed())
+                {
+                    start = RequestParser.skipEmptyLines(buf, start, end);
+                    int scanFrom = start;
+                    int headEnd;
+                    while((headEnd = RequestParser.findHeadEnd(buf, scanFrom, end)) < 0)
                     {
-                        byteBuf.write(currentByte);
-                        if(prevByte=='\r'&&currentByte=='\n')
+                        if(end - start >= RequestParser.MAX_HEAD_BYTES)
                         {
-                            if(byteBuf.toString().length()>2)
-                            {
-                                String line = byteBuf.toString().substring(0,byteBuf.toString().length()-2);
-                                headerLines.add(line);
-                            }
-                            byteBuf.reset();
+                            output.write(BAD_REQUEST);
+                            output.send();
+                            socket.close();
+                            return;
                         }
-                        if(prevPrevByte=='\r'&&prevByte=='\n'&&currentByte=='\r')
+                        scanFrom = Math.max(start, end - 3);
+                        if(end == buf.length)
                         {
-                            currentByte=inputS.read();
-                            if(currentByte==-1)
+                            if(start > 0)
                             {
-                                socket.close();
-                                break;
+                                System.arraycopy(buf, start, buf, 0, end - start);
+                                scanFrom -= start;
+                                end -= start;
+                                start = 0;
                             }
-                            if(currentByte=='\n')
-                                break;
+                            else
+                                buf = Arrays.copyOf(buf, buf.length * 2);
                         }
-                        prevPrevByte=prevByte;
-                        prevByte=currentByte;
-                    }
-                    if(headerLines.size()>0)
-                    {
-                        final String[] requestArray =  headerLines.get(0).split("\\s+");
-                        OutputStream output = socket.getOutputStream();
-                        PrintWriter writer = new PrintWriter(output, true);
-                        boolean requestValid=true;
-                        boolean foundHost=false;
-                        long contentLength=0;
-                        Date imsDate=null;
-                        int contentStart=-1,contentEnd=-1;
-                        Map<String,String> headers=new HashMap<>();
-                        String requestHost = "";
-                        if(requestArray.length!=3)
+                        // Responses held back for a pipeline go out before waiting for more
+                        output.send();
+                        int n = inputS.read(buf, end, buf.length - end);
+                        if(n < 0)
                         {
-                            requestValid=false;
+                            socket.close();
+                            return;
                         }
-                        if(requestValid)
+                        end += n;
+                        if(scanFrom == start)
                         {
-                            for(int i=1;i<headerLines.size();i++)
-                            {
-                                int pos=headerLines.get(i).indexOf(':');
-                                
-                                //String[] headerArray = headerLines.get(i).split("\\s+");
-                                if(pos!=-1)
-                                {
-                                    String header = headerLines.get(i).substring(0, pos).toLowerCase();
-                                    String content = headerLines.get(i).substring(pos+2, headerLines.get(i).length());
-                                    //System.out.println("Header: "+header+" Content: "+content);
-                                    headers.put(header, content);
-                                    if(header.equals("host"))
-                                    {
-                                        foundHost=true;
-                                        int pos1=content.indexOf(':');
-                                        if(pos1==-1)
-                                            requestHost=content;
-                                        else
-                                            requestHost=content.substring(0, pos1);
-                                    }
-                                    if(header.equals("content-length"))
-                                    {
-                                        contentLength=Long.parseLong(content);
-                                    }
-                                    if(header.equals("if-modified-since"))
-                                    {
-                                        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-                                        format.setTimeZone(TimeZone.getTimeZone("GMT"));
-                                        try{
-                                            imsDate=format.parse(content);
-                                        }
-                                        catch(ParseException e)
-                                        {
-                                            imsDate=null;
-                                        }
-                                    }
-                                    if(header.equals("range")&&requestArray[0].equals("GET"))
-                                    {
-                                        String[] startEnd = content.replace("bytes=", "").split("-");
-                                        if(startEnd[0].isEmpty())
-                                        {
-                                            contentEnd=Integer.parseInt(startEnd[1]);
-                                        }
-                                        else
-                                        {
-                                            contentStart=Integer.parseInt(startEnd[0]);
-                                            contentEnd=startEnd.length>1&&(!startEnd[1].isEmpty())?Integer.parseInt(startEnd[1]):-1;
-                                        }
-                                    }
-                                }
-                            }
-                            if(!foundHost) requestValid=false;
+                            start = RequestParser.skipEmptyLines(buf, start, end);
+                            scanFrom = start;
                         }
-                        if(requestValid)
+                    }
+
+                    RequestParser.Head head = RequestParser.parse(buf, start, headEnd);
+                    start = headEnd;
+                    if(head.contentLength > maxBodyBytes)
+                    {
+                        output.write(PAYLOAD_TOO_LARGE);
+                        output.send();
+                        socket.close();
+                        return;
+                    }
+                    int length = (int)head.contentLength;
+                    int buffered = Math.min(length, end - start);
+                    // The body array grows as the data arrives, not to whatever the client announced
+                    byte[] body = new byte[Math.min(length, Math.max(buffered, BODY_READ_INCREMENT))];
+                    System.arraycopy(buf, start, body, 0, buffered);
+                    start += buffered;
+                    if(start == end)
+                    {
+                        start = 0;
+                        end = 0;
+                    }
+                    if(buffered < length)
+                    {
+                        output.send();
+                        for(int filled = buffered; filled < length; )
                         {
-                            //System.out.println("request is valid");
-                            ByteArrayOutputStream bodyBuffer=new ByteArrayOutputStream();
-                            if(contentLength>0)
+                            if(filled == body.length)
+                                body = Arrays.copyOf(body, (int)Math.min(length, 2L * body.length));
+                            int n = inputS.read(body, filled, body.length - filled);
+                            if(n < 0)
                             {
-                                for(long i=0;i<contentLength;i++)
-                                    bodyBuffer.write(inputS.read());
-                            }
-                            if(!requestArray[2].equals("HTTP/1.1"))
-                            {
-                                String response = "HTTP/1.1 505 HTTP Version Not Supported\r\n";
-                                writer.print(response+defaultHeaders);
-//                                logger.info("Response: "+response+defaultHeaders);
-//                                System.out.println("Response: "+response+defaultHeaders);
-                                writer.flush();
+                                socket.close();
                                 return;
                             }
-                            
-                            Map<String, Map<String, Route>> hostRoutes=routes.get(requestHost);
-                            if(hostRoutes==null)
-                            {
-                                hostRoutes=routes.get("");
-                            }
-                            boolean isDynamic=handleDynamic(socket,writer,hostRoutes,requestArray[0],requestArray[1],requestArray[2],bodyBuffer,headers,200);
-                            if(!isDynamic)
-                            {
-                                if(requestArray[0].equals("GET")||requestArray[0].equals("HEAD"))
-                                {
-                                    boolean isTxt = requestArray[1].toLowerCase().endsWith(".txt");
-                                    boolean isHtml = requestArray[1].toLowerCase().endsWith(".html");
-                                    boolean isJpeg = requestArray[1].toLowerCase().endsWith(".jpeg")||requestArray[1].toLowerCase().endsWith(".jpg");
-                                    String path=cwd+requestArray[1];
-                                    boolean isForbidden = path.contains("..");
-//                                    logger.info("Requested file path: "+path);
-                                    if(!isForbidden)
-                                    {
-                                        File file = new File(path);
-                                        if(file.exists())
-                                        {
-                                            boolean needContent=true;
-                                            if(imsDate!=null)
-                                            {
-                                                long actualLastModified = file.lastModified();
-                                                Date almDate = new Date(actualLastModified);
-                                                if(imsDate.after(almDate))
-                                                    needContent=false;
-                                            }
-//                                            System.out.println("Need Content: " + needContent);
-                                            if(needContent)
-                                            {
-                                                try {
-                                                    byte[] fileContentBytes = Files.readAllBytes(Paths.get(path));
-                                                    byte[] slicedContentBytes = null;
-                                                    boolean useRange = contentStart!=-1||contentEnd!=-1;
-                                                    if(useRange)
-                                                    {
-                                                        contentStart = contentStart==-1?0:contentStart;
-                                                        contentEnd = contentEnd==-1?fileContentBytes.length-1:contentEnd;
-                                                        int length = contentEnd - contentStart + 1;
-                                                        slicedContentBytes = new byte[length];
-                                                        System.arraycopy(fileContentBytes, contentStart, slicedContentBytes, 0, length);
-                                                    }
-                                                    StringBuilder sb = new StringBuilder();
-                                                    if(!useRange)
-                                                        sb.append("HTTP/1.1 200 OK\r\nContent-Type: ");
-                                                    else
-                                                        sb.append("HTTP/1.1 206 Partial Content\r\nContent-Type: ");
-                                                                                
-                                                    if(isTxt)
-                                                        sb.append("text/plain\r\nServer: ");
-                                                    else if(isHtml)
-                                                        sb.append("text/html\r\nServer: ");
-                                                    else if(isJpeg)
-                                                        sb.append("image/jpeg\r\nServer: ");
-                                                    else
-                                                        sb.append("application/octet-stream\r\nServer: ");
-
-                                                    sb.append(serverName);
-                                                    sb.append("\r\nContent-Length: ");
-                                                    sb.append(fileContentBytes.length);
-                                                    if(useRange)
-                                                    {
-                                                        sb.append("\r\nContent-Range: bytes ");
-                                                        sb.append(contentStart);
-                                                        sb.append("-");
-                                                        sb.append(contentEnd);
-                                                        sb.append("/");
-                                                        sb.append(fileContentBytes.length);
-                                                    }
-                                                    sb.append("\r\n\r\n");
-                                                    writer.print(sb.toString());
-//                                                    System.out.println("sb content:\n" + sb.toString());
-                                                    writer.flush();
-                                                    if(requestArray[0].equals("GET"))
-                                                    {
-                                                        if(!useRange)
-                                                            output.write(fileContentBytes);
-                                                        else
-                                                            output.write(slicedContentBytes);
-                                                    }
-                                                    output.flush();    
-                                                } catch (IOException e) {
-                                                    e.printStackTrace();
-                                                }
-                                            }
-                                            else
-                                            {
-                                                String response = "HTTP/1.1 304 Not Modified";
-                                                writer.print(response+defaultHeaders);
-                                                logger.info("Response: "+response+defaultHeaders);
-                                                writer.flush();
-                                                System.out.println("Need Content" + response);
-                                            }
-                                        }
-                                        else
-                                        {
-                                            String response = "HTTP/1.1 404 Not Found";
-                                            writer.print(response+defaultHeaders);
-                                            logger.info("Response: "+response+defaultHeaders);
-                                            writer.flush();
-                                            System.out.println("File Not Existed" + response);
-                                        }
-                                    }
-                                    else
-                                    {
-                                        String response = "HTTP/1.1 403 Forbidden";
-                                        writer.print(response+defaultHeaders);
-                                        logger.info("Response: "+response+defaultHeaders);
-                                        writer.flush();
-                                    }
-                                }
-                                else if(requestArray[0].equals("POST")||requestArray[0].equals("PUT"))
-                                {
-                                    String response = "HTTP/1.1 405 Not Allowed\r\n";
-                                    writer.print(response+defaultHeaders);
-                                    logger.info("Response: "+response+defaultHeaders);
-                                    writer.flush();
-                                }
-                                else
-                                {
-                                String response = "HTTP/1.1 501 Not Implemented\r\n";
-                                writer.print(response+defaultHeaders);
-                                logger.info("Response: "+response+defaultHeaders);
-                                writer.flush();
-                                }
-                            }
-                        }
-                        if(!requestValid)
-                        {
-                            System.out.println("Not valid");
-                            String response = "HTTP/1.1 400 Bad Request\r\n";
-                            writer.print(response+defaultHeaders);
-                            logger.info("Response: "+response+defaultHeaders);
-                            writer.flush();
+                            filled += n;
                         }
-                    }else{
-                        System.out.println("No header lines");
                     }
-                    if(currentByte==-1&&!socket.isClosed()) socket.close();
+                    output.holding(start < end);
+                    if(!handleRequest(head,body,output,transport,socket,remoteAddr))
+                    {
+                        output.send();
+                        socket.close();
+                        return;
+                    }
+                    output.responseDone();
+                }
+            }
+            catch(IOException e)
+            {
+                try {
+                    socket.close();
+                } catch (IOException e1) {
+                    // Already broken
+                }
+            }
+        }
+    }
+
+    // Answers one request whose head has been parsed and whose body has been read. Returns false
+    // if the connection has to be closed afterwards. Both the blocking handlers and the
+    // selector-based transport go through here.
+    static boolean handleRequest(RequestParser.Head head, byte[] body, OutputStream output, Transport transport, Closeable connection, InetSocketAddress remoteAddr) throws IOException
+    {
+        PrintWriter writer = new PrintWriter(output, true);
+        boolean requestValid=head.valid;
+        Map<String,String> headers=head.headers;
+        String requestHost = "";
+        if(requestValid)
+        {
+            String host=headers.get("host");
+            if(host==null)
+                requestValid=false;
+            else
+            {
+                int pos1=host.indexOf(':');
+                requestHost=pos1==-1?host:host.substring(0, pos1);
+            }
+        }
+        if(requestValid)
+        {
+            if(!head.protocol.equals("HTTP/1.1"))
+            {
+                String response = "HTTP/1.1 505 HTTP Version Not Supported\r\n";
+                writer.print(response+defaultHeaders);
+//                logger.info("Response: "+response+defaultHeaders);
+//                System.out.println("Response: "+response+defaultHeaders);
+                writer.flush();
+                return false;
+            }
+            
+            String contentEncoding=headers.get("content-encoding");
+            if(contentEncoding!=null&&body.length>0)
+            {
+                byte[] decoded;
+                try {
+                    decoded=Compression.decode(body,contentEncoding,maxBodyBytes);
+                } catch(IOException e) {
+                    String response = "HTTP/1.1 400 Bad Request\r\n";
+                    writer.print(response+defaultHeaders);
+                    writer.flush();
+                    return true;
                 }
-                catch(IOException e)
+                if(decoded==null)
                 {
-                    e.printStackTrace();
-                    return;
+                    String response = "HTTP/1.1 415 Unsupported Media Type\r\n";
+                    writer.print(response+defaultHeaders);
+                    writer.flush();
+                    return true;
                 }
+                body=decoded;
             }
+
+            RouteTrie hostRoutes=routes.get(requestHost);
+            if(hostRoutes==null)
+            {
+                hostRoutes=routes.get("");
+            }
+            boolean isDynamic=handleDynamic(connection,output,transport,remoteAddr,writer,hostRoutes,head.method,head.url,head.protocol,body,headers,200);
+            if(!isDynamic)
+            {
+                if(head.method.equals("GET")||head.method.equals("HEAD"))
+                {
+                    StaticFiles.serve(cwd,head.method,head.url,headers,output,transport);
+                }
+                else if(head.method.equals("POST")||head.method.equals("PUT"))
+                {
+                    String response = "HTTP/1.1 405 Not Allowed\r\n";
+                    writer.print(response+defaultHeaders);
+                    logger.info("Response: "+response+defaultHeaders);
+                    writer.flush();
+                }
+                else
+                {
+                String response = "HTTP/1.1 501 Not Implemented\r\n";
+                writer.print(response+defaultHeaders);
+                logger.info("Response: "+response+defaultHeaders);
+                writer.flush();
+                }
+            }
+        }
+        if(!requestValid)
+        {
+            System.out.println("Not valid");
+            String response = "HTTP/1.1 400 Bad Request\r\n";
+            writer.print(response+defaultHeaders);
+            logger.info("Response: "+response+defaultHeaders);
+            writer.flush();
+            // Where the next request starts is not certain either
+            return false;
         }
+        return true;
     }
 
-    public static boolean handleDynamic(Socket socket, PrintWriter writer, Map<String, Map<String, Route>> hostRoutes, String method, String url, String protocol, ByteArrayOutputStream bodyBuffer, Map<String,String> headers, int respCode)
+    static boolean handleDynamic(Closeable connection, OutputStream output, Transport transport, InetSocketAddress remoteAddr, PrintWriter writer, RouteTrie hostRoutes, String method, String url, String protocol, byte[] body, Map<String,String> headers, int respCode)
     {
         RequestImpl req=null;
         ResponseImpl res=null;
         Route r=null;
+        String encoding=Compression.negotiate(headers.get("accept-encoding"));
         Map<String,String> qParams=new HashMap<>();
         if(url.indexOf("?")!=-1)
         {
@@ -405,40 +338,26 @@ public class Server implements Runnable {
         }
         if(headers.get("content-type")!=null&&headers.get("content-type").equals("application/x-www-form-urlencoded"))
         {
-            parseQueryParams(bodyBuffer.toString(),qParams);
-        }
-        Map<String,Route> entry = hostRoutes.get(url);
-        if(entry!=null)
-        {
-            r=entry.get(method);
+            parseQueryParams(new String(body, StandardCharsets.UTF_8),qParams);
         }
         Map<String,String> params=null;
-        if(r==null)
+        RouteTrie.Match match=(hostRoutes!=null)?hostRoutes.match(method,url):null;
+        if(match!=null)
         {
-            for(Map.Entry<String,Map<String,Route>> mEntry : hostRoutes.entrySet())
-            {
-                params=matchUrl(url,mEntry.getKey());
-                if(params!=null)
-                {
-                    if(mEntry.getValue().get(method)!=null)
-                    {
-                        r=mEntry.getValue().get(method);
-                        break;
-                    }
-                }
-            }
+            r=match.route;
+            params=match.params;
         }
         
 
         if(r!=null)
         {
             try{
-                req=new RequestImpl(method,url,protocol,headers,qParams,params,(InetSocketAddress)socket.getRemoteSocketAddress(),bodyBuffer.toByteArray(),instance);
-                res=new ResponseImpl(socket,respCode);
-                String s=(String)r.handle(req,res);
+                req=new RequestImpl(method,url,protocol,headers,qParams,params,remoteAddr,body,instance);
+                res=new ResponseImpl(output,transport,encoding,respCode);
+                Object result=r.handle(req,res);
                 if(res.redirectURL!=null)
                 {
-                    handleDynamic(socket,writer,hostRoutes,method,res.redirectURL,protocol,bodyBuffer,headers,res.statusC);
+                    handleDynamic(connection,output,transport,remoteAddr,writer,hostRoutes,method,res.redirectURL,protocol,body,headers,res.statusC);
                     return true;
                 }
                 if(req.getNewSessionID()!=null)
@@ -447,37 +366,18 @@ public class Server implements Runnable {
                 }
                 if(!res.writeCalled)
                 {
-                    String response = "HTTP/1.1 "+res.getStatusCode()+" "+res.getStatusString()+"\r\n";
-                    for (Map.Entry<String, List<String>> mEntry : res.getHeaders().entrySet()) {
-                        String header = mEntry.getKey();
-                        List<String> contents = mEntry.getValue();
-                        for (String content : contents) {
-                            response += header + ": " + content + "\r\n";
-                        }
-                    }
-                    int dynamicLen = 0;
-
-                    if(s!=null)
-                        dynamicLen=s.length();
-                    else if(res.getBodyRaw()!=null)
-                        dynamicLen=res.getBodyRaw().length;
-
-                    if(!response.contains("Content-Type")){
-                        response += "Content-type: text/plain\r\n";
-                    }
-                    
-                    response += "Content-Length: "+ dynamicLen + "\r\n\r\n";
-
-                    if(s!=null)
-                        response += s;
+                    // What the route returned takes precedence over res.body(); byte bodies are sent as they are
+                    byte[] bodyBytes;
+                    if(result instanceof byte[])
+                        bodyBytes=(byte[])result;
+                    else if(result!=null)
+                        bodyBytes=result.toString().getBytes(StandardCharsets.UTF_8);
                     else
-                        response += new String(res.getBodyRaw(), StandardCharsets.UTF_8);
-                    //
-                    writer.print(response);
-                    writer.flush();
-//                    System.out.println("response:\n" + response);
+                        bodyBytes=(res.getBodyRaw()!=null)?res.getBodyRaw():new byte[0];
+                    ResponseWriter.send(output,transport,res.getStatusCode(),res.getStatusString(),res.getHeaders(),bodyBytes,encoding);
                 } else{
-                    socket.close();
+                    // The body was streamed in chunks; ending it leaves the connection usable
+                    res.finish();
                 }
                 
             }catch(Exception e)
@@ -486,13 +386,15 @@ public class Server implements Runnable {
                 try{
                     if(res!=null&&res.writeCalled)
                     {
-                        socket.close();
+                        sendHeld(output);
+                        connection.close();
                         return true;
                     }
                     String response = "HTTP/1.1 500 Internal Server Error\r\n";
                     writer.print(response+defaultHeaders);
                     writer.flush();
-                    socket.close();
+                    sendHeld(output);
+                    connection.close();
                 }
                 catch(Exception e1)
                 {
@@ -504,23 +406,13 @@ public class Server implements Runnable {
         return false;
     }
 
-    public static Map<String, String> matchUrl(String url, String pathPattern) 
+    // Writes out responses that a pipelined connection is holding back, before it is closed
+    private static void sendHeld(OutputStream output) throws IOException
     {
-        String[] urlParts = url.split("/");
-        String[] patternParts = pathPattern.split("/");
-        if (urlParts.length != patternParts.length) {
-            return null;
-        }
-        Map<String, String> params = new HashMap<>();
-        for (int i = 0; i < patternParts.length; i++) {
-            if (patternParts[i].startsWith(":")) {
-                String paramName = patternParts[i].substring(1);
-                params.put(paramName, urlParts[i]);
-            } else if (!patternParts[i].equals(urlParts[i])) {
-                return null;
-            }
-        }
-        return params;
+        if(output instanceof PipelinedOutputStream)
+            ((PipelinedOutputStream)output).send();
+        else
+            output.flush();
     }
 
     public static void parseQueryParams(String url, Map<String, String> queryParams) 
@@ -586,9 +478,7 @@ public class Server implements Runnable {
     }
     public static void addTableEntry(String method,String path,Route r)
     {
-        routes.putIfAbsent(currHost, new HashMap<>());
-        routes.get(currHost).putIfAbsent(path, new HashMap<>());
-        routes.get(currHost).get(path).put(method, r);
+        routes.computeIfAbsent(currHost, h -> new RouteTrie()).add(method, path, r);
     }
     public static void port(int num)
     {
@@ -608,11 +498,69 @@ public class Server implements Runnable {
         secPort = num;
     }
 
+    // How connections are served; must be chosen before the first route is added. BLOCKING
+    // gives each connection one of NUM_WORKERS pool threads for as long as it stays open, and
+    // VIRTUAL_THREADS a virtual thread of its own, so connections that wait on slow routes or
+    // sit idle cost little. SELECTOR reads all plain HTTP connections on a few I/O threads and
+    // only uses a pool thread per request; TLS connections are then served as in BLOCKING.
+    public enum IOMode { BLOCKING, VIRTUAL_THREADS, SELECTOR }
+
+    public static void ioMode(IOMode mode)
+    {
+        ioMode = mode;
+    }
+
+    // When the body of a streamed response (Response.write) is sent. EACH_WRITE sends every
+    // write() as a chunk of its own right away. BUFFERED collects writes into chunks of up to
+    // CHUNK_SIZE bytes, which suits scans that write many small rows, but never holds data back
+    // for more than MAX_CHUNK_DELAY_NANOS once the next write() comes.
+    public enum FlushPolicy { EACH_WRITE, BUFFERED }
+
+    public static void flushPolicy(FlushPolicy policy)
+    {
+        flushPolicy = policy;
+    }
+
+    // How many pipelined requests of one connection are taken on at once. In SELECTOR mode, up to
+    // this many GET and HEAD requests are handled at the same time, and their responses sent in
+    // order; the blocking modes handle them one after another and send up to this many responses
+    // in one write. 1 turns pipelining off, without refusing pipelined requests.
+    public static void pipelineDepth(int depth)
+    {
+        pipelineDepth = Math.max(1, depth);
+    }
+
+    // The largest request body that is accepted, before and after a Content-Encoding is decoded;
+    // larger ones get a 413 and the connection is closed
+    public static void maxBodyBytes(int bytes)
+    {
+        maxBodyBytes = Math.max(0, bytes);
+    }
+
+    // Whether responses may be compressed for clients that send Accept-Encoding; request bodies
+    // with a Content-Encoding are decoded either way
+    public static void compression(boolean enabled)
+    {
+        compression = enabled;
+    }
+
     public static void host(String hostName)
     {
         currHost = hostName;
     }
 
+    // Like host(hostName), and the secure port presents the certificate from this keystore to
+    // clients that ask for hostName via SNI. The keystore is read once, here.
+    public static void host(String hostName, String keyStoreFile, String password)
+    {
+        try {
+            TLSServer.addHost(hostName, keyStoreFile, password);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot load keystore "+keyStoreFile+" for "+hostName, e);
+        }
+        host(hostName);
+    }
+
     public static class staticFiles {
         public static void location(String s) { 
             if(instance==null)
@@ -648,14 +596,31 @@ public class Server implements Runnable {
     private static Map<String, SessionImpl> sessionRecord = new ConcurrentHashMap<>();
 
     private static final Logger logger = Logger.getLogger(Server.class);
-    private static final String serverName = "CyberSquad";
+    static final String serverName = "CyberSquad";
     private static final String defaultHeaders = "Content-Type: text/plain\r\nContent-Length: 0\r\n\r\n";
     private static final int NUM_WORKERS  = 100;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    // Bodies that have not arrived yet are read into an array that grows in steps of at least this
+    private static final int BODY_READ_INCREMENT = 64 * 1024;
+    static final byte[] BAD_REQUEST = "HTTP/1.1 400 Bad Request\r\nContent-Type: text/plain\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] PAYLOAD_TOO_LARGE = "HTTP/1.1 413 Payload Too Large\r\nContent-Type: text/plain\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int IO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    // Complete requests that wait for a pool thread in SELECTOR mode; beyond this, clients get a 503
+    private static final int MAX_QUEUED_REQUESTS = 10000;
     private static String cwd = ".";
     private static String currHost = "";
     private static int port = 80;
     private static int secPort = -1;
+    static final int CHUNK_SIZE = 16 * 1024;
+    static final long MAX_CHUNK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    static int pipelineDepth = Integer.getInteger("cis5550.webserver.pipelineDepth", 16);
+    static int maxBodyBytes = Integer.getInteger("cis5550.webserver.maxBodyBytes", 64 << 20);
+    static boolean compression = Boolean.parseBoolean(System.getProperty("cis5550.webserver.compress", "true"));
+    static FlushPolicy flushPolicy = FlushPolicy.valueOf(System.getProperty("cis5550.webserver.flush", "buffered").toUpperCase(Locale.ROOT));
+    private static IOMode ioMode = IOMode.valueOf(System.getProperty("cis5550.webserver.io", "blocking").toUpperCase(Locale.ROOT));
     private static Server instance = null;
     private static boolean running = false;
-    private static Map<String, Map<String, Map<String, Route>>> routes = new HashMap<>();
+    // By host; "" for routes added before any host()
+    private static Map<String, RouteTrie> routes = new HashMap<>();
 }
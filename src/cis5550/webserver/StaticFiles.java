@@ -0,0 +1,331 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serves the files under staticFiles.location(). A file's body never passes through the heap as
+// a whole: a plain HTTP connection's Transport sends the region with transferTo, otherwise the
+// file is copied to the output in blocks. Small files are kept in an LRU cache together with
+// their ETag and Last-Modified values and are checked against the file's size and modification
+// time on every request, so a changed file is never served stale. Files that compress well are
+// sent gzipped or deflated to clients that accept it, except for range requests; cached files
+// keep their compressed form, larger ones are compressed while they are streamed in chunks.
+final class StaticFiles {
+    private static final int MAX_CACHED_FILE_BYTES = 64 * 1024;
+    private static final int MAX_CACHED_FILES = 256;
+    static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final String NO_BODY = "Content-Type: text/plain\r\nContent-Length: 0\r\n\r\n";
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final String etag;
+        final String lastModifiedHeader;
+        // Null for files that are too large to cache
+        final byte[] content;
+        // content compressed, once a client has asked for it
+        volatile byte[] gzipped;
+        volatile byte[] deflated;
+
+        Entry(long size, long lastModified, byte[] content) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+            this.lastModifiedHeader = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+            this.content = content;
+        }
+    }
+
+    private static final ReentrantLock cacheLock = new ReentrantLock();
+    private static final Map<Path, Entry> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+            return size() > MAX_CACHED_FILES;
+        }
+    };
+
+    private StaticFiles() {
+    }
+
+    // Answers a GET or HEAD for url, which may still have its query string
+    static void serve(String root, String method, String url, Map<String, String> headers, OutputStream output, Transport transport) throws IOException {
+        int query = url.indexOf('?');
+        String path = root + ((query < 0) ? url : url.substring(0, query));
+        if (path.contains("..")) {
+            respond(output, "403 Forbidden", NO_BODY);
+            return;
+        }
+        Path file = Paths.get(path);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.isDirectory()) {
+                file = file.resolve("index.html");
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+        } catch (NoSuchFileException e) {
+            attrs = null;
+        }
+        if ((attrs == null) || !attrs.isRegularFile()) {
+            respond(output, "404 Not Found", NO_BODY);
+            return;
+        }
+        Entry entry = lookup(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+        String type = contentType(file.getFileName().toString());
+        String range = (method.equals("GET")) ? headers.get("range") : null;
+        boolean varies = (entry.size >= Compression.MIN_BYTES) && Compression.compressible(type);
+        String encoding = (varies && (range == null)) ? Compression.negotiate(headers.get("accept-encoding")) : null;
+        // Each encoding is a representation of its own
+        String etag = (encoding == null) ? entry.etag : entry.etag.substring(0, entry.etag.length() - 1) + "-" + encoding + "\"";
+
+        if (notModified(entry, etag, headers)) {
+            respond(output, "304 Not Modified", "ETag: " + etag + "\r\nLast-Modified: " + entry.lastModifiedHeader + "\r\n\r\n");
+            return;
+        }
+
+        if (encoding != null) {
+            sendEncoded(method, file, entry, type, etag, encoding, output, transport);
+            return;
+        }
+
+        long first = 0;
+        long last = entry.size - 1;
+        boolean partial = false;
+        if (range != null) {
+            long[] bounds = parseRange(range, entry.size);
+            if ((bounds != null) && (bounds[0] > bounds[1])) {
+                respond(output, "416 Range Not Satisfiable", "Content-Range: bytes */" + entry.size + "\r\n" + NO_BODY);
+                return;
+            }
+            if (bounds != null) {
+                first = bounds[0];
+                last = bounds[1];
+                partial = true;
+            }
+        }
+        long length = last - first + 1;
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        appendHeaders(sb, type, entry, etag, varies);
+        sb.append("Content-Length: ").append(length).append("\r\n");
+        if (partial) {
+            sb.append("Content-Range: bytes ").append(first).append('-').append(last).append('/').append(entry.size).append("\r\n");
+        }
+        sb.append("\r\n");
+        output.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        if (!method.equals("GET") || (length == 0)) {
+            output.flush();
+            return;
+        }
+
+        if (entry.content != null) {
+            output.write(entry.content, (int) first, (int) length);
+            output.flush();
+        } else if (transport != null) {
+            output.flush();
+            transport.transferFile(file, first, length);
+        } else {
+            copy(file, first, length, output);
+        }
+    }
+
+    // Sends the whole file compressed: from the cache with a Content-Length, or else compressed
+    // while it is read, in chunks
+    private static void sendEncoded(String method, Path file, Entry entry, String type, String etag, String encoding, OutputStream output, Transport transport) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("HTTP/1.1 200 OK\r\n");
+        appendHeaders(sb, type, entry, etag, true);
+        sb.append("Content-Encoding: ").append(encoding).append("\r\n");
+        if (entry.content != null) {
+            byte[] body = encoding.equals("gzip") ? entry.gzipped : entry.deflated;
+            if (body == null) {
+                body = Compression.compress(entry.content, encoding);
+                if (encoding.equals("gzip")) {
+                    entry.gzipped = body;
+                } else {
+                    entry.deflated = body;
+                }
+            }
+            sb.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+            output.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+            if (method.equals("GET")) {
+                output.write(body);
+            }
+            output.flush();
+            return;
+        }
+        sb.append("Transfer-Encoding: chunked\r\n\r\n");
+        output.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        if (!method.equals("GET")) {
+            output.flush();
+            return;
+        }
+        ChunkedOutputStream chunked = new ChunkedOutputStream(output, transport, Server.FlushPolicy.BUFFERED, Server.CHUNK_SIZE);
+        try (OutputStream compressed = Compression.stream(chunked, encoding)) {
+            copy(file, 0, entry.size, compressed);
+        }
+        chunked.finish();
+    }
+
+    private static void appendHeaders(StringBuilder sb, String type, Entry entry, String etag, boolean varies) {
+        sb.append("Content-Type: ").append(type).append("\r\n");
+        sb.append("Server: ").append(Server.serverName).append("\r\n");
+        sb.append("Last-Modified: ").append(entry.lastModifiedHeader).append("\r\n");
+        sb.append("ETag: ").append(etag).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        if (varies) {
+            sb.append("Vary: Accept-Encoding\r\n");
+        }
+    }
+
+    private static void copy(Path file, long position, long count, OutputStream output) throws IOException {
+        byte[] block = new byte[(int) Math.min(COPY_BUFFER_SIZE, count)];
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (count > 0) {
+                buffer.clear().limit((int) Math.min(block.length, count));
+                int n = fc.read(buffer, position);
+                if (n <= 0) {
+                    throw new IOException(file + " is shorter than announced");
+                }
+                output.write(block, 0, n);
+                position += n;
+                count -= n;
+            }
+        }
+        output.flush();
+    }
+
+    // Returns the cached entry if it still describes the file, and a new one otherwise
+    private static Entry lookup(Path file, long size, long lastModified) throws IOException {
+        cacheLock.lock();
+        try {
+            Entry entry = cache.get(file);
+            if ((entry != null) && (entry.size == size) && (entry.lastModified == lastModified)) {
+                return entry;
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+        if (size > MAX_CACHED_FILE_BYTES) {
+            return new Entry(size, lastModified, null);
+        }
+        byte[] content = Files.readAllBytes(file);
+        if (content.length != size) {
+            // Changed while we looked at it; serve it from the file this time
+            return new Entry(size, lastModified, null);
+        }
+        Entry entry = new Entry(size, lastModified, content);
+        cacheLock.lock();
+        try {
+            cache.put(file, entry);
+        } finally {
+            cacheLock.unlock();
+        }
+        return entry;
+    }
+
+    private static boolean notModified(Entry entry, String etag, Map<String, String> headers) {
+        String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            // If-Modified-Since is ignored when If-None-Match is present
+            return false;
+        }
+        String ims = headers.get("if-modified-since");
+        if (ims == null) {
+            return false;
+        }
+        try {
+            long since = ZonedDateTime.parse(ims, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            // Dates in headers have whole seconds
+            return entry.lastModified / 1000 * 1000 <= since;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    // Returns {first, last} for a single satisfiable byte range, {1, 0} for one that cannot be
+    // satisfied, and null if the header is malformed or asks for several ranges, in which case
+    // the whole file is sent
+    private static long[] parseRange(String range, long size) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || (range.indexOf(',') >= 0)) {
+            return null;
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String from = range.substring(6, dash).trim();
+            String to = range.substring(dash + 1).trim();
+            if (from.isEmpty()) {
+                // The last n bytes
+                long n = Long.parseLong(to);
+                if (n < 0) {
+                    return null;
+                }
+                if ((n == 0) || (size == 0)) {
+                    return new long[] {1, 0};
+                }
+                return new long[] {Math.max(0, size - n), size - 1};
+            }
+            long first = Long.parseLong(from);
+            long last = to.isEmpty() ? size - 1 : Long.parseLong(to);
+            if ((first < 0) || (last < first)) {
+                return null;
+            }
+            if (first >= size) {
+                return new long[] {1, 0};
+            }
+            return new long[] {first, Math.min(last, size - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String contentType(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".txt")) {
+            return "text/plain";
+        } else if (name.endsWith(".html")) {
+            return "text/html";
+        } else if (name.endsWith(".jpeg") || name.endsWith(".jpg")) {
+            return "image/jpeg";
+        }
+        return "application/octet-stream";
+    }
+
+    private static void respond(OutputStream output, String status, String rest) throws IOException {
+        output.write(("HTTP/1.1 " + status + "\r\n" + rest).getBytes(StandardCharsets.US_ASCII));
+        output.flush();
+    }
+}
@@ -0,0 +1,213 @@
+package cis5550.webserver;
+
+import cis5550.tools.SNIInspector;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+// The secure port. Keystores are loaded and their SSLContexts built once, when they are first
+// needed, so every connection shares a context and its session cache, and clients that come back
+// resume their sessions with an abbreviated handshake. The accept loop only accepts; a separate
+// pool reads each ClientHello, picks the certificate for the SNI host name (see Server.host()),
+// and runs the handshake, so the request pool only gets connections that are ready for HTTP and
+// slow or abandoned handshakes cannot tie up its threads. A handshake that is not done by its
+// deadline is closed, however steadily the client trickles bytes, and connections beyond a limit
+// on pending handshakes, overall and per client address, are closed right away.
+final class TLSServer {
+    static final String DEFAULT_KEYSTORE = "keystore.jks";
+    private static final String DEFAULT_PASSWORD = "secret";
+    // A handshake that takes longer than this in total is abandoned
+    private static final int HANDSHAKE_TIMEOUT_MS = Integer.getInteger("cis5550.webserver.tls.handshakeTimeoutMs", 10_000);
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("cis5550.webserver.tls.sessionCacheSize", 20_000);
+    private static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("cis5550.webserver.tls.sessionTimeoutSeconds", 4 * 3600);
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final int MAX_PENDING_HANDSHAKES = Integer.getInteger("cis5550.webserver.tls.maxPendingHandshakes", 10_000);
+    private static final int MAX_PENDING_HANDSHAKES_PER_CLIENT = Integer.getInteger("cis5550.webserver.tls.maxPendingHandshakesPerClient", 100);
+    // Offered through ALPN; add "h2" in front once the server speaks it
+    private static final String[] APPLICATION_PROTOCOLS = {"http/1.1"};
+
+    // By lowercase host name, from Server.host(name, keyStoreFile, password)
+    private static final Map<String, SSLContext> hostContexts = new ConcurrentHashMap<>();
+    private static volatile SSLContext defaultContext;
+
+    private final int port;
+    private final ExecutorService requestPool;
+    private final ExecutorService handshakePool;
+    private final Semaphore pendingHandshakes = new Semaphore(MAX_PENDING_HANDSHAKES);
+    // By client address; entries are removed when they drop to zero
+    private final ConcurrentHashMap<InetAddress, Integer> pendingByClient = new ConcurrentHashMap<>();
+    // Closes handshakes that pass their deadline
+    private final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "tls-handshake-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    TLSServer(int port, ExecutorService requestPool, ExecutorService handshakePool) {
+        this.port = port;
+        this.requestPool = requestPool;
+        this.handshakePool = handshakePool;
+        // Nearly every handshake finishes in time, so its close is cancelled and should not linger
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    // Loads a host's keystore right away, so that a bad file or password shows up at startup
+    static void addHost(String host, String keyStoreFile, String password) throws IOException, GeneralSecurityException {
+        hostContexts.put(host.toLowerCase(Locale.ROOT), loadContext(keyStoreFile, password));
+    }
+
+    static boolean hasHostKeys() {
+        return !hostContexts.isEmpty();
+    }
+
+    void serve() throws IOException, GeneralSecurityException {
+        if (defaultContext() == null) {
+            throw new IOException("No " + DEFAULT_KEYSTORE + " and no host keystores for the secure port");
+        }
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("SSL Server is listening on port: " + port);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                InetAddress client = socket.getInetAddress();
+                if (!startHandshake(client)) {
+                    socket.close();
+                    continue;
+                }
+                try {
+                    handshakePool.execute(() -> {
+                        try {
+                            handshake(socket);
+                        } finally {
+                            handshakeDone(client);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    handshakeDone(client);
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private boolean startHandshake(InetAddress client) {
+        if (!pendingHandshakes.tryAcquire()) {
+            return false;
+        }
+        int[] pending = new int[1];
+        pendingByClient.compute(client, (c, count) -> {
+            pending[0] = (count == null) ? 1 : count + 1;
+            return (pending[0] > MAX_PENDING_HANDSHAKES_PER_CLIENT) ? count : pending[0];
+        });
+        if (pending[0] > MAX_PENDING_HANDSHAKES_PER_CLIENT) {
+            pendingHandshakes.release();
+            return false;
+        }
+        return true;
+    }
+
+    private void handshakeDone(InetAddress client) {
+        pendingByClient.computeIfPresent(client, (c, count) -> (count > 1) ? count - 1 : null);
+        pendingHandshakes.release();
+    }
+
+    private void handshake(Socket socket) {
+        // Closing the socket ends whatever read the handshake is blocked in
+        ScheduledFuture<?> deadline = deadlines.schedule(() -> closeQuietly(socket), HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        try {
+            socket.setTcpNoDelay(true);
+            SNIInspector inspector = new SNIInspector();
+            inspector.parseConnection(socket);
+            SSLContext context = contextFor(inspector.getHostName());
+            // Replays the ClientHello that the inspector has already read
+            SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(socket, inspector.getInputStream(), true);
+            ssl.setUseClientMode(false);
+            SSLParameters params = ssl.getSSLParameters();
+            params.setProtocols(PROTOCOLS);
+            params.setApplicationProtocols(APPLICATION_PROTOCOLS);
+            params.setUseCipherSuitesOrder(true);
+            ssl.setSSLParameters(params);
+            ssl.startHandshake();
+            // Too late if the socket is being closed already
+            if (deadline.cancel(false)) {
+                requestPool.execute(new Server.RequestHandler(ssl));
+            }
+        } catch (Exception e) {
+            // Not TLS, timed out, or no common protocol or cipher; nothing to answer
+            deadline.cancel(false);
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+    }
+
+    private static SSLContext contextFor(SNIHostName hostName) throws IOException, GeneralSecurityException {
+        if (hostName != null) {
+            SSLContext context = hostContexts.get(hostName.getAsciiName().toLowerCase(Locale.ROOT));
+            if (context != null) {
+                return context;
+            }
+        }
+        return defaultContext();
+    }
+
+    // keystore.jks if there is one, otherwise the first host's keystore; null if there are none
+    private static SSLContext defaultContext() throws IOException, GeneralSecurityException {
+        SSLContext context = defaultContext;
+        if (context == null) {
+            synchronized (TLSServer.class) {
+                context = defaultContext;
+                if (context == null) {
+                    if (new File(DEFAULT_KEYSTORE).exists()) {
+                        context = loadContext(DEFAULT_KEYSTORE, DEFAULT_PASSWORD);
+                    } else if (!hostContexts.isEmpty()) {
+                        context = hostContexts.values().iterator().next();
+                    }
+                    defaultContext = context;
+                }
+            }
+        }
+        return context;
+    }
+
+    private static SSLContext loadContext(String keyStoreFile, String password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, password.toCharArray());
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+        keyManagerFactory.init(keyStore, password.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        return context;
+    }
+}
@@ -0,0 +1,15 @@
+package cis5550.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+// What a plain HTTP connection can do besides its OutputStream: send several buffers, or part of
+// a file, without copying them into the stream first. Anything written to the stream must have
+// been flushed before either is called. TLS connections have no Transport and use the stream.
+interface Transport {
+    // Sends the buffers in order; only the last one may still be referenced after this returns
+    void write(ByteBuffer[] buffers) throws IOException;
+
+    void transferFile(Path file, long position, long count) throws IOException;
+}